@@ -0,0 +1,81 @@
+package ru.zont.dsbot.players;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoleSetBenchmark {
+    private String[] rows;
+    private List<HashSet<Integer>> hashSets;
+    private List<RoleSet> roleSets;
+
+    @Setup
+    public void setup() {
+        // Realistic p_roles/c_roles: mostly 0-6 small ids, sometimes empty
+        final Random random = new Random(42);
+        rows = new String[1024];
+        hashSets = new ArrayList<>(rows.length);
+        roleSets = new ArrayList<>(rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            final RoleSet set = new RoleSet();
+            final int count = random.nextInt(7);
+            for (int j = 0; j < count; j++)
+                set.add(random.nextInt(40));
+            rows[i] = set.toString();
+            roleSets.add(set);
+            hashSets.add(legacyParse(rows[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    public void parseLegacy(Blackhole bh) {
+        for (String row : rows)
+            bh.consume(legacyParse(row));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    public void parseRoleSet(Blackhole bh) {
+        for (String row : rows)
+            bh.consume(RoleSet.parse(row));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    public void toStringLegacy(Blackhole bh) {
+        for (HashSet<Integer> set : hashSets)
+            bh.consume(legacyToString(set));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    public void toStringRoleSet(Blackhole bh) {
+        for (RoleSet set : roleSets)
+            bh.consume(set.toString());
+    }
+
+    private static HashSet<Integer> legacyParse(String str) {
+        return new HashSet<>(
+                Arrays.stream(str.replaceAll("[\\[\\]\s]", "").split(","))
+                        .filter(s -> s.matches("\\d+"))
+                        .map(Integer::parseInt)
+                        .toList()
+        );
+    }
+
+    private static String legacyToString(Set<Integer> set) {
+        return String.join(" ",
+                "[",
+                String.join(", ", set.stream().map(String::valueOf).toList()),
+                "]");
+    }
+}
@@ -0,0 +1,95 @@
+package ru.zont.dsbot.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the DCS server list response. Run with the gc profiler (enabled in build.gradle)
+ * to compare allocation per refresh.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DCSParseBenchmark {
+    @Param({"2500"})
+    public int servers;
+
+    private String response;
+
+    @Setup
+    public void setup() {
+        // Same shape as the website response: the fields ServerData uses plus the ones it ignores,
+        // a few hundred distinct missions and many servers sharing a description
+        final Random random = new Random(42);
+        final JsonArray array = new JsonArray();
+        for (int i = 0; i < servers; i++) {
+            final JsonObject obj = new JsonObject();
+            obj.addProperty("ID", String.valueOf(100000 + i));
+            obj.addProperty("NAME", "Server %d | %s".formatted(i, random.nextBoolean() ? "PvP" : "PvE Training"));
+            obj.addProperty("IP_ADDRESS", "%d.%d.%d.%d".formatted(
+                    random.nextInt(223) + 1, random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            obj.addProperty("PORT", String.valueOf(10308 + random.nextInt(4)));
+            obj.addProperty("MISSION_NAME", "Mission_%d_v%d".formatted(random.nextInt(300), random.nextInt(3)));
+            obj.addProperty("MISSION_TIME", String.valueOf(random.nextInt(86400)));
+            obj.addProperty("PLAYERS", String.valueOf(random.nextInt(64)));
+            obj.addProperty("PLAYERS_MAX", String.valueOf(64));
+            obj.addProperty("PASSWORD", random.nextInt(4) == 0 ? "Yes" : "No");
+            obj.addProperty("DESCRIPTION", random.nextInt(3) == 0
+                    ? "No" : "Community server #%d<br />Discord: example.org/%d<br />Rules apply".formatted(
+                            random.nextInt(200), random.nextInt(200)));
+            obj.addProperty("MISSION_TIME_FORMATTED", "%d:%02d:%02d".formatted(
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60)));
+            obj.addProperty("DCS_VERSION", "2.8.%d.%d".formatted(random.nextInt(3), 30000 + random.nextInt(1000)));
+            obj.addProperty("URL_TO_DETAIL", "/en/personal/server/detail/%d/".formatted(100000 + i));
+            array.add(obj);
+        }
+        final JsonObject root = new JsonObject();
+        root.addProperty("SERVERS_MAX_COUNT", servers);
+        root.addProperty("SERVERS_MAX_DATE", "01.01.2023 00:00:00");
+        root.addProperty("PLAYERS_COUNT", servers * 10);
+        root.add("SERVERS", array);
+        response = root.toString();
+    }
+
+    @Benchmark
+    public List<DCSData.ServerData> parseStream() throws IOException {
+        return DCSData.parseServers(new StringReader(response), 0);
+    }
+
+    /**
+     * Previous implementation: the whole tree is built and kept, ServerData is parsed on lookup.
+     * Here every server is parsed once to compare the same amount of work.
+     */
+    @Benchmark
+    public List<DCSData.ServerData> parseTree() {
+        final JsonArray array = JsonParser.parseString(response).getAsJsonObject().get("SERVERS").getAsJsonArray();
+        final ArrayList<DCSData.ServerData> res = new ArrayList<>();
+        for (JsonElement e : array) {
+            final JsonObject obj = e.getAsJsonObject();
+            final DCSData.ServerData data = new DCSData.ServerData();
+            data.name = obj.getAsJsonPrimitive("NAME").getAsString();
+            data.ip = DCSData.normIp("%s:%s".formatted(obj.getAsJsonPrimitive("IP_ADDRESS").getAsString(),
+                    obj.get("PORT").getAsString()));
+            data.mission = obj.getAsJsonPrimitive("MISSION_NAME").getAsString();
+            data.players = obj.getAsJsonPrimitive("PLAYERS").getAsInt();
+            data.playersMax = obj.getAsJsonPrimitive("PLAYERS_MAX").getAsInt();
+            data.description = obj.getAsJsonPrimitive("DESCRIPTION").getAsString();
+            data.missionTime = obj.getAsJsonPrimitive("MISSION_TIME_FORMATTED").getAsString();
+            res.add(data);
+        }
+        return res;
+    }
+}
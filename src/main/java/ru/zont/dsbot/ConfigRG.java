@@ -34,6 +34,8 @@ public class ConfigRG extends ZDSBContextConfig {
     public Entry mediaPushingRole = new Entry();
     public Entry botAdminRole = new Entry();
 
+    public Entry roleSyncMapping = new Entry();
+
     public static ConfigRG castConfig(ZDSBContextConfig config) {
         return (ConfigRG) config;
     }
@@ -51,6 +53,10 @@ public class ConfigRG extends ZDSBContextConfig {
         public Entry formsWebPort = new Entry("false");
         public Entry formsChannel = new Entry();
 
+        public Entry dbPoolSize = new Entry("4");
+        /** Milliseconds to coalesce role edits for, 0 writes them immediately */
+        public Entry dbRolesWriteBehind = new Entry("0");
+
         public Entry dcsLogin = new Entry();
         public Entry dcsPass = new Entry();
 
@@ -8,12 +8,28 @@ import ru.zont.dsbot.http.GoogleFormHandler;
 import ru.zont.dsbot.listeners.DCSWatcher;
 import ru.zont.dsbot.listeners.GreetingsListener;
 import ru.zont.dsbot.listeners.MediaWatcher;
+import ru.zont.dsbot.listeners.PermissionCacheListener;
+import ru.zont.dsbot.listeners.RoleSyncListener;
 import ru.zont.dsbot.listeners.TSWatcher;
+import ru.zont.dsbot.players.ActivityStats;
+import ru.zont.dsbot.players.AuditJournal;
+import ru.zont.dsbot.players.CharacterFeed;
+import ru.zont.dsbot.players.PlayerSearch;
+import ru.zont.dsbot.players.PlayersDB;
+import ru.zont.dsbot.players.PlayersDBAsync;
+import ru.zont.dsbot.players.PlayersDataSource;
+import ru.zont.dsbot.players.RoleExpiry;
+import ru.zont.dsbot.players.RoleWriteQueue;
 import ru.zont.dsbot.core.ZDSBot;
 import ru.zont.dsbot.core.util.ZDSBotBuilder;
+import ru.zont.dsbot.util.DBMigrations;
+import ru.zont.dsbot.util.DCSData;
 
 import javax.security.auth.login.LoginException;
+import java.io.File;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
 
 public class Main {
@@ -24,8 +40,31 @@ public class Main {
         checkArgs(args);
         final ZDSBot bot = mainBot(args[0]);
 
-        if (args.length > 1 && args[1].startsWith("jdbc"))
+        PlayersDataSource dataSource = null;
+        CharacterFeed feed = null;
+        RoleWriteQueue writeQueue = null;
+        AuditJournal journal = null;
+        if (args.length > 1 && args[1].startsWith("jdbc")) {
             bot.setDbConnection(args[1]);
+            try (Connection conn = DriverManager.getConnection(args[1])) {
+                DBMigrations.migrate(conn);
+            }
+            dataSource = createDataSource(bot, args[1]);
+            feed = CharacterFeed.getInstance(bot);
+            feed.start();
+            PlayerSearch.getInstance(bot).load();
+            // These write in transactions, which the bot's shared connection cannot have
+            if (dataSource != null) {
+                ActivityStats.getInstance(bot).start(feed);
+                writeQueue = createWriteQueue(bot);
+                journal = new AuditJournal(PlayersDB.getInstance(bot), new File("audit"));
+                PlayersDB.getInstance(bot).setJournal(journal);
+                journal.start();
+                RoleExpiry.getInstance(bot).start();
+            } else {
+                log.warn("No PlayersDB pool: activity stats, role write-behind, audit journal and role expiry are off");
+            }
+        }
 
         bot.getJda().awaitReady();
 
@@ -42,6 +81,42 @@ public class Main {
 
         googleFormHandler.shutdown();
         bot.getJda().shutdown();
+        DCSData.shutdownRefresher();
+        // Writers first, so their audit entries still reach the journal before it is flushed
+        PlayersDBAsync.getInstance(bot).shutdown();
+        RoleExpiry.getInstance(bot).shutdown();
+        if (writeQueue != null) {
+            writeQueue.shutdown();
+            log.info("Role write queue: {}", writeQueue);
+        }
+        if (feed != null)
+            feed.shutdown();
+        if (dataSource != null)
+            ActivityStats.getInstance(bot).shutdown();
+        if (journal != null)
+            journal.shutdown();
+        if (dataSource != null) {
+            log.info("PlayersDB pool: {}", dataSource);
+            dataSource.close();
+        }
+    }
+
+    private static PlayersDataSource createDataSource(ZDSBot bot, String jdbcUrl) {
+        final int poolSize = ConfigRG.castBotConfig(bot.getConfig()).dbPoolSize.getInt();
+        if (poolSize <= 0) return null;
+
+        final PlayersDataSource dataSource = new PlayersDataSource(jdbcUrl, poolSize);
+        PlayersDB.getInstance(bot).setDataSource(dataSource);
+        return dataSource;
+    }
+
+    private static RoleWriteQueue createWriteQueue(ZDSBot bot) {
+        final int window = ConfigRG.castBotConfig(bot.getConfig()).dbRolesWriteBehind.getInt();
+        if (window <= 0) return null;
+
+        final RoleWriteQueue queue = new RoleWriteQueue(PlayersDB.getInstance(bot), window);
+        PlayersDBAsync.getInstance(bot).setWriteQueue(queue);
+        return queue;
     }
 
     private static void checkArgs(String[] args) {
@@ -55,7 +130,8 @@ public class Main {
                 .allCoreCommands()
                 .addCommandAdapters(Roles.class, Say.class, Clear.class, DCSServers.class, TSServers.class,
                         Greetings.class, Media.class, Admin.class, Config.class)
-                .addGuildListeners(GreetingsListener.class, DCSWatcher.class, TSWatcher.class, MediaWatcher.class)
+                .addGuildListeners(GreetingsListener.class, DCSWatcher.class, TSWatcher.class, MediaWatcher.class,
+                        RoleSyncListener.class, PermissionCacheListener.class)
                 .addDefaultIntents()
                 .onJdaBuilder(b -> b.enableIntents(GatewayIntent.GUILD_MESSAGE_REACTIONS))
                 .setCacheAll()
@@ -32,6 +32,7 @@ import ru.zont.dsbot.core.util.ResponseTarget;
 
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Consumer;
 import java.util.stream.StreamSupport;
 
 import static ru.zont.dsbot.util.StringsRG.STR;
@@ -75,7 +76,11 @@ public class DCSServers extends RGSlashCommandAdapter {
         ResponseTarget replyTo = new ResponseTarget(event);
         switch (Objects.requireNonNull(event.getSubcommandName())) {
             case "list" -> list(replyTo);
-            case "add" -> add(DCSData.normIp(event.getOption("ip", OptionMapping::getAsString)), replyTo);
+            case "add" -> {
+                final String ip = DCSData.normIp(event.getOption("ip", OptionMapping::getAsString));
+                event.deferReply().queue();
+                add(ip, replyTo, embed -> event.getHook().editOriginalEmbeds(embed).queue());
+            }
             case "rm" -> rm(DCSData.normIp(event.getOption("ip", OptionMapping::getAsString)), replyTo);
             case "set-channel" -> setChannel(event.getOption("channel", OptionMapping::getAsMessageChannel), replyTo);
             case "disable" -> {
@@ -122,27 +127,40 @@ public class DCSServers extends RGSlashCommandAdapter {
     }
 
     private void add(String ip, ResponseTarget replyTo) {
+        add(ip, replyTo, replyTo::respondEmbedLater);
+    }
+
+    /**
+     * A server that has just been started may be missing from the list, so the reply waits for a fresh one
+     */
+    private void add(String ip, ResponseTarget replyTo, Consumer<MessageEmbed> respond) {
         servers.opList(list -> {
             list.add(ip);
         });
 
-        DCSData.ServerData data = dcsData.findData(ip);
+        dcsData.findFreshData(ip).thenAccept(data -> respond.accept(addedEmbed(data))).exceptionally(e -> {
+            getErrorReporter().reportError(replyTo, e);
+            return null;
+        });
+    }
+
+    private static MessageEmbed addedEmbed(DCSData.ServerData data) {
         if (data == null) {
-            replyTo.respondEmbedLater(new EmbedBuilder()
-                            .setTitle(STR.get("dcs.err.no_serv.title"))
-                            .setDescription(STR.get("dcs.err.no_serv"))
-                            .setFooter(STR.get("dcs.server.added.however"))
-                            .setColor(ResponseTarget.WARNING_COLOR)
-                    .build());
+            return new EmbedBuilder()
+                    .setTitle(STR.get("dcs.err.no_serv.title"))
+                    .setDescription(STR.get("dcs.err.no_serv"))
+                    .setFooter(STR.get("dcs.server.added.however"))
+                    .setColor(ResponseTarget.WARNING_COLOR)
+                    .build();
         } else {
-            replyTo.respondEmbedLater(new EmbedBuilder()
-                            .setTitle(STR.get("dcs.server.added"))
-                            .setDescription("**%s**\n%s".formatted(data.name, data.getDescription()))
-                            .addField(STR.get("dcs.server.players"), data.getPlayers(), true)
-                            .addField(STR.get("dcs.server.mission"), data.mission, true)
-                            .addField(STR.get("dcs.server.mission_time"), data.getMissionTime(), true)
-                            .setColor(ResponseTarget.OK_COLOR)
-                    .build());
+            return new EmbedBuilder()
+                    .setTitle(STR.get("dcs.server.added"))
+                    .setDescription("**%s**\n%s".formatted(data.name, data.getDescription()))
+                    .addField(STR.get("dcs.server.players"), data.getPlayers(), true)
+                    .addField(STR.get("dcs.server.mission"), data.mission, true)
+                    .addField(STR.get("dcs.server.mission_time"), data.getMissionTime(), true)
+                    .setColor(ResponseTarget.OK_COLOR)
+                    .build();
         }
     }
 
@@ -1,6 +1,7 @@
 package ru.zont.dsbot.commands;
 
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import ru.zont.dsbot.core.GuildContext;
 import ru.zont.dsbot.core.ZDSBot;
 import ru.zont.dsbot.core.commands.PermissionsUtil;
@@ -12,6 +13,11 @@ public abstract class RGSlashCommandAdapter extends SlashCommandAdapter {
         super(bot, context);
     }
 
+    @Override
+    public boolean checkPermission(MessageReceivedEvent event) {
+        return checkPermission(RgPermissions.newInstance(this, event));
+    }
+
     @Override
     public boolean checkPermission(SlashCommandInteractionEvent event) {
         return checkPermission(RgPermissions.newInstance(this, event));
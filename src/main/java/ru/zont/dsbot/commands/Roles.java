@@ -1,12 +1,36 @@
 package ru.zont.dsbot.commands;
 
 import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.events.interaction.command.CommandAutoCompleteInteractionEvent;
+import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.api.interactions.AutoCompleteQuery;
+import net.dv8tion.jda.api.interactions.InteractionHook;
+import net.dv8tion.jda.api.interactions.commands.Command;
+import net.dv8tion.jda.api.interactions.commands.OptionMapping;
+import net.dv8tion.jda.api.interactions.commands.OptionType;
+import net.dv8tion.jda.api.interactions.commands.build.Commands;
+import net.dv8tion.jda.api.interactions.commands.build.OptionData;
+import net.dv8tion.jda.api.interactions.commands.build.SlashCommandData;
+import net.dv8tion.jda.api.interactions.commands.build.SubcommandData;
+import net.dv8tion.jda.api.requests.RestAction;
+import net.dv8tion.jda.api.requests.restaction.WebhookMessageUpdateAction;
 import org.apache.commons.cli.Options;
+import ru.zont.dsbot.players.ActivityStats;
+import ru.zont.dsbot.players.AuditJournal;
 import ru.zont.dsbot.players.PlayerCharacter;
+import ru.zont.dsbot.players.PlayerInfo;
 import ru.zont.dsbot.players.PlayerProfile;
+import ru.zont.dsbot.players.PlayerSearch;
 import ru.zont.dsbot.players.PlayersDB;
+import ru.zont.dsbot.players.PlayersDBAsync;
+import ru.zont.dsbot.players.PlayersImport;
 import ru.zont.dsbot.players.RgRoles;
+import ru.zont.dsbot.players.RoleExpiry;
+import ru.zont.dsbot.players.RoleSet;
+import ru.zont.dsbot.players.RosterExport;
 import ru.zont.dsbot.util.RgPermissions;
 import ru.zont.dsbot.core.GuildContext;
 import ru.zont.dsbot.core.ZDSBot;
@@ -14,23 +38,52 @@ import ru.zont.dsbot.core.commands.CommandAdapter;
 import ru.zont.dsbot.core.commands.Input;
 import ru.zont.dsbot.core.commands.Routing;
 import ru.zont.dsbot.core.commands.exceptions.InvalidSyntaxException;
+import ru.zont.dsbot.core.util.DescribedException;
 import ru.zont.dsbot.core.util.MessageBatch;
 import ru.zont.dsbot.core.util.MessageSplitter;
 import ru.zont.dsbot.core.util.ResponseTarget;
 
 import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import static ru.zont.dsbot.util.StringsRG.STR;
 
-public class Roles extends RGCommandAdapter {
+public class Roles extends RGSlashCommandAdapter {
 
     public static final String USER_MENTION_REGEX = "<@!?(\\d+)>";
+    public static final String STEAM_ID_REGEX = "7656\\d+";
+    public static final int IMPORT_MAX_SIZE = 8 << 20;
+    public static final long IMPORT_PROGRESS_INTERVAL = 2000;
+    public static final long EXPORT_MAX_SIZE = 8 << 20;
+    public static final int HISTORY_LIMIT = 25;
+
+    /** Exports and imports run for long, so they stay off the database executor and its timeout */
+    private static final ExecutorService bulkExecutor = new ThreadPoolExecutor(1, 2, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(8), r -> {
+        final Thread t = new Thread(r, "RolesBulk");
+        t.setDaemon(true);
+        return t;
+    });
 
     public Roles(ZDSBot bot, GuildContext context) {
         super(bot, context);
@@ -38,7 +91,7 @@ public class Roles extends RGCommandAdapter {
 
     private void printProfiles(PlayerProfile ply,
                                @Nullable List<PlayerCharacter> chars,
-                               ResponseTarget replyTo,
+                               Reply replyTo,
                                String title, int color) {
         ArrayList<String> strings = new ArrayList<>(chars != null ? chars.size() + 1 : 1);
         strings.add(STR.get("roles.list.player",
@@ -51,30 +104,36 @@ public class Roles extends RGCommandAdapter {
                         c.getName(), c.getSide(),
                         PlayersDB.setToString(c.getRoles())));
 
-        MessageBatch.sendNow(replyTo.respondEmbeds(MessageSplitter.embeds(
+        replyTo.embeds(MessageSplitter.embeds(
                 String.join("\n\n", strings),
                 new EmbedBuilder()
                         .setTitle(title)
-                        .setColor(color))));
+                        .setColor(color)));
     }
 
     @Override
-    public void onCall(ResponseTarget replyTo, Input input, MessageReceivedEvent event, Object... params) {
+    public void onCall(ResponseTarget target, Input input, MessageReceivedEvent event, Object... params) {
+        final Reply replyTo = new Reply(target, null);
         final List<String> args = input.getCommandLine().getArgList();
         if (args.size() < 1)
             throw InvalidSyntaxException.insufficientArgs(STR.get("err.no_action_arg"), this);
 
-        switch (args.get(0)) {
-            case "add" -> add(input, replyTo);
-            case "rm" -> rm(input, replyTo);
-            case "list" -> list(input, replyTo);
-            case "bind" -> bind(input, replyTo);
-            case "known" -> known(input, replyTo);
-            default -> throw InvalidSyntaxException.argument(1, STR.get("roles.err.action", args.get(0)), this);
-        }
+        AuditJournal.runAs(event.getAuthor().getId(), () -> {
+            switch (args.get(0)) {
+                case "add" -> add(input, replyTo);
+                case "rm" -> rm(input, replyTo);
+                case "list" -> list(input, replyTo, event);
+                case "bind" -> bind(input, replyTo);
+                case "known" -> known(input, replyTo);
+                case "history" -> history(input, replyTo);
+                case "stats" -> stats(args.size() > 1 && args.get(1).toLowerCase(Locale.ROOT).startsWith("w")
+                        ? ActivityStats.Period.WEEK : ActivityStats.Period.DAY, replyTo);
+                default -> throw InvalidSyntaxException.argument(1, STR.get("roles.err.action", args.get(0)), this);
+            }
+        });
     }
 
-    private void known(Input input, ResponseTarget replyTo) {
+    private void known(Input input, Reply replyTo) {
         final List<String> argList = input.getCommandLine().getArgList();
         if (argList.size() < 3)
             throw InvalidSyntaxException.insufficientArgs(STR.get("roles.err.known.args"), this);
@@ -85,49 +144,92 @@ public class Roles extends RGCommandAdapter {
 
         final int id = Integer.parseInt(idStr);
         String name = String.join(" ", argList.subList(2, argList.size()));
+        known(id, name, replyTo);
+    }
+
+    private void known(int id, String name, Reply replyTo) {
         RgRoles.addRole(id, name);
-        replyTo.setOK();
+        replyTo.ok();
     }
 
-    private void add(Input input, ResponseTarget replyTo) {
+    private void add(Input input, Reply replyTo) {
         final List<String> argList = input.getCommandLine().getArgList();
         final LinkedList<Integer> roles = parseIds(input);
         final int idx = roles.size() + 1;
         final String disId = getDisId(argList, idx);
         final String steamId = getSteamId(argList, idx + 1);
-        final PlayersDB db = PlayersDB.getInstance(getBot());
 
-        final PlayerProfile player;
-        if (steamId != null)
-            player = db.addRoles(steamId, disId, roles);
-        else player = db.addRoles(disId, roles);
+        final PlayersDB.Characters scope;
+        if (input.getCommandLine().hasOption("A"))
+            scope = PlayersDB.Characters.NONE;
+        else if (input.getCommandLine().hasOption("a"))
+            scope = PlayersDB.Characters.ALL;
+        else scope = PlayersDB.Characters.LAST_ACTIVE;
 
-        final LinkedList<PlayerCharacter> chars;
-        if (!input.getCommandLine().hasOption("A")) {
-            chars = db.addRolesToCharacters(player.getSteamId(), roles, input.getCommandLine().hasOption("a"));
-        } else chars = null;
+        add(roles, disId, steamId, scope, parseDuration(input.getCommandLine().getOptionValue("t")), replyTo);
+    }
 
-        printProfiles(player, chars, replyTo, STR.get("roles.list.updated"), 0x11d011);
+    /**
+     * @param duration how long the roles last, or null to make them permanent
+     */
+    private void add(List<Integer> roles, String disId, String steamId, PlayersDB.Characters scope,
+                     @Nullable Long duration, Reply replyTo) {
+        final RoleExpiry expiry = RoleExpiry.getInstance(getBot());
+        final long expiresAt = duration != null ? System.currentTimeMillis() + duration : 0;
+        final PlayersDB.RoleChangeHook grant = !expiry.isRunning() ? null
+                : duration != null ? expiry.grant(roles, expiresAt) : expiry.cancel(roles);
+        final CompletableFuture<PlayerInfo> future = getDb().addRoles(steamId, disId, roles, scope, grant);
+        onComplete(replyTo, future, info ->
+                printProfiles(info.getProfile(), scope != PlayersDB.Characters.NONE ? info.getCharacters() : null,
+                        replyTo, duration != null
+                                ? STR.get("roles.list.updated.until", expiresAt / 1000)
+                                : STR.get("roles.list.updated"), 0x11d011));
     }
 
-    private void rm(Input input, ResponseTarget replyTo) {
+    /**
+     * Also checks that timed roles can be granted, so a slash command fails before it is deferred
+     */
+    @Nullable
+    private Long parseDuration(@Nullable String str) {
+        if (str == null) return null;
+        final long res;
+        try {
+            res = RoleExpiry.parseDuration(str);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSyntaxException(STR.get("roles.err.duration"), this);
+        }
+        if (!RoleExpiry.getInstance(getBot()).isRunning())
+            throw new DescribedException(STR.get("roles.err.expiry"));
+        return res;
+    }
+
+    private void rm(Input input, Reply replyTo) {
         final List<String> argList = input.getCommandLine().getArgList();
         final LinkedList<Integer> roles = parseIds(input);
         final int idx = roles.size() + 1;
         final String disId = getDisId(argList, idx);
-        final PlayersDB db = PlayersDB.getInstance(getBot());
-
-        final PlayerProfile player = db.rmRoles(disId, roles);
-
-        final LinkedList<PlayerCharacter> chars = db
-                .rmRolesFromCharactersByDisId(player.getDsId(), roles);
+        rm(roles, disId, replyTo);
+    }
 
-        printProfiles(player, chars, replyTo, STR.get("roles.list.updated"), 0x11d011);
+    private void rm(List<Integer> roles, String disId, Reply replyTo) {
+        final RoleExpiry expiry = RoleExpiry.getInstance(getBot());
+        final CompletableFuture<PlayerInfo> future = getDb().rmRoles(disId, roles,
+                expiry.isRunning() ? expiry.cancel(roles) : null);
+        onComplete(replyTo, future, info ->
+                printProfiles(info.getProfile(), info.getCharacters(), replyTo, STR.get("roles.list.updated"), 0x11d011));
     }
 
-    private void list(Input input, ResponseTarget replyTo) {
+    private void list(Input input, Reply replyTo, MessageReceivedEvent event) {
         final List<String> argList = input.getCommandLine().getArgList();
 
+        final String export = input.getCommandLine().getOptionValue("e");
+        if (export != null) {
+            final Integer role = argList.size() < 2 ? null : parseRole(argList.get(1));
+            exportRoster(role, parseExportFormat(export), replyTo,
+                    (file, name) -> event.getChannel().sendFile(file, name));
+            return;
+        }
+
         if (argList.size() < 2) {
             listRoles(replyTo);
             return;
@@ -149,76 +251,506 @@ public class Roles extends RGCommandAdapter {
         }
     }
 
-    private void listByRole(int role, ResponseTarget replyTo) {
-        final PlayersDB db = PlayersDB.getInstance(getBot());
-        final LinkedList<PlayerProfile> players = db.getPlayersWithRole(role);
+    private int parseRole(String str) {
+        if (!str.matches("[\\-+]?\\d+"))
+            throw new InvalidSyntaxException(STR.get("roles.err.list"), this);
+        return Integer.parseInt(str);
+    }
 
-        final ArrayList<String> strings = new ArrayList<>();
-        for (PlayerProfile player : players) {
-            LinkedList<PlayerCharacter> chars = db.getPlayerCharacters(player.getSteamId());
+    private RosterExport.Format parseExportFormat(String str) {
+        try {
+            return RosterExport.Format.valueOf(str.strip().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSyntaxException(STR.get("roles.err.export"), this);
+        }
+    }
+
+    /**
+     * Writes the roster into a temporary file and sends it as a single attachment
+     * @param role players with the role, or everyone if null
+     */
+    private void exportRoster(@Nullable Integer role, RosterExport.Format format, Reply replyTo,
+                              BiFunction<File, String, RestAction<?>> send) {
+        final String name = "roster%s.%s".formatted(role != null ? "-" + role : "", format.getExtension());
+        final CompletableFuture<File> future = supplyBulk(() -> {
+            File file = null;
+            boolean done = false;
+            try {
+                file = File.createTempFile("roster", "." + format.getExtension());
+                try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                    new RosterExport(getDb().getSync()).write(role, format, out);
+                }
+                if (file.length() > EXPORT_MAX_SIZE)
+                    file = gzip(file);
+                // The limit is on what is uploaded
+                if (file.length() > EXPORT_MAX_SIZE)
+                    throw new DescribedException(STR.get("roles.err.export.size", EXPORT_MAX_SIZE >> 20));
+                done = true;
+                return file;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                if (!done && file != null) file.delete();
+            }
+        });
+
+        onComplete(replyTo, future, file -> {
+            final String fileName = file.getName().endsWith(".gz") ? name + ".gz" : name;
+            try {
+                send.apply(file, fileName).queue(m -> file.delete(), e -> {
+                    file.delete();
+                    replyError(replyTo, e);
+                });
+            } catch (RuntimeException e) {
+                file.delete();
+                throw e;
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> supplyBulk(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, bulkExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(
+                    new DescribedException(STR.get("ply.err.busy.title"), STR.get("ply.err.busy")));
+        }
+    }
+
+    private static File gzip(File file) throws IOException {
+        final File res = new File(file.getPath() + ".gz");
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(res))) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            res.delete();
+            throw e;
+        } finally {
+            file.delete();
+        }
+        return res;
+    }
+
+    private void listByRole(int role, Reply replyTo) {
+        onComplete(replyTo, getDb().getPlayersWithRoleAndCharacters(role), players -> printRoster(players, replyTo));
+    }
+
+    private void printRoster(List<PlayerInfo> players, Reply replyTo) {
+        final ArrayList<String> strings = new ArrayList<>(players.size());
+        for (PlayerInfo info : players) {
+            final PlayerProfile player = info.getProfile();
             StringBuilder sb = new StringBuilder("<@%s> (%s) %s".formatted(
                     player.getDsId(), player.getSteamId(), PlayersDB.setToString(player.getRoles())));
-            for (PlayerCharacter c : chars)
+            for (PlayerCharacter c : info.getCharacters())
                 sb.append("\n:arrow_forward: %s (%s) %s".formatted(
                         c.getName(), c.getSide(), PlayersDB.setToString(c.getRoles())));
             strings.add(sb.toString());
         }
 
-        MessageBatch.sendNow(replyTo.respondEmbeds(MessageSplitter.embeds(
+        replyTo.embeds(MessageSplitter.embeds(
                 String.join("\n", strings),
                 new EmbedBuilder()
                         .setTitle(STR.get("roles.list.with_role"))
                         .setColor(0x1111d0)
-                        .build())));
+                        .build()));
     }
 
-    private void listBySteamId(String steamId, ResponseTarget replyTo) {
-        final PlayersDB db = PlayersDB.getInstance(getBot());
-        final PlayerProfile player = db.getPlayer(steamId);
-        final LinkedList<PlayerCharacter> chars = db.getPlayerCharacters(player.getSteamId());
-        printProfiles(player, chars, replyTo, STR.get("roles.list.title"), 0x1111d0);
+    private void listBySteamId(String steamId, Reply replyTo) {
+        final CompletableFuture<PlayerInfo> future = getDb().submit(db -> {
+            final PlayerProfile player = db.getPlayer(steamId);
+            return new PlayerInfo(player, db.getPlayerCharacters(player.getSteamId()));
+        });
+        onComplete(replyTo, future, info ->
+                printProfiles(info.getProfile(), info.getCharacters(), replyTo, STR.get("roles.list.title"), 0x1111d0));
     }
 
-    private void listByDisId(String disId, ResponseTarget replyTo) {
-        final PlayersDB db = PlayersDB.getInstance(getBot());
-        final PlayerProfile player = db.getPlayerByDisId(disId);
-        final LinkedList<PlayerCharacter> chars = db.getPlayerCharactersByDisId(disId);
-        printProfiles(player, chars, replyTo, STR.get("roles.list.title"), 0x1111d0);
+    private void listByDisId(String disId, Reply replyTo) {
+        onComplete(replyTo, getDb().getPlayerWithCharactersByDisId(disId), info ->
+                printProfiles(info.getProfile(), info.getCharacters(), replyTo, STR.get("roles.list.title"), 0x1111d0));
     }
 
-    private void listRoles(ResponseTarget replyTo) {
-        final HashMap<Integer, String> roles = new HashMap<>();
-        final ArrayList<Integer> ids = new ArrayList<>();
-        RgRoles.getKnownRoles().forEach((name, id) -> {
-            if (!roles.containsKey(id)) {
-                roles.put(id, name);
-                ids.add(id);
-            }
-        });
-
-        ids.sort(Integer::compareTo);
-        final String content = String.join("\n",
-                ids.stream()
-                        .map(id -> "`%d`: %s".formatted(id, roles.get(id)))
-                        .toList());
+    private void listRoles(Reply replyTo) {
+        final RgRoles.Snapshot roles = RgRoles.getSnapshot();
+        final StringBuilder sb = new StringBuilder(roles.size() * 24);
+        for (int i = 0; i < roles.size(); i++) {
+            if (i > 0) sb.append('\n');
+            sb.append('`').append(roles.getId(i)).append("`: ").append(roles.getName(i));
+        }
+        final String content = sb.toString();
 
-        MessageBatch.sendNow(replyTo.respondEmbeds(MessageSplitter.embeds(
+        replyTo.embeds(MessageSplitter.embeds(
                 content,
                 new EmbedBuilder()
                         .setTitle(STR.get("roles.list.known"))
                         .setColor(0x1111d0)
                         .build()
-        )));
+        ));
     }
 
-    private void bind(Input input, ResponseTarget replyTo) {
+    private void history(Input input, Reply replyTo) {
+        final List<String> argList = input.getCommandLine().getArgList();
+        if (argList.size() < 2)
+            throw InvalidSyntaxException.insufficientArgs(STR.get("roles.err.list"), this);
+
+        final AuditJournal journal = getJournal();
+        try {
+            history(journal, getDisId(argList, 1), null, null, replyTo);
+        } catch (InvalidSyntaxException ignored1) {
+            try {
+                history(journal, null, getSteamId(argList, 1), null, replyTo);
+            } catch (InvalidSyntaxException ignored2) {
+                history(journal, null, null, parseRole(argList.get(1)), replyTo);
+            }
+        }
+    }
+
+    private AuditJournal getJournal() {
+        final AuditJournal journal = getDb().getSync().getJournal();
+        if (journal == null)
+            throw new DescribedException(STR.get("roles.err.history"));
+        return journal;
+    }
+
+    /**
+     * Recent role changes of a player (by Discord or Steam id) or of a role
+     */
+    private void history(AuditJournal journal, @Nullable String disId, @Nullable String steamId,
+                         @Nullable Integer role, Reply replyTo) {
+        final CompletableFuture<List<AuditJournal.Entry>> future = getDb().submit(db -> {
+            if (role != null)
+                return journal.getRoleHistory(role, HISTORY_LIMIT);
+            final String uid = steamId != null ? steamId : db.getPlayerByDisId(disId).getSteamId();
+            return journal.getPlayerHistory(uid, HISTORY_LIMIT);
+        });
+        onComplete(replyTo, future, entries -> {
+            final ArrayList<String> strings = new ArrayList<>(entries.size());
+            for (AuditJournal.Entry e : entries) {
+                final String actor = e.getActor().matches("\\d+") ? "<@%s>".formatted(e.getActor()) : e.getActor();
+                final String target = e.getCharId() != 0
+                        ? STR.get("roles.history.char", e.getSteamId(), e.getCharId())
+                        : e.getSteamId();
+                final RoleSet before = e.getBefore();
+                strings.add(STR.get("roles.history.entry", e.getTime() / 1000, actor, target,
+                        before != null ? PlayersDB.setToString(before) : "?", PlayersDB.setToString(e.getAfter())));
+            }
+
+            replyTo.embeds(MessageSplitter.embeds(
+                    strings.isEmpty() ? STR.get("roles.history.empty") : String.join("\n", strings),
+                    new EmbedBuilder()
+                            .setTitle(STR.get("roles.history.title"))
+                            .setColor(0x1111d0)
+                            .build()));
+        });
+    }
+
+    private void stats(ActivityStats.Period period, Reply replyTo) {
+        final ActivityStats stats = ActivityStats.getInstance(getBot());
+        onComplete(replyTo, getDb().submit(db -> stats.get(period)), buckets -> {
+            final ArrayList<String> strings = new ArrayList<>(buckets.size());
+            for (ActivityStats.Bucket b : buckets) {
+                final StringJoiner sides = new StringJoiner(", ");
+                b.getBySide().forEach((side, n) ->
+                        sides.add("%s: %d".formatted(side.isEmpty() ? "?" : side, n)));
+                strings.add(STR.get("roles.stats.line", b.getStart(), b.getTotal(), sides));
+            }
+
+            replyTo.embeds(MessageSplitter.embeds(
+                    strings.isEmpty() ? STR.get("roles.stats.empty") : String.join("\n", strings),
+                    new EmbedBuilder()
+                            .setTitle(STR.get(period == ActivityStats.Period.WEEK
+                                    ? "roles.stats.title.week" : "roles.stats.title.day"))
+                            .setColor(0x1111d0)
+                            .build()));
+        });
+    }
+
+    private void bind(Input input, Reply replyTo) {
         final List<String> argList = input.getCommandLine().getArgList();
         final String disId = getDisId(argList, 1);
         final String steamId = getSteamId(argList, 2);
-        final PlayersDB db = PlayersDB.getInstance(getBot());
+        bind(disId, steamId, replyTo);
+    }
+
+    private void bind(String disId, String steamId, Reply replyTo) {
+        onComplete(replyTo, getDb().bindPlayer(steamId, disId), v -> replyTo.ok());
+    }
+
+    @Override
+    public void onSlashCommand(SlashCommandInteractionEvent event) {
+        AuditJournal.runAs(event.getUser().getId(), () -> {
+            try {
+                slashCommand(event);
+            } catch (RuntimeException e) {
+                // Once deferred, only the hook can replace "thinking..."
+                if (!event.isAcknowledged()) throw e;
+                replyError(new Reply(new ResponseTarget(event), event.getHook()), e);
+            }
+        });
+    }
+
+    /**
+     * Every path that touches the database defers first, once its options are parsed and checked,
+     * and then answers through the interaction hook
+     */
+    private void slashCommand(SlashCommandInteractionEvent event) {
+        switch (Objects.requireNonNull(event.getSubcommandName())) {
+            case "add" -> add(List.of(getRoleOption(event)), getUserOption(event),
+                    getSteamIdOption(event), getScopeOption(event),
+                    parseDuration(event.getOption("duration", OptionMapping::getAsString)), defer(event));
+            case "rm" -> rm(List.of(getRoleOption(event)), getUserOption(event), defer(event));
+            case "list" -> {
+                final String steamId = getSteamIdOption(event);
+                final String export = event.getOption("export", OptionMapping::getAsString);
+                if (export != null) {
+                    final Integer role = event.getOption("role") != null ? getRoleOption(event) : null;
+                    final Reply replyTo = defer(event);
+                    exportRoster(role, RosterExport.Format.valueOf(export), replyTo,
+                            (file, name) -> event.getHook().editOriginal(file, name));
+                } else if (event.getOption("user") != null)
+                    listByDisId(getUserOption(event), defer(event));
+                else if (steamId != null)
+                    listBySteamId(steamId, defer(event));
+                else if (event.getOption("role") != null)
+                    listByRole(getRoleOption(event), defer(event));
+                else listRoles(new Reply(new ResponseTarget(event), null));
+            }
+            case "bind" -> {
+                final String steamId = getSteamIdOption(event);
+                if (steamId == null)
+                    throw new InvalidSyntaxException(STR.get("roles.err.steamid"), this);
+                bind(getUserOption(event), steamId, defer(event));
+            }
+            case "known" -> known(Objects.requireNonNull(event.getOption("id", OptionMapping::getAsInt)),
+                    Objects.requireNonNull(event.getOption("name", OptionMapping::getAsString)), defer(event));
+            case "import" -> importFile(event);
+            case "stats" -> {
+                final String period = event.getOption("period", OptionMapping::getAsString);
+                stats(period != null ? ActivityStats.Period.valueOf(period) : ActivityStats.Period.DAY, defer(event));
+            }
+            case "history" -> {
+                final String steamId = getSteamIdOption(event);
+                final AuditJournal journal = getJournal();
+                if (event.getOption("user") != null)
+                    history(journal, getUserOption(event), null, null, defer(event));
+                else if (steamId != null)
+                    history(journal, null, steamId, null, defer(event));
+                else if (event.getOption("role") != null)
+                    history(journal, null, null, getRoleOption(event), defer(event));
+                else throw new InvalidSyntaxException(STR.get("roles.err.list"), this);
+            }
+            default -> throw new IllegalArgumentException();
+        }
+    }
+
+    private static Reply defer(SlashCommandInteractionEvent event) {
+        event.deferReply().queue();
+        return new Reply(new ResponseTarget(event), event.getHook());
+    }
+
+    private void importFile(SlashCommandInteractionEvent event) {
+        final Message.Attachment file = Objects.requireNonNull(event.getOption("file", OptionMapping::getAsAttachment));
+        if (file.getSize() > IMPORT_MAX_SIZE)
+            throw new DescribedException(STR.get("roles.import.err.size", IMPORT_MAX_SIZE >> 20));
+        final PlayersImport.Format format = PlayersImport.Format.byFileName(file.getFileName());
+
+        final Reply replyTo = defer(event);
+        final InteractionHook hook = event.getHook();
+        final String actor = AuditJournal.currentActor();
+        // The attachment is downloaded only once the bulk executor has taken the task, a busy one says so
+        final CompletableFuture<PlayersImport.Report> future = supplyBulk(() -> AuditJournal.callAs(actor, () -> {
+            final long[] lastProgress = {System.currentTimeMillis()};
+            try (InputStream in = file.retrieveInputStream().join()) {
+                return new PlayersImport(getDb().getSync()).run(in, format, rows -> {
+                    final long now = System.currentTimeMillis();
+                    if (now - lastProgress[0] < IMPORT_PROGRESS_INTERVAL) return;
+                    lastProgress[0] = now;
+                    hook.editOriginal(STR.get("roles.import.progress", rows)).queue();
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }));
+
+        onComplete(replyTo, future, report -> {
+            WebhookMessageUpdateAction<Message> action = hook.editOriginal("").setEmbeds(new EmbedBuilder()
+                    .setTitle(STR.get("roles.import.title"))
+                    .setDescription(STR.get("roles.import.done", report.getRows(), report.getImported(),
+                            report.getErrors(), report.getMillis() / 1000.0))
+                    .setColor(report.getErrors() > 0 ? 0xd0a011 : 0x11d011)
+                    .build());
+            if (report.getErrors() > 0)
+                action = action.addFile(report.getErrorReport().getBytes(StandardCharsets.UTF_8), "import-errors.txt");
+            action.queue();
+        });
+    }
+
+    @Override
+    public void onSlashCommandAutoComplete(CommandAutoCompleteInteractionEvent event) {
+        final ArrayList<Command.Choice> choices = new ArrayList<>(OptionData.MAX_CHOICES);
+        if (RgPermissions.canManagePlayers(getContext(), event.getMember())) {
+            final AutoCompleteQuery query = event.getFocusedOption();
+            switch (query.getName()) {
+                case "role" -> {
+                    final RgRoles.Snapshot roles = RgRoles.getSnapshot();
+                    for (int id : roles.search(query.getValue(), OptionData.MAX_CHOICES))
+                        choices.add(new Command.Choice(
+                                truncate("%s (%d)".formatted(roles.getNameById(id), id)), String.valueOf(id)));
+                }
+                case "steamid" -> {
+                    for (PlayerSearch.Entry e : PlayerSearch.getInstance(getBot())
+                            .search(query.getValue(), OptionData.MAX_CHOICES))
+                        choices.add(new Command.Choice(e.getLabel(), e.getSteamId()));
+                }
+            }
+        }
+        event.replyChoices(choices).queue();
+    }
+
+    private int getRoleOption(SlashCommandInteractionEvent event) {
+        final String value = Objects.requireNonNull(event.getOption("role", OptionMapping::getAsString)).strip();
+        if (value.matches("[\\-+]?\\d+"))
+            return Integer.parseInt(value);
+        return RgRoles.getRoleId(value);
+    }
 
-        db.bindPlayer(steamId, disId);
-        replyTo.setOK();
+    private String getUserOption(SlashCommandInteractionEvent event) {
+        return Objects.requireNonNull(event.getOption("user", OptionMapping::getAsUser)).getId();
+    }
+
+    @Nullable
+    private String getSteamIdOption(SlashCommandInteractionEvent event) {
+        final String steamId = event.getOption("steamid", OptionMapping::getAsString);
+        if (steamId == null) return null;
+        if (!steamId.strip().matches(STEAM_ID_REGEX))
+            throw new InvalidSyntaxException(STR.get("roles.err.steamid"), this);
+        return steamId.strip();
+    }
+
+    private PlayersDB.Characters getScopeOption(SlashCommandInteractionEvent event) {
+        final String scope = event.getOption("scope", OptionMapping::getAsString);
+        if (scope == null) return PlayersDB.Characters.LAST_ACTIVE;
+        return PlayersDB.Characters.valueOf(scope);
+    }
+
+    private static String truncate(String s) {
+        return s.length() > OptionData.MAX_CHOICE_NAME_LENGTH ? s.substring(0, OptionData.MAX_CHOICE_NAME_LENGTH) : s;
+    }
+
+    @Override
+    public SlashCommandData getSlashCommand() {
+        final OptionData role = new OptionData(OptionType.STRING, "role", STR.get("roles.opt.role"), true, true);
+        final OptionData user = new OptionData(OptionType.USER, "user", STR.get("roles.opt.user"), true);
+        final OptionData steamId = new OptionData(OptionType.STRING, "steamid", STR.get("roles.opt.steamid"), false, true);
+
+        return Commands.slash(getName(), getShortDesc()).addSubcommands(
+                new SubcommandData("add", STR.get("roles.slash.add")).addOptions(role, user, steamId,
+                        new OptionData(OptionType.STRING, "scope", STR.get("roles.opt.scope"), false)
+                                .addChoice(STR.get("roles.opt.scope.last"), PlayersDB.Characters.LAST_ACTIVE.name())
+                                .addChoice(STR.get("roles.opt.scope.all"), PlayersDB.Characters.ALL.name())
+                                .addChoice(STR.get("roles.opt.scope.none"), PlayersDB.Characters.NONE.name()),
+                        new OptionData(OptionType.STRING, "duration", STR.get("roles.opt.duration"), false)),
+                new SubcommandData("rm", STR.get("roles.slash.rm")).addOptions(role, user),
+                new SubcommandData("list", STR.get("roles.slash.list")).addOptions(
+                        new OptionData(OptionType.USER, "user", STR.get("roles.opt.user"), false),
+                        steamId,
+                        new OptionData(OptionType.STRING, "role", STR.get("roles.opt.role"), false, true),
+                        new OptionData(OptionType.STRING, "export", STR.get("roles.opt.export"), false)
+                                .addChoice("CSV", RosterExport.Format.CSV.name())
+                                .addChoice("NDJSON", RosterExport.Format.NDJSON.name())),
+                new SubcommandData("bind", STR.get("roles.slash.bind")).addOptions(user,
+                        new OptionData(OptionType.STRING, "steamid", STR.get("roles.opt.steamid"), true, true)),
+                new SubcommandData("known", STR.get("roles.slash.known")).addOptions(
+                        new OptionData(OptionType.INTEGER, "id", STR.get("roles.opt.id"), true),
+                        new OptionData(OptionType.STRING, "name", STR.get("roles.opt.name"), true)),
+                new SubcommandData("import", STR.get("roles.slash.import")).addOptions(
+                        new OptionData(OptionType.ATTACHMENT, "file", STR.get("roles.opt.file"), true)),
+                new SubcommandData("stats", STR.get("roles.slash.stats")).addOptions(
+                        new OptionData(OptionType.STRING, "period", STR.get("roles.opt.period"), false)
+                                .addChoice(STR.get("roles.opt.period.day"), ActivityStats.Period.DAY.name())
+                                .addChoice(STR.get("roles.opt.period.week"), ActivityStats.Period.WEEK.name())),
+                new SubcommandData("history", STR.get("roles.slash.history")).addOptions(
+                        new OptionData(OptionType.USER, "user", STR.get("roles.opt.user"), false),
+                        steamId,
+                        new OptionData(OptionType.STRING, "role", STR.get("roles.opt.role"), false, true))
+        );
+    }
+
+    @Override
+    public boolean isGlobal() {
+        return false;
+    }
+
+    /**
+     * Where a command answers: the response target of a message command,
+     * or the hook of a deferred slash command
+     */
+    private static final class Reply {
+        final ResponseTarget target;
+        @Nullable
+        final InteractionHook hook;
+
+        Reply(ResponseTarget target, @Nullable InteractionHook hook) {
+            this.target = target;
+            this.hook = hook;
+        }
+
+        void embeds(List<MessageEmbed> embeds) {
+            if (hook == null) {
+                MessageBatch.sendNow(target.respondEmbeds(embeds));
+                return;
+            }
+            if (embeds.isEmpty()) {
+                ok();
+                return;
+            }
+            // The deferred reply is replaced with the first embed, the rest go as follow-ups
+            hook.editOriginalEmbeds(embeds.get(0)).queue();
+            for (MessageEmbed e : embeds.subList(1, embeds.size()))
+                hook.sendMessageEmbeds(e).queue();
+        }
+
+        void ok() {
+            if (hook == null) target.setOK();
+            else hook.editOriginalEmbeds(new EmbedBuilder()
+                    .setDescription(STR.get("roles.ok"))
+                    .setColor(0x11d011)
+                    .build()).queue();
+        }
+    }
+
+    private PlayersDBAsync getDb() {
+        return PlayersDBAsync.getInstance(getBot());
+    }
+
+    private <T> void onComplete(Reply replyTo, CompletableFuture<T> future, Consumer<T> then) {
+        future.whenCompleteAsync((res, e) -> {
+            try {
+                if (e instanceof CompletionException && e.getCause() != null)
+                    throw e.getCause();
+                if (e != null) throw e;
+                then.accept(res);
+            } catch (Throwable t) {
+                replyError(replyTo, t);
+            }
+        }, getBot().getJda().getCallbackPool());
+    }
+
+    /**
+     * A deferred slash command has already been answered with "thinking...", so the error replaces it
+     */
+    private void replyError(Reply replyTo, Throwable t) {
+        if (replyTo.hook == null) {
+            getErrorReporter().reportError(replyTo.target, t);
+            return;
+        }
+        if (!(t instanceof DescribedException))
+            getErrorReporter().reportError(null, t);
+        replyTo.hook.editOriginalEmbeds(new EmbedBuilder()
+                .setTitle(STR.get("roles.err.title"))
+                .setDescription(t instanceof DescribedException ? t.getMessage() : STR.get("roles.err.unknown"))
+                .setColor(ResponseTarget.WARNING_COLOR)
+                .build()).queue();
     }
 
     private String getDisId(List<String> argList, int idx) {
@@ -238,7 +770,7 @@ public class Roles extends RGCommandAdapter {
             return null;
         final String steamId = argList.get(idx);
 
-        if (!steamId.matches("7656\\d+"))
+        if (!steamId.matches(STEAM_ID_REGEX))
             throw InvalidSyntaxException.argument(idx + 1, STR.get("roles.err.steamid"), this);
 
         return steamId;
@@ -263,7 +795,9 @@ public class Roles extends RGCommandAdapter {
     public Options getOptions() {
         return new Options()
                 .addOption("a", "all", false, STR.get("roles.opt.all"))
-                .addOption("A", "allow-only", false, STR.get("roles.opt.allow_only"));
+                .addOption("A", "allow-only", false, STR.get("roles.opt.allow_only"))
+                .addOption("e", "export", true, STR.get("roles.opt.export"))
+                .addOption("t", "time", true, STR.get("roles.opt.duration"));
     }
 
     @Override
@@ -293,7 +827,9 @@ public class Roles extends RGCommandAdapter {
                 .addRoute("rm")
                 .addRoute("list")
                 .addRoute("bind")
-                .addRoute("known");
+                .addRoute("known")
+                .addRoute("history")
+                .addRoute("stats");
     }
 
     @Override
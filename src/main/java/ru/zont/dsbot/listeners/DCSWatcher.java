@@ -30,6 +30,13 @@ public class DCSWatcher extends DisplayedWatcherAdapter {
         }
     }
 
+    @Override
+    public void update() {
+        // Until the first fetch completes every server would be shown as missing, keep the old messages instead
+        if (DCSData.getSnapshot().getVersion() == 0) return;
+        super.update();
+    }
+
     @Override
     public @NotNull List<MessageEmbed> getMessages() {
         final List<DCSData.ServerData> serverData = servers.getList().stream()
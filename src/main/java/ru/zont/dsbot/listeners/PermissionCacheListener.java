@@ -0,0 +1,46 @@
+package ru.zont.dsbot.listeners;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.guild.member.GenericGuildMemberEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.dv8tion.jda.api.events.guild.update.GuildUpdateOwnerEvent;
+import net.dv8tion.jda.api.events.role.RoleDeleteEvent;
+import net.dv8tion.jda.api.events.role.update.RoleUpdatePermissionsEvent;
+import ru.zont.dsbot.core.GuildContext;
+import ru.zont.dsbot.core.ZDSBot;
+import ru.zont.dsbot.core.listeners.GuildListenerAdapter;
+import ru.zont.dsbot.util.PermissionCache;
+
+import java.util.Set;
+
+/**
+ * Drops {@link PermissionCache} entries that guild events make stale
+ */
+public class PermissionCacheListener extends GuildListenerAdapter {
+    private final PermissionCache cache;
+
+    public PermissionCacheListener(ZDSBot bot, GuildContext context) {
+        super(bot, context);
+        cache = PermissionCache.getInstance(bot);
+    }
+
+    @Override
+    public void onEvent(Guild guild, GenericEvent event) {
+        if (event instanceof GenericGuildMemberEvent e)
+            cache.invalidate(guild.getIdLong(), e.getMember().getIdLong());
+        else if (event instanceof GuildMemberRemoveEvent e)
+            cache.invalidate(guild.getIdLong(), e.getUser().getIdLong());
+        else cache.invalidateGuild(guild.getIdLong());
+    }
+
+    @Override
+    public Set<Class<? extends GenericEvent>> getTypes() {
+        return Set.of(GuildMemberRoleAddEvent.class, GuildMemberRoleRemoveEvent.class,
+                GuildMemberJoinEvent.class, GuildMemberRemoveEvent.class,
+                RoleUpdatePermissionsEvent.class, RoleDeleteEvent.class, GuildUpdateOwnerEvent.class);
+    }
+}
@@ -0,0 +1,366 @@
+package ru.zont.dsbot.listeners;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.guild.member.GenericGuildMemberEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.dv8tion.jda.api.exceptions.ErrorResponseException;
+import net.dv8tion.jda.api.exceptions.HierarchyException;
+import net.dv8tion.jda.api.exceptions.InsufficientPermissionException;
+import net.dv8tion.jda.api.requests.ErrorResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.zont.dsbot.ConfigRG;
+import ru.zont.dsbot.core.GuildContext;
+import ru.zont.dsbot.core.ZDSBot;
+import ru.zont.dsbot.core.listeners.GuildListenerAdapter;
+import ru.zont.dsbot.players.AuditJournal;
+import ru.zont.dsbot.players.PlayerProfile;
+import ru.zont.dsbot.players.PlayersDB;
+import ru.zont.dsbot.players.RoleSet;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps guild roles in sync with the {@code p_roles} of bound profiles.
+ * Mapping comes from {@code roleSyncMapping}: entries like {@code <rg role id>:<discord role id>}.
+ * <p>
+ * The database is authoritative: a full pass at startup pushes it to Discord, retried until it succeeds.
+ * After that, mapped roles given or taken on Discord are written to the profile,
+ * and profile writes are pushed back to Discord. Both directions only apply the diff.
+ * Role events caused by the bot's own pushes are ignored: such an event may arrive after
+ * the profile has been changed again, and would write a stale role back.
+ */
+public class RoleSyncListener extends GuildListenerAdapter implements PlayersDB.ProfileListener {
+    private static final Logger log = LoggerFactory.getLogger(RoleSyncListener.class);
+    private static final long DRAIN_INTERVAL = 2000;
+    private static final String ACTOR = "role-sync";
+    /** Members synced per drain. Every push waits for its rate limit bucket, so this bounds one drain's length */
+    private static final int BATCH_SIZE = 10;
+    /** How long an event caused by the bot's own push is expected for */
+    private static final long ECHO_TIMEOUT = 60_000;
+    private static final long RETRY_DELAY = 10_000;
+    private static final long MAX_RETRY_DELAY = 10 * 60_000;
+
+    private final PlayersDB db;
+    private final ScheduledExecutorService executor;
+    private final LinkedHashSet<String> pending = new LinkedHashSet<>();
+    /** Pushes whose events are still expected: {@code <member id>:<role id>:<+|->} to deadline */
+    private final ConcurrentHashMap<String, Long> echoes = new ConcurrentHashMap<>();
+    private volatile Mapping mapping;
+    private boolean started = false;
+    private volatile boolean ready = false;
+    /** Full pass scheduled after a failed one */
+    private volatile ScheduledFuture<?> retry;
+    /** Sync thread only */
+    private long retryDelay = RETRY_DELAY;
+
+    public RoleSyncListener(ZDSBot bot, GuildContext context) {
+        super(bot, context);
+        db = PlayersDB.getInstance(bot);
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "RoleSync");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public boolean init(Guild guild) {
+        super.init(guild);
+        mapping = null;
+        if (getMapping().isEmpty()) {
+            log.info(getContext().formatLog("Role sync mapping is empty, disabling"));
+            return true;
+        }
+
+        if (!started) {
+            started = true;
+            db.addProfileListener(this);
+            executor.scheduleWithFixedDelay(this::drain, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        final ScheduledFuture<?> r = retry;
+        if (r != null)
+            r.cancel(false);
+        executor.execute(this::fullPass);
+        return true;
+    }
+
+    /**
+     * @return whether the full pass has succeeded. Until then, neither role events nor profile writes are synced.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void onEvent(Guild guild, GenericEvent event) {
+        if (!ready) return;
+        try {
+            if (event instanceof GuildMemberRoleAddEvent e)
+                onRolesChanged(e, e.getRoles(), true);
+            else if (event instanceof GuildMemberRoleRemoveEvent e)
+                onRolesChanged(e, e.getRoles(), false);
+        } catch (Exception e) {
+            getErrorReporter().reportError(null, e);
+        }
+    }
+
+    /**
+     * Maps the roles on the event thread and writes them on the sync thread, in event order
+     */
+    private void onRolesChanged(GenericGuildMemberEvent event, List<Role> roles, boolean added) {
+        if (event.getUser().isBot()) return;
+        final Map<String, Integer> reverse = getMappingEntry().reverse;
+        final String disId = event.getMember().getId();
+
+        final ArrayList<Integer> changed = new ArrayList<>();
+        for (Role role : roles) {
+            final Integer rgRole = reverse.get(role.getId());
+            if (rgRole != null && !isEcho(disId, role, added)) changed.add(rgRole);
+        }
+        if (changed.isEmpty()) return;
+
+        executor.execute(() -> {
+            try {
+                writeRoles(disId, changed, added);
+            } catch (PlayersDB.PlayerNotBoundException ignored) {
+            } catch (Exception e) {
+                getErrorReporter().reportError(null, e);
+            }
+        });
+    }
+
+    private boolean isEcho(String disId, Role role, boolean added) {
+        final Long deadline = echoes.remove(echoKey(disId, role, added));
+        return deadline != null && deadline > System.currentTimeMillis();
+    }
+
+    private static String echoKey(String disId, Role role, boolean added) {
+        return disId + ':' + role.getId() + (added ? ":+" : ":-");
+    }
+
+    private void writeRoles(String disId, List<Integer> changed, boolean added) {
+        final PlayerProfile profile = db.getPlayerByDisId(disId);
+        final RoleSet roleSet = profile.getRoles();
+        changed.removeIf(r -> roleSet.contains(r) == added);
+        if (changed.isEmpty()) return;
+
+        log.info(getContext().formatLog("Discord roles of {} changed, {} {} in DB"),
+                disId, added ? "adding" : "removing", changed);
+        AuditJournal.runAs(ACTOR, () -> {
+            if (added)
+                db.addRoles(profile.getSteamId(), disId, changed, PlayersDB.Characters.NONE);
+            else db.rmRoles(disId, changed, PlayersDB.Characters.NONE);
+        });
+    }
+
+    @Override
+    public void onProfileChanged(PlayerProfile profile) {
+        if (!ready || profile == null || profile.getDsId() == null) return;
+        synchronized (pending) {
+            pending.add(profile.getDsId());
+        }
+    }
+
+    @Override
+    public void onProfilesChanged(List<PlayerProfile> profiles) {
+        if (!ready) return;
+        synchronized (pending) {
+            for (PlayerProfile profile : profiles)
+                if (profile.getDsId() != null) pending.add(profile.getDsId());
+        }
+    }
+
+    private void fullPass() {
+        final Guild guild = getContext().getGuild();
+        final Map<Integer, Role> mapping = getMapping();
+        if (mapping.isEmpty()) return;
+
+        final long start = System.currentTimeMillis();
+        try {
+            final HashMap<String, PlayerProfile> profiles = db.getBoundProfiles();
+            final ArrayList<String> toSync = new ArrayList<>();
+            final int[] members = {0};
+            guild.loadMembers(member -> {
+                members[0]++;
+                final PlayerProfile profile = profiles.get(member.getId());
+                if (profile != null && !diff(member, profile, mapping).isEmpty())
+                    toSync.add(member.getId());
+            }).get();
+
+            synchronized (pending) {
+                pending.addAll(toSync);
+            }
+            ready = true;
+            retry = null;
+            retryDelay = RETRY_DELAY;
+            log.info(getContext().formatLog("Role sync: {} members checked, {} out of sync, {} ms"),
+                    members[0], toSync.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            final long delay = retryDelay;
+            retryDelay = Math.min(MAX_RETRY_DELAY, delay * 2);
+            if (ready)
+                log.error(getContext().formatLog("Role sync full pass failed, retrying in {} s"), delay / 1000, e);
+            else log.error(getContext().formatLog("Role sync full pass failed, sync is off until it succeeds, "
+                    + "retrying in {} s"), delay / 1000, e);
+            retry = executor.schedule(this::fullPass, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void drain() {
+        final ArrayList<String> batch = new ArrayList<>(BATCH_SIZE);
+        synchronized (pending) {
+            final Iterator<String> it = pending.iterator();
+            while (it.hasNext() && batch.size() < BATCH_SIZE) {
+                batch.add(it.next());
+                it.remove();
+            }
+        }
+        final long now = System.currentTimeMillis();
+        echoes.values().removeIf(deadline -> deadline <= now);
+        if (batch.isEmpty()) return;
+
+        final Guild guild = getContext().getGuild();
+        final Map<Integer, Role> mapping = getMapping();
+        for (String disId : batch) {
+            try {
+                sync(guild, disId, mapping);
+            } catch (ErrorResponseException e) {
+                if (e.getErrorResponse() != ErrorResponse.UNKNOWN_MEMBER)
+                    log.warn(getContext().formatLog("Cannot sync roles of {}: {}"), disId, e.getMessage());
+            } catch (HierarchyException | InsufficientPermissionException e) {
+                log.warn(getContext().formatLog("Cannot sync roles of {}: {}"), disId, e.getMessage());
+            } catch (PlayersDB.PlayerNotBoundException ignored) {
+            } catch (Exception e) {
+                log.error(getContext().formatLog("Role sync failed for {}"), disId, e);
+            }
+        }
+    }
+
+    private void sync(Guild guild, String disId, Map<Integer, Role> mapping) {
+        final PlayerProfile profile = db.getPlayerByDisId(disId);
+        final Member cached = guild.getMemberById(disId);
+        final Member member = cached != null ? cached : guild.retrieveMemberById(disId).complete();
+        final Diff diff = diff(member, profile, mapping);
+        if (diff.isEmpty()) return;
+
+        log.info(getContext().formatLog("Syncing roles of {}: +{} -{}"), disId, diff.toAdd, diff.toRemove);
+        // Expected before the request, as the events may come before it returns
+        final long deadline = System.currentTimeMillis() + ECHO_TIMEOUT;
+        final ArrayList<String> keys = new ArrayList<>(diff.toAdd.size() + diff.toRemove.size());
+        for (Role role : diff.toAdd) keys.add(echoKey(disId, role, true));
+        for (Role role : diff.toRemove) keys.add(echoKey(disId, role, false));
+        keys.forEach(k -> echoes.put(k, deadline));
+        try {
+            // Blocks on the rate limit bucket, so batches never pile up in JDA's queue
+            guild.modifyMemberRoles(member, diff.toAdd, diff.toRemove).complete();
+        } catch (RuntimeException e) {
+            keys.forEach(echoes::remove);
+            throw e;
+        }
+    }
+
+    private static Diff diff(Member member, PlayerProfile profile, Map<Integer, Role> mapping) {
+        final List<Role> current = member.getRoles();
+        final RoleSet roles = profile.getRoles();
+        final Diff res = new Diff();
+        mapping.forEach((rgRole, role) -> {
+            final boolean has = current.contains(role);
+            final boolean should = roles.contains(rgRole);
+            if (should && !has) res.toAdd.add(role);
+            else if (!should && has) res.toRemove.add(role);
+        });
+        return res;
+    }
+
+    /**
+     * Mapped roles the bot is able to manage
+     */
+    private Map<Integer, Role> getMapping() {
+        return getMappingEntry().roles;
+    }
+
+    /**
+     * Built once per config value, and again on every {@link #init}
+     */
+    private Mapping getMappingEntry() {
+        final ConfigRG cfg = ConfigRG.castConfig(getConfig());
+        final String raw = cfg.roleSyncMapping.getValue();
+        Mapping res = mapping;
+        if (res == null || !Objects.equals(res.raw, raw)) {
+            res = new Mapping(raw, buildMapping(cfg));
+            mapping = res;
+        }
+        return res;
+    }
+
+    private Map<Integer, Role> buildMapping(ConfigRG cfg) {
+        final Guild guild = getContext().getGuild();
+        final List<String> entries = cfg.roleSyncMapping.toList();
+        if (entries == null || entries.isEmpty())
+            return Collections.emptyMap();
+
+        final HashMap<Integer, Role> res = new HashMap<>();
+        for (String entry : entries) {
+            final String[] split = entry.strip().split(":");
+            try {
+                final Role role = split.length == 2 ? guild.getRoleById(split[1].strip()) : null;
+                if (role == null) {
+                    log.warn(getContext().formatLog("Invalid role sync mapping entry: {}"), entry);
+                    continue;
+                }
+                if (!guild.getSelfMember().canInteract(role)) {
+                    log.warn(getContext().formatLog("Cannot manage role {}, skipping"), role.getName());
+                    continue;
+                }
+                res.put(Integer.parseInt(split[0].strip()), role);
+            } catch (NumberFormatException e) {
+                log.warn(getContext().formatLog("Invalid role sync mapping entry: {}"), entry);
+            }
+        }
+        return res;
+    }
+
+    private static final class Mapping {
+        private final String raw;
+        private final Map<Integer, Role> roles;
+        /** Discord role id to RG role id */
+        private final Map<String, Integer> reverse;
+
+        private Mapping(String raw, Map<Integer, Role> roles) {
+            this.raw = raw;
+            this.roles = Collections.unmodifiableMap(roles);
+            final HashMap<String, Integer> reverse = new HashMap<>();
+            roles.forEach((rgRole, role) -> reverse.put(role.getId(), rgRole));
+            this.reverse = Collections.unmodifiableMap(reverse);
+        }
+    }
+
+    private static class Diff {
+        private final ArrayList<Role> toAdd = new ArrayList<>();
+        private final ArrayList<Role> toRemove = new ArrayList<>();
+
+        private boolean isEmpty() {
+            return toAdd.isEmpty() && toRemove.isEmpty();
+        }
+    }
+
+    @Override
+    public Set<Class<? extends GenericEvent>> getTypes() {
+        return Set.of(GuildMemberRoleAddEvent.class, GuildMemberRoleRemoveEvent.class);
+    }
+
+    @Override
+    public boolean allowGlobal() {
+        return false;
+    }
+}
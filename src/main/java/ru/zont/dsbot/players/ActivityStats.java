@@ -0,0 +1,333 @@
+package ru.zont.dsbot.players;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.zont.dsbot.core.ZDSBot;
+
+import java.sql.*;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Active characters per side and day or week, kept in {@code activity_stats}.
+ * Counters are updated incrementally from characters whose {@code c_lastupd} is past the stored watermark;
+ * {@code activity_seen} remembers the last day each character was counted for, so re-reading a row or
+ * a second update on the same day does not count it again. Reading stats is a primary key range scan
+ * whose size depends only on the number of periods shown.
+ * <p>
+ * Updates run on their own thread when {@link CharacterFeed} publishes changes, so the feed does not wait for them;
+ * changes published while an update is queued are counted by it.
+ */
+public class ActivityStats implements CharacterFeed.Listener {
+    private static final Logger log = LoggerFactory.getLogger(ActivityStats.class);
+    private static final WeakHashMap<ZDSBot, ActivityStats> instances = new WeakHashMap<>();
+
+    public static final int PAGE_SIZE = 1000;
+
+    static final String SELECT_PAGE = """
+            SELECT c_id, COALESCE(c_side, '') AS side, c_lastupd, DATE(c_lastupd) AS day, a_day
+            FROM characters LEFT JOIN activity_seen ON a_char = c_id
+            WHERE c_lastupd >= ? AND (c_lastupd > ? OR c_id > ?)
+            ORDER BY c_lastupd, c_id
+            LIMIT ?
+            """;
+    static final String SELECT_STATS = """
+            SELECT s_start, s_side, s_active FROM activity_stats
+            WHERE s_period = ? AND s_start BETWEEN ? AND ?
+            ORDER BY s_start DESC, s_side
+            """;
+
+    public static synchronized ActivityStats getInstance(ZDSBot bot) {
+        return instances.computeIfAbsent(bot, b -> new ActivityStats(PlayersDB.getInstance(b)));
+    }
+
+    public enum Period {
+        DAY('D', 14), WEEK('W', 8);
+
+        private final char code;
+        private final int defaultCount;
+
+        Period(char code, int defaultCount) {
+            this.code = code;
+            this.defaultCount = defaultCount;
+        }
+
+        public int getDefaultCount() {
+            return defaultCount;
+        }
+
+        /**
+         * @return first day of the period containing {@code day}
+         */
+        public LocalDate start(LocalDate day) {
+            return this == DAY ? day : day.with(DayOfWeek.MONDAY);
+        }
+
+        private LocalDate minus(LocalDate day, int count) {
+            return this == DAY ? day.minusDays(count) : day.minusWeeks(count);
+        }
+    }
+
+    private final PlayersDB db;
+    private final Object lock = new Object();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "ActivityStats");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean updateQueued = new AtomicBoolean(false);
+
+    public ActivityStats(PlayersDB db) {
+        this.db = db;
+    }
+
+    /**
+     * Count initial activity and follow the feed
+     */
+    public void start(CharacterFeed feed) {
+        update();
+        feed.addListener(this);
+    }
+
+    @Override
+    public void onCharactersChanged(List<CharacterFeed.Change> changes) {
+        for (CharacterFeed.Change c : changes) {
+            if (c.isDeleted()) continue;
+            if (c.isNew() || !Objects.equals(c.getBefore().lastupd, c.getAfter().lastupd)) {
+                requestUpdate();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queue an update, unless one is queued already. One that is running has been started before the changes,
+     * so another one is queued after it.
+     */
+    void requestUpdate() {
+        if (!updateQueued.compareAndSet(false, true)) return;
+        try {
+            executor.execute(() -> {
+                updateQueued.set(false);
+                try {
+                    update();
+                } catch (Throwable e) {
+                    log.error("Activity stats update failed", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            updateQueued.set(false);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Count characters updated since the last call. Each page is a transaction that holds the watermark row
+     * locked, so several bot instances do not count the same rows.
+     * @return number of rows read
+     */
+    public int update() {
+        synchronized (lock) {
+            final int res = db.withTransaction("""
+                    SELECT watermark FROM activity_state
+                    WHERE id = 1
+                    FOR UPDATE
+                    """, st -> {
+                final Connection conn = st.getConnection();
+                int total = 0;
+                long fromId = 0;
+                Timestamp fromTime = null;
+                while (true) {
+                    final ResultSet r = st.executeQuery();
+                    if (!r.next())
+                        throw new SQLException("activity_state is empty");
+                    if (fromTime == null)
+                        fromTime = new Timestamp(Math.max(0, r.getTimestamp(1).getTime() - CharacterFeed.OVERLAP));
+
+                    final Page page = readPage(conn, fromTime, fromId);
+                    write(conn, page);
+                    // Pages are committed one by one so the watermark row is not locked for the whole update
+                    conn.commit();
+                    total += page.rows;
+                    if (page.rows < PAGE_SIZE) break;
+                    fromTime = page.lastTime;
+                    fromId = page.lastId;
+                }
+                return total;
+            });
+            log.debug("Activity stats: {} rows read", res);
+            return res;
+        }
+    }
+
+    private Page readPage(Connection conn, Timestamp fromTime, long fromId) throws SQLException {
+        final Page page = new Page();
+        try (PreparedStatement st = conn.prepareStatement(SELECT_PAGE)) {
+            st.setTimestamp(1, fromTime);
+            st.setTimestamp(2, fromTime);
+            st.setLong(3, fromId);
+            st.setInt(4, PAGE_SIZE);
+            final ResultSet r = st.executeQuery();
+            while (r.next()) {
+                page.rows++;
+                page.lastId = r.getLong("c_id");
+                page.lastTime = r.getTimestamp("c_lastupd");
+
+                final LocalDate day = r.getDate("day").toLocalDate();
+                final java.sql.Date seenDate = r.getDate("a_day");
+                final LocalDate seen = seenDate != null ? seenDate.toLocalDate() : null;
+                if (seen != null && !day.isAfter(seen)) continue;
+
+                final String side = r.getString("side");
+                page.seen.put(page.lastId, day);
+                for (Period p : Period.values())
+                    if (seen == null || p.start(day).isAfter(p.start(seen)))
+                        page.counts.merge(new Key(p, p.start(day), side), 1, Integer::sum);
+            }
+        }
+        return page;
+    }
+
+    private static void write(Connection conn, Page page) throws SQLException {
+        if (page.seen.isEmpty() && page.lastTime == null) return;
+        try (PreparedStatement stats = conn.prepareStatement("""
+                INSERT INTO activity_stats (s_period, s_start, s_side, s_active)
+                VALUES (?, ?, ?, ?)
+                ON DUPLICATE KEY UPDATE s_active = s_active + VALUES(s_active)
+                """);
+             PreparedStatement seen = conn.prepareStatement("""
+                INSERT INTO activity_seen (a_char, a_day)
+                VALUES (?, ?)
+                ON DUPLICATE KEY UPDATE a_day = GREATEST(a_day, VALUES(a_day))
+                """);
+             PreparedStatement watermark = conn.prepareStatement("""
+                UPDATE activity_state
+                SET watermark = GREATEST(watermark, ?)
+                WHERE id = 1
+                """)) {
+            for (Map.Entry<Key, Integer> e : page.counts.entrySet()) {
+                stats.setString(1, String.valueOf(e.getKey().period.code));
+                stats.setDate(2, java.sql.Date.valueOf(e.getKey().start));
+                stats.setString(3, e.getKey().side);
+                stats.setInt(4, e.getValue());
+                stats.addBatch();
+            }
+            for (Map.Entry<Long, LocalDate> e : page.seen.entrySet()) {
+                seen.setLong(1, e.getKey());
+                seen.setDate(2, java.sql.Date.valueOf(e.getValue()));
+                seen.addBatch();
+            }
+            if (!page.counts.isEmpty()) stats.executeBatch();
+            if (!page.seen.isEmpty()) seen.executeBatch();
+            if (page.lastTime != null) {
+                watermark.setTimestamp(1, page.lastTime);
+                watermark.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * @param count number of periods back from {@code today}, including the current one
+     * @param today current date in the database time zone, see {@link #today()}
+     * @return periods with any activity, most recent first
+     */
+    public List<Bucket> get(Period period, int count, LocalDate today) {
+        final LocalDate from = period.minus(period.start(today), count - 1);
+        return db.withStatement(SELECT_STATS, st -> {
+            st.setString(1, String.valueOf(period.code));
+            st.setDate(2, java.sql.Date.valueOf(from));
+            st.setDate(3, java.sql.Date.valueOf(period.start(today)));
+            final ResultSet r = st.executeQuery();
+            final ArrayList<Bucket> res = new ArrayList<>(count);
+            Bucket current = null;
+            while (r.next()) {
+                final LocalDate start = r.getDate("s_start").toLocalDate();
+                if (current == null || !current.start.equals(start))
+                    res.add(current = new Bucket(start));
+                current.bySide.put(r.getString("s_side"), r.getInt("s_active"));
+            }
+            return res;
+        });
+    }
+
+    public List<Bucket> get(Period period) {
+        return get(period, period.getDefaultCount(), today());
+    }
+
+    /**
+     * @return current date in the database time zone, the one bucket days are taken in
+     */
+    public LocalDate today() {
+        return db.withStatement("SELECT CURDATE()", st -> {
+            final ResultSet r = st.executeQuery();
+            r.next();
+            return r.getDate(1).toLocalDate();
+        });
+    }
+
+    public static class Bucket {
+        private final LocalDate start;
+        private final LinkedHashMap<String, Integer> bySide = new LinkedHashMap<>();
+
+        Bucket(LocalDate start) {
+            this.start = start;
+        }
+
+        public LocalDate getStart() {
+            return start;
+        }
+
+        /**
+         * @return active characters by side, sorted by side; characters without a side are under {@code ""}
+         */
+        public Map<String, Integer> getBySide() {
+            return Collections.unmodifiableMap(bySide);
+        }
+
+        public int getTotal() {
+            int res = 0;
+            for (int n : bySide.values()) res += n;
+            return res;
+        }
+    }
+
+    private static final class Page {
+        private int rows = 0;
+        private long lastId = 0;
+        private Timestamp lastTime = null;
+        private final HashMap<Key, Integer> counts = new HashMap<>();
+        private final HashMap<Long, LocalDate> seen = new HashMap<>();
+    }
+
+    private static final class Key {
+        private final Period period;
+        private final LocalDate start;
+        private final String side;
+
+        private Key(Period period, LocalDate start, String side) {
+            this.period = period;
+            this.start = start;
+            this.side = side;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key k)) return false;
+            return period == k.period && start.equals(k.start) && side.equals(k.side);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(period, start, side);
+        }
+    }
+}
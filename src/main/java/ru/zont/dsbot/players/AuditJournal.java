@@ -0,0 +1,491 @@
+package ru.zont.dsbot.players;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Journal of role changes. Recording only enqueues the entry; a background thread appends entries
+ * to a local append-only log and then loads the log into {@code role_audit} in batches.
+ * The loaded position is kept next to the log, so entries that did not reach the database
+ * before a crash or an outage are loaded later.
+ * <p>
+ * Sequence numbers continue from the highest one in the database and the log, so they stay unique
+ * even if the clock steps back across a restart. Entries of the log at or below the database maximum
+ * at startup have been loaded before the position was saved, and are skipped.
+ * <p>
+ * Entries the database refuses for a reason other than the connection, e.g. values too long for their columns,
+ * are moved to {@code roles.rejected.ndjson}, so they do not hold back the entries after them.
+ * <p>
+ * The actor is taken from the calling thread, see {@link #callAs(String, Supplier)}.
+ */
+public class AuditJournal {
+    private static final Logger log = LoggerFactory.getLogger(AuditJournal.class);
+    private static final ThreadLocal<String> actor = new ThreadLocal<>();
+
+    public static final String SYSTEM = "system";
+    public static final int BATCH_SIZE = 500;
+    public static final int QUEUE_LIMIT = 100_000;
+    public static final long ROTATE_SIZE = 64L << 20;
+    /** Rotated logs kept next to the current one, the oldest are deleted */
+    public static final int ARCHIVES_KEPT = 10;
+    private static final long RETRY_INTERVAL = 10_000;
+
+    private final PlayersDB db;
+    private final File file;
+    private final File offsetFile;
+    private final File rejectedFile;
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>(QUEUE_LIMIT);
+    private final Object seqLock = new Object();
+    private long lastSeq;
+    /** Highest sequence number in the database at startup */
+    private final long loadedSeq;
+    private long loadedOffset;
+    private long lastFailure = 0;
+    private volatile Thread thread;
+
+    public AuditJournal(PlayersDB db, File dir) throws IOException {
+        this.db = db;
+        Files.createDirectories(dir.toPath());
+        file = new File(dir, "roles.ndjson");
+        offsetFile = new File(dir, "roles.offset");
+        rejectedFile = new File(dir, "roles.rejected.ndjson");
+        loadedOffset = readOffset();
+
+        // A line torn by a crash must not swallow the next entry
+        if (file.length() > 0) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(raf.length() - 1);
+                if (raf.read() != '\n')
+                    raf.write('\n');
+            }
+        }
+
+        loadedSeq = db.withStatement("""
+                SELECT MAX(a_seq) FROM role_audit
+                """, st -> {
+            final ResultSet r = st.executeQuery();
+            return r.next() ? r.getLong(1) : 0L;
+        });
+        lastSeq = Math.max(loadedSeq, lastSeqInLog());
+    }
+
+    /**
+     * @return highest sequence number of the entries not loaded yet
+     */
+    private long lastSeqInLog() throws IOException {
+        if (loadedOffset >= file.length()) return 0;
+        long res = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            in.skipNBytes(loadedOffset);
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final Entry e = Entry.parse(line);
+                if (e != null) res = Math.max(res, e.seq);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Run {@code fn} on behalf of {@code actor}: role changes made by it are recorded with that actor
+     */
+    public static <T> T callAs(String actor, Supplier<T> fn) {
+        final String prev = AuditJournal.actor.get();
+        AuditJournal.actor.set(actor);
+        try {
+            return fn.get();
+        } finally {
+            if (prev != null) AuditJournal.actor.set(prev);
+            else AuditJournal.actor.remove();
+        }
+    }
+
+    public static void runAs(String actor, Runnable fn) {
+        callAs(actor, () -> {
+            fn.run();
+            return null;
+        });
+    }
+
+    public static String currentActor() {
+        final String res = actor.get();
+        return res != null ? res : SYSTEM;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this::run, "AuditJournal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void shutdown() {
+        final Thread t = thread;
+        if (t == null) return;
+        thread = null;
+        t.interrupt();
+        try {
+            t.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Never blocks. Does nothing if roles have not changed.
+     * @param charId character id, or 0 for the profile roles
+     * @param before roles before the change, if known
+     */
+    void record(String steamId, long charId, @Nullable RoleSet before, RoleSet after, String actor) {
+        if (after.equals(before)) return;
+        // Queued in the order of their numbers, so the log is ordered too
+        synchronized (seqLock) {
+            final long seq = Math.max(lastSeq + 1, System.currentTimeMillis() * 1000);
+            final Entry e = new Entry(seq, System.currentTimeMillis(), actor, steamId, charId,
+                    before != null ? before.toString() : null, after.toString());
+            if (queue.offer(e))
+                lastSeq = seq;
+            else log.warn("Audit journal queue is full, entry dropped: {}", e.toJson());
+        }
+    }
+
+    void record(String steamId, long charId, @Nullable RoleSet before, RoleSet after) {
+        record(steamId, charId, before, after, currentActor());
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void run() {
+        final ArrayList<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        boolean running = true;
+        while (running) {
+            try {
+                final Entry first = queue.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+                queue.drainTo(batch);
+            }
+
+            try {
+                if (!batch.isEmpty())
+                    append(file, batch);
+                batch.clear();
+                if (!running || System.currentTimeMillis() - lastFailure > RETRY_INTERVAL)
+                    load();
+            } catch (Exception e) {
+                lastFailure = System.currentTimeMillis();
+                log.error("Audit journal failed, will retry", e);
+            }
+        }
+    }
+
+    private static void append(File file, List<Entry> entries) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+            for (Entry e : entries)
+                out.append(e.toJson()).append('\n');
+        }
+    }
+
+    /**
+     * Load the log from the last loaded position into the database
+     */
+    private void load() throws IOException {
+        final long length = file.length();
+        if (loadedOffset >= length) {
+            rotate(length);
+            return;
+        }
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            long offset = in.skip(loadedOffset);
+            final ArrayList<Entry> batch = new ArrayList<>(BATCH_SIZE);
+            // Position after every entry of the batch
+            final ArrayList<Long> ends = new ArrayList<>(BATCH_SIZE);
+            final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            int b;
+            while ((b = in.read()) >= 0) {
+                offset++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                final Entry e = Entry.parse(line.toString(StandardCharsets.UTF_8));
+                line.reset();
+                if (e != null && e.seq > loadedSeq) {
+                    batch.add(e);
+                    ends.add(offset);
+                }
+                if (batch.size() >= BATCH_SIZE) {
+                    load(batch, ends);
+                    batch.clear();
+                    ends.clear();
+                    saveOffset(offset);
+                }
+            }
+            // Whatever is after the last newline is still being written
+            if (!batch.isEmpty())
+                load(batch, ends);
+            saveOffset(offset - line.size());
+        }
+    }
+
+    private void rotate(long length) throws IOException {
+        if (length < ROTATE_SIZE) return;
+        final File archive = new File(file.getParentFile(), "roles-%d.ndjson".formatted(System.currentTimeMillis()));
+        Files.move(file.toPath(), archive.toPath());
+        saveOffset(0);
+        log.info("Audit journal rotated to {}", archive.getName());
+
+        final File[] archives = file.getParentFile().listFiles((dir, name) ->
+                name.matches("roles-\\d+\\.ndjson"));
+        if (archives == null || archives.length <= ARCHIVES_KEPT) return;
+        Arrays.sort(archives, Comparator.comparingLong(f -> archiveTime(f.getName())));
+        for (int i = 0; i < archives.length - ARCHIVES_KEPT; i++) {
+            if (archives[i].delete())
+                log.info("Audit journal archive {} deleted", archives[i].getName());
+            else log.warn("Cannot delete audit journal archive {}", archives[i].getName());
+        }
+    }
+
+    private static long archiveTime(String name) {
+        return Long.parseLong(name.substring("roles-".length(), name.length() - ".ndjson".length()));
+    }
+
+    /**
+     * A batch that fails for a reason other than the connection is loaded row by row, saving the position
+     * after every row: rows that still fail are rejected, and a connection error resumes after the last row.
+     * @param ends position after every entry
+     */
+    private void load(List<Entry> batch, List<Long> ends) throws IOException {
+        try {
+            insert(batch);
+            return;
+        } catch (RuntimeException e) {
+            if (PlayersDB.isTransient(e)) throw e;
+            log.warn("Audit journal batch of {} entries failed, loading it row by row", batch.size(), e);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            final Entry entry = batch.get(i);
+            try {
+                insert(List.of(entry));
+            } catch (RuntimeException e) {
+                if (PlayersDB.isTransient(e)) throw e;
+                log.error("Audit journal entry {} rejected, moved to {}", entry.seq, rejectedFile.getName(), e);
+                append(rejectedFile, List.of(entry));
+            }
+            saveOffset(ends.get(i));
+        }
+    }
+
+    private void insert(List<Entry> entries) {
+        db.withTransaction("""
+                INSERT INTO role_audit (a_seq, a_time, a_actor, a_uid, a_char, a_before, a_after)
+                VALUES (?, ?, ?, ?, ?, ?, ?)
+                """, st -> {
+            try (PreparedStatement roles = st.getConnection().prepareStatement("""
+                    INSERT IGNORE INTO role_audit_roles (r_role, r_seq, r_added)
+                    VALUES (?, ?, ?)
+                    """)) {
+                for (Entry e : entries) {
+                    st.setLong(1, e.seq);
+                    st.setTimestamp(2, new Timestamp(e.time));
+                    st.setString(3, e.actor);
+                    st.setString(4, e.steamId);
+                    st.setLong(5, e.charId);
+                    st.setString(6, e.before);
+                    st.setString(7, e.after);
+                    st.addBatch();
+
+                    final RoleSet before = RoleSet.parse(e.before);
+                    final RoleSet after = RoleSet.parse(e.after);
+                    addRoleRows(roles, e.seq, after, before, true);
+                    addRoleRows(roles, e.seq, before, after, false);
+                }
+                st.executeBatch();
+                roles.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Rows for the roles that are in {@code a} but not in {@code b}
+     */
+    private static void addRoleRows(PreparedStatement st, long seq, RoleSet a, RoleSet b, boolean added)
+            throws java.sql.SQLException {
+        for (int i = 0; i < a.size(); i++) {
+            if (b.contains(a.get(i))) continue;
+            st.setInt(1, a.get(i));
+            st.setLong(2, seq);
+            st.setBoolean(3, added);
+            st.addBatch();
+        }
+    }
+
+    private long readOffset() {
+        if (!offsetFile.exists()) return 0;
+        try {
+            return Long.parseLong(Files.readString(offsetFile.toPath()).strip());
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Cannot read audit journal offset, loading the whole journal again", e);
+            return 0;
+        }
+    }
+
+    private void saveOffset(long offset) throws IOException {
+        if (offset == loadedOffset) return;
+        final File tmp = new File(offsetFile.getPath() + ".tmp");
+        Files.writeString(tmp.toPath(), Long.toString(offset));
+        Files.move(tmp.toPath(), offsetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        loadedOffset = offset;
+    }
+
+    /**
+     * History of a player, newest first. Entries reach the database within a second or so.
+     */
+    public LinkedList<Entry> getPlayerHistory(String steamId, int limit) {
+        return db.withStatement("""
+                SELECT * FROM role_audit
+                WHERE a_uid = ?
+                ORDER BY a_seq DESC
+                LIMIT ?
+                """, st -> {
+            st.setString(1, steamId);
+            st.setInt(2, limit);
+            return readEntries(st.executeQuery());
+        });
+    }
+
+    /**
+     * Changes that added or removed the role, newest first
+     */
+    public LinkedList<Entry> getRoleHistory(int role, int limit) {
+        return db.withStatement("""
+                SELECT a.* FROM role_audit_roles r
+                JOIN role_audit a ON a.a_seq = r.r_seq
+                WHERE r.r_role = ?
+                ORDER BY r.r_seq DESC
+                LIMIT ?
+                """, st -> {
+            st.setInt(1, role);
+            st.setInt(2, limit);
+            return readEntries(st.executeQuery());
+        });
+    }
+
+    private static LinkedList<Entry> readEntries(ResultSet r) throws java.sql.SQLException {
+        final LinkedList<Entry> res = new LinkedList<>();
+        while (r.next())
+            res.add(new Entry(r.getLong("a_seq"), r.getTimestamp("a_time").getTime(), r.getString("a_actor"),
+                    r.getString("a_uid"), r.getLong("a_char"), r.getString("a_before"), r.getString("a_after")));
+        return res;
+    }
+
+    public static class Entry {
+        private final long seq;
+        private final long time;
+        private final String actor;
+        private final String steamId;
+        private final long charId;
+        private final String before;
+        private final String after;
+
+        Entry(long seq, long time, String actor, String steamId, long charId, String before, String after) {
+            this.seq = seq;
+            this.time = time;
+            this.actor = actor;
+            this.steamId = steamId;
+            this.charId = charId;
+            this.before = before;
+            this.after = after;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getActor() {
+            return actor;
+        }
+
+        public String getSteamId() {
+            return steamId;
+        }
+
+        /**
+         * @return character id, or 0 for the profile
+         */
+        public long getCharId() {
+            return charId;
+        }
+
+        @Nullable
+        public RoleSet getBefore() {
+            return before != null ? RoleSet.parse(before) : null;
+        }
+
+        public RoleSet getAfter() {
+            return RoleSet.parse(after);
+        }
+
+        String toJson() {
+            final JsonObject o = new JsonObject();
+            o.addProperty("seq", seq);
+            o.addProperty("time", time);
+            o.addProperty("actor", actor);
+            o.addProperty("uid", steamId);
+            o.addProperty("char", charId);
+            o.addProperty("before", before);
+            o.addProperty("after", after);
+            return o.toString();
+        }
+
+        @Nullable
+        static Entry parse(String line) {
+            if (line.isBlank()) return null;
+            try {
+                final JsonObject o = JsonParser.parseString(line).getAsJsonObject();
+                return new Entry(o.get("seq").getAsLong(), o.get("time").getAsLong(), o.get("actor").getAsString(),
+                        o.get("uid").getAsString(), o.get("char").getAsLong(),
+                        o.has("before") && !o.get("before").isJsonNull() ? o.get("before").getAsString() : null,
+                        o.get("after").getAsString());
+            } catch (JsonParseException | IllegalStateException | NullPointerException | UnsupportedOperationException e) {
+                log.warn("Skipping broken audit journal line: {}", line);
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package ru.zont.dsbot.players;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.zont.dsbot.core.ZDSBot;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Follows {@code characters} by the {@code c_lastupd} watermark and keeps all characters indexed by SteamID.
+ * Rows are read in {@code (c_lastupd, c_id)} order; every poll re-reads a short overlap before the watermark
+ * so rows committed late with an older timestamp are not lost, and unchanged rows are skipped.
+ * Deleted characters are found by comparing the ids with the table, one range of {@link #RECONCILE_RANGE} ids
+ * every {@link #RECONCILE_INTERVAL}, so a delete is seen within {@code rows / RECONCILE_RANGE} intervals.
+ * Rows of the range missed by the watermark, dated differently than the index or without {@code c_lastupd}
+ * are re-read then.
+ * <p>
+ * Writers other than the bot must bump {@code c_lastupd} on every change for it to be published by the next poll.
+ * Role writes of the bot keep {@code c_lastupd} as the last activity, and go to the index through {@link #update}.
+ */
+public class CharacterFeed {
+    private static final Logger log = LoggerFactory.getLogger(CharacterFeed.class);
+    private static final WeakHashMap<ZDSBot, CharacterFeed> instances = new WeakHashMap<>();
+
+    public static final long POLL_INTERVAL = 15_000;
+    public static final long OVERLAP = 5_000;
+    public static final int PAGE_SIZE = 1000;
+    public static final long RECONCILE_INTERVAL = 5 * 60_000;
+    public static final int RECONCILE_RANGE = 10_000;
+
+    static final String SELECT_PAGE = """
+            SELECT c_id, c_name, c_uid, c_roles, c_lastupd, c_side
+            FROM characters
+            WHERE c_lastupd >= ? AND (c_lastupd > ? OR c_id > ?)
+            ORDER BY c_lastupd, c_id
+            LIMIT ?
+            """;
+    static final String SELECT_UNDATED = """
+            SELECT c_id, c_name, c_uid, c_roles, c_lastupd, c_side
+            FROM characters
+            WHERE c_lastupd IS NULL AND c_id > ?
+            ORDER BY c_id
+            LIMIT ?
+            """;
+    static final String SELECT_RANGE = """
+            SELECT c_id, c_lastupd
+            FROM characters
+            WHERE c_id > ?
+            ORDER BY c_id
+            LIMIT ?
+            """;
+    static final String SELECT_BY_IDS = """
+            SELECT c_id, c_name, c_uid, c_roles, c_lastupd, c_side
+            FROM characters
+            WHERE c_id IN (%s)
+            """;
+
+    public static synchronized CharacterFeed getInstance(ZDSBot bot) {
+        return instances.computeIfAbsent(bot, b -> new CharacterFeed(PlayersDB.getInstance(b)));
+    }
+
+    private final PlayersDB db;
+    private final ConcurrentHashMap<String, List<PlayerCharacter>> bySteamId = new ConcurrentHashMap<>();
+    private final TreeMap<Long, PlayerCharacter> byId = new TreeMap<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Object pollLock = new Object();
+
+    private ScheduledExecutorService executor;
+    private Timestamp watermark = new Timestamp(0);
+    private volatile boolean loaded = false;
+    private volatile long lastSuccess = 0;
+    private long lastReconcile = 0;
+    private long reconcileFrom = 0;
+    private boolean reconcileAll = false;
+
+    public CharacterFeed(PlayersDB db) {
+        this.db = db;
+    }
+
+    public synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "CharacterFeed");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            } catch (Throwable e) {
+                log.error("Character feed poll failed", e);
+            }
+        }, 0, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        db.setCharacterFeed(this);
+    }
+
+    public synchronized void shutdown() {
+        db.setCharacterFeed(null);
+        if (executor != null)
+            executor.shutdown();
+        executor = null;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Reads everything changed since the last poll and publishes the changes.
+     * The first call loads the whole table and publishes nothing.
+     * @return number of changed characters
+     */
+    public int poll() {
+        final ArrayList<Change> changes = new ArrayList<>();
+        synchronized (pollLock) {
+            Timestamp fromTime = loaded ? new Timestamp(Math.max(0, watermark.getTime() - OVERLAP)) : watermark;
+            long fromId = 0;
+            while (true) {
+                final List<PlayerCharacter> page = readPage(fromTime, fromId);
+                applyAll(page, changes);
+                if (page.size() < PAGE_SIZE) break;
+
+                final PlayerCharacter last = page.get(page.size() - 1);
+                fromTime = last.lastupd;
+                fromId = last.id;
+            }
+
+            if (!loaded) {
+                readUndated(changes);
+                log.info("Character feed loaded {} characters of {} players", byId.size(), bySteamId.size());
+                lastReconcile = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - lastReconcile >= RECONCILE_INTERVAL) {
+                boolean wrapped;
+                do {
+                    wrapped = reconcile(changes);
+                } while (reconcileAll && !wrapped);
+                reconcileAll = false;
+                lastReconcile = System.currentTimeMillis();
+            }
+            loaded = true;
+            lastSuccess = System.currentTimeMillis();
+        }
+
+        if (!changes.isEmpty()) {
+            for (Change change : changes)
+                db.getCache().invalidateCharacters(change.getSteamId());
+            for (Listener listener : listeners) {
+                try {
+                    listener.onCharactersChanged(changes);
+                } catch (Throwable e) {
+                    log.error("Character feed listener failed", e);
+                }
+            }
+        }
+        return changes.size();
+    }
+
+    /**
+     * Make the next poll compare the whole table, not just the next range
+     */
+    void requestReconcile() {
+        synchronized (pollLock) {
+            lastReconcile = 0;
+            reconcileFrom = 0;
+            reconcileAll = true;
+        }
+    }
+
+    /**
+     * Compare the next range of ids with the table: drop characters that are no longer there,
+     * and re-read those the watermark has missed. Every character in the index has been read before the ids,
+     * so an id of the range missing from the table means the row has been deleted.
+     * @return {@code true} if the range was the last one, and the next reconcile starts from the beginning
+     */
+    private boolean reconcile(List<Change> changes) {
+        final long from = reconcileFrom;
+        final TreeMap<Long, Timestamp> rows = db.withStatement(SELECT_RANGE, st -> {
+            st.setLong(1, from);
+            st.setInt(2, RECONCILE_RANGE);
+            final ResultSet r = st.executeQuery();
+            final TreeMap<Long, Timestamp> res = new TreeMap<>();
+            while (r.next())
+                res.put(r.getLong(1), r.getTimestamp(2));
+            return res;
+        });
+        final boolean last = rows.size() < RECONCILE_RANGE;
+        final long to = last ? Long.MAX_VALUE : rows.lastKey();
+        reconcileFrom = last ? 0 : to;
+
+        final Iterator<PlayerCharacter> it = byId.subMap(from, false, to, true).values().iterator();
+        int deleted = 0;
+        while (it.hasNext()) {
+            final PlayerCharacter c = it.next();
+            if (rows.containsKey(c.id)) continue;
+            it.remove();
+            bySteamId.computeIfPresent(c.steamId, (k, list) -> without(list, c.id));
+            changes.add(new Change(c, null));
+            deleted++;
+        }
+        if (deleted > 0)
+            log.info("Character feed: {} deleted characters dropped", deleted);
+
+        // Rows without c_lastupd are never reached by the watermark, so they are re-read every time
+        final ArrayList<Long> missed = new ArrayList<>();
+        for (Map.Entry<Long, Timestamp> e : rows.entrySet()) {
+            final PlayerCharacter c = byId.get(e.getKey());
+            if (c == null || e.getValue() == null || !e.getValue().equals(c.lastupd))
+                missed.add(e.getKey());
+        }
+        int reread = 0;
+        for (int i = 0; i < missed.size(); i += PAGE_SIZE) {
+            final List<Long> chunk = missed.subList(i, Math.min(missed.size(), i + PAGE_SIZE));
+            final int before = changes.size();
+            applyAll(db.withStatement(SELECT_BY_IDS.formatted(PlayersDB.placeholders(chunk.size())), st -> {
+                int n = 1;
+                for (long id : chunk)
+                    st.setLong(n++, id);
+                return readAll(st.executeQuery());
+            }), changes);
+            reread += changes.size() - before;
+        }
+        if (reread > 0)
+            log.info("Character feed: {} characters missed by the watermark loaded", reread);
+        return last;
+    }
+
+    /**
+     * Rows without {@code c_lastupd} are never reached by the watermark, so the first load reads them separately
+     */
+    private void readUndated(List<Change> changes) {
+        long fromId = 0;
+        while (true) {
+            final long from = fromId;
+            final List<PlayerCharacter> page = db.withStatement(SELECT_UNDATED, st -> {
+                st.setLong(1, from);
+                st.setInt(2, PAGE_SIZE);
+                return readAll(st.executeQuery());
+            });
+            applyAll(page, changes);
+            if (page.size() < PAGE_SIZE) break;
+            fromId = page.get(page.size() - 1).id;
+        }
+    }
+
+    private void applyAll(List<PlayerCharacter> chars, List<Change> changes) {
+        for (PlayerCharacter c : chars) {
+            final PlayerCharacter old = apply(c);
+            if (loaded && (old == null || !sameContent(old, c)))
+                changes.add(new Change(old, c));
+        }
+    }
+
+    private List<PlayerCharacter> readAll(ResultSet r) throws SQLException {
+        final ArrayList<PlayerCharacter> res = new ArrayList<>();
+        while (r.next())
+            res.add(db.getPlayerCharacter(r));
+        return res;
+    }
+
+    private List<PlayerCharacter> readPage(Timestamp fromTime, long fromId) {
+        return db.withStatement(SELECT_PAGE, st -> {
+            st.setTimestamp(1, fromTime);
+            st.setTimestamp(2, fromTime);
+            st.setLong(3, fromId);
+            st.setInt(4, PAGE_SIZE);
+            return readAll(st.executeQuery());
+        });
+    }
+
+    /**
+     * Put a character written by the bot itself, so the index does not wait for the next poll
+     */
+    void update(PlayerCharacter c) {
+        synchronized (pollLock) {
+            if (loaded) apply(c);
+        }
+    }
+
+    private PlayerCharacter apply(PlayerCharacter c) {
+        final PlayerCharacter old = byId.put(c.id, c);
+        if (old != null && !Objects.equals(old.steamId, c.steamId))
+            bySteamId.computeIfPresent(old.steamId, (k, list) -> without(list, c.id));
+
+        bySteamId.compute(c.steamId, (k, list) -> {
+            final ArrayList<PlayerCharacter> res = new ArrayList<>(list != null ? list.size() + 1 : 1);
+            if (list != null)
+                for (PlayerCharacter e : list)
+                    if (e.id != c.id) res.add(e);
+            res.add(c);
+            res.sort(Comparator.comparing((PlayerCharacter e) -> e.lastupd,
+                    Comparator.nullsLast(Comparator.reverseOrder())));
+            return Collections.unmodifiableList(res);
+        });
+
+        if (c.lastupd != null && c.lastupd.after(watermark))
+            watermark = c.lastupd;
+        return old;
+    }
+
+    private static List<PlayerCharacter> without(List<PlayerCharacter> list, long id) {
+        final ArrayList<PlayerCharacter> res = new ArrayList<>(list);
+        res.removeIf(e -> e.id == id);
+        return res.isEmpty() ? null : Collections.unmodifiableList(res);
+    }
+
+    private static boolean sameContent(PlayerCharacter a, PlayerCharacter b) {
+        return Objects.equals(a.lastupd, b.lastupd)
+                && a.roles.equals(b.roles)
+                && Objects.equals(a.name, b.name)
+                && Objects.equals(a.side, b.side)
+                && Objects.equals(a.steamId, b.steamId);
+    }
+
+    /**
+     * @return characters of the player, most recently updated first, or {@code null} if the feed is not loaded yet
+     * or has not seen any character of the player
+     */
+    public List<PlayerCharacter> getCharacters(String steamId) {
+        if (!loaded) return null;
+        return bySteamId.get(steamId);
+    }
+
+    /**
+     * The index can be trusted if the last poll is recent enough
+     */
+    public boolean isHealthy() {
+        return loaded && System.currentTimeMillis() - lastSuccess < POLL_INTERVAL * 3;
+    }
+
+    public Timestamp getWatermark() {
+        synchronized (pollLock) {
+            return watermark;
+        }
+    }
+
+    public int size() {
+        synchronized (pollLock) {
+            return byId.size();
+        }
+    }
+
+    public interface Listener {
+        void onCharactersChanged(List<Change> changes);
+    }
+
+    public static class Change {
+        private final PlayerCharacter before;
+        private final PlayerCharacter after;
+
+        public Change(PlayerCharacter before, PlayerCharacter after) {
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * @return previous state of the character, {@code null} for a new one
+         */
+        public PlayerCharacter getBefore() {
+            return before;
+        }
+
+        /**
+         * @return new state of the character, {@code null} for a deleted one
+         */
+        public PlayerCharacter getAfter() {
+            return after;
+        }
+
+        public String getSteamId() {
+            return after != null ? after.steamId : before.steamId;
+        }
+
+        public boolean isNew() {
+            return before == null;
+        }
+
+        public boolean isDeleted() {
+            return after == null;
+        }
+
+        public boolean rolesChanged() {
+            return before == null || after == null || !before.roles.equals(after.roles);
+        }
+    }
+}
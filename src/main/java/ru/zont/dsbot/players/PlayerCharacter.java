@@ -1,21 +1,20 @@
 package ru.zont.dsbot.players;
 
 import java.sql.Timestamp;
-import java.util.HashSet;
 
 public class PlayerCharacter {
     final long id;
     final String name;
     final String steamId;
-    final HashSet<Integer> roles;
+    final RoleSet roles;
     final Timestamp lastupd;
     final String side;
 
-    public PlayerCharacter(long id, String name, String steamId, HashSet<Integer> roles, Timestamp lastupd, String side) {
+    public PlayerCharacter(long id, String name, String steamId, RoleSet roles, Timestamp lastupd, String side) {
         this.id = id;
         this.name = name;
         this.steamId = steamId;
-        this.roles = roles;
+        this.roles = RoleSet.unmodifiable(roles);
         this.lastupd = lastupd;
         this.side = side;
     }
@@ -32,7 +31,7 @@ public class PlayerCharacter {
         return steamId;
     }
 
-    public HashSet<Integer> getRoles() {
+    public RoleSet getRoles() {
         return roles;
     }
 
@@ -0,0 +1,21 @@
+package ru.zont.dsbot.players;
+
+import java.util.List;
+
+public class PlayerInfo {
+    final PlayerProfile profile;
+    final List<PlayerCharacter> characters;
+
+    public PlayerInfo(PlayerProfile profile, List<PlayerCharacter> characters) {
+        this.profile = profile;
+        this.characters = characters;
+    }
+
+    public PlayerProfile getProfile() {
+        return profile;
+    }
+
+    public List<PlayerCharacter> getCharacters() {
+        return characters;
+    }
+}
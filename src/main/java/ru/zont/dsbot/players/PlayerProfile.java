@@ -1,20 +1,18 @@
 package ru.zont.dsbot.players;
 
-import java.util.HashSet;
-
 public class PlayerProfile {
     final long id;
     final String name;
     final String dsId;
     final String steamId;
-    final HashSet<Integer> roles;
+    final RoleSet roles;
 
-    public PlayerProfile(long id, String name, String dsId, String steamId, HashSet<Integer> roles) {
+    public PlayerProfile(long id, String name, String dsId, String steamId, RoleSet roles) {
         this.id = id;
         this.name = name;
         this.dsId = dsId;
         this.steamId = steamId;
-        this.roles = roles;
+        this.roles = RoleSet.unmodifiable(roles);
     }
 
     public long getId() {
@@ -33,7 +31,7 @@ public class PlayerProfile {
         return steamId;
     }
 
-    public HashSet<Integer> getRoles() {
+    public RoleSet getRoles() {
         return roles;
     }
 }
@@ -0,0 +1,238 @@
+package ru.zont.dsbot.players;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.zont.dsbot.core.ZDSBot;
+import ru.zont.dsbot.util.TrigramIndex;
+
+import java.sql.ResultSet;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory player lookup by profile name, character names and SteamID prefix, for slash command autocomplete.
+ * Loaded once from the database, then kept up to date by PlayersDB writes and the character feed.
+ */
+public class PlayerSearch implements PlayersDB.ProfileListener, CharacterFeed.Listener {
+    private static final Logger log = LoggerFactory.getLogger(PlayerSearch.class);
+    private static final WeakHashMap<ZDSBot, PlayerSearch> instances = new WeakHashMap<>();
+
+    public static synchronized PlayerSearch getInstance(ZDSBot bot) {
+        return instances.computeIfAbsent(bot, b -> {
+            final PlayerSearch res = new PlayerSearch(PlayersDB.getInstance(b));
+            CharacterFeed.getInstance(b).addListener(res);
+            return res;
+        });
+    }
+
+    private final PlayersDB db;
+    private final TrigramIndex<Entry> index = new TrigramIndex<>();
+    // Numeric queries are SteamID prefixes: as trigrams, every SteamID would be a candidate
+    private final ConcurrentSkipListMap<String, Entry> bySteamId = new ConcurrentSkipListMap<>();
+    private volatile CompletableFuture<Void> loading;
+    /** The load is one long full-table query, kept off the common pool */
+    private final ExecutorService loader = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+        final Thread t = new Thread(r, "PlayerSearch");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Object replayLock = new Object();
+    // Changes that come while a load is reading the tables, applied over its result
+    private ArrayList<Runnable> replay = null;
+    private boolean indexed = false;
+
+    public PlayerSearch(PlayersDB db) {
+        this.db = db;
+        db.addProfileListener(this);
+    }
+
+    public boolean isLoaded() {
+        final CompletableFuture<Void> f = loading;
+        return f != null && f.isDone() && !f.isCompletedExceptionally();
+    }
+
+    /**
+     * Start loading in background if it has not been started yet, or the previous attempt failed
+     */
+    public synchronized CompletableFuture<Void> load() {
+        if (loading == null || loading.isCompletedExceptionally())
+            loading = CompletableFuture.runAsync(this::loadNow, loader);
+        return loading;
+    }
+
+    private void loadNow() {
+        final long start = System.currentTimeMillis();
+        synchronized (replayLock) {
+            replay = new ArrayList<>();
+        }
+        final HashMap<String, Entry> entries;
+        try {
+            entries = read();
+        } catch (RuntimeException e) {
+            synchronized (replayLock) {
+                replay = null;
+            }
+            throw e;
+        }
+
+        for (Entry e : entries.values())
+            put(e);
+        synchronized (replayLock) {
+            replay.forEach(Runnable::run);
+            replay = null;
+            indexed = true;
+        }
+        log.info("Player search index loaded: {} players in {} ms", entries.size(), System.currentTimeMillis() - start);
+    }
+
+    private HashMap<String, Entry> read() {
+        return db.withStatement("""
+                SELECT p_uid, p_id_dis, p_name, c_name
+                FROM profiles LEFT JOIN characters ON c_uid = p_uid
+                """, st -> {
+            ResultSet r = st.executeQuery();
+            HashMap<String, Entry> res = new HashMap<>();
+            while (r.next()) {
+                final String steamId = r.getString("p_uid");
+                Entry e = res.get(steamId);
+                if (e == null) {
+                    e = new Entry(steamId, r.getString("p_id_dis"), r.getString("p_name"), new ArrayList<>(1));
+                    res.put(steamId, e);
+                }
+                final String charName = r.getString("c_name");
+                if (charName != null)
+                    e.characterNames.add(charName);
+            }
+            return res;
+        });
+    }
+
+    /**
+     * Runs a change now if the index is loaded, or after the running load
+     */
+    private void whenIndexed(Runnable change) {
+        synchronized (replayLock) {
+            if (replay != null) {
+                replay.add(change);
+                return;
+            }
+            if (!indexed) return;
+        }
+        change.run();
+    }
+
+    /**
+     * @return best matches, or nothing while the index is loading
+     */
+    public List<Entry> search(String query, int limit) {
+        if (!isLoaded()) {
+            load();
+            return Collections.emptyList();
+        }
+        final String q = query.strip();
+        if (q.matches("\\d+"))
+            return searchSteamId(q, limit);
+        return index.search(q, limit);
+    }
+
+    private List<Entry> searchSteamId(String prefix, int limit) {
+        final ArrayList<Entry> res = new ArrayList<>();
+        for (Entry e : bySteamId.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            if (res.size() >= limit) break;
+            res.add(e);
+        }
+        return res;
+    }
+
+    private void put(Entry e) {
+        final String[] texts = new String[e.characterNames.size() + 1];
+        texts[0] = e.name;
+        for (int i = 0; i < e.characterNames.size(); i++)
+            texts[i + 1] = e.characterNames.get(i);
+        index.put(e.steamId, e, texts);
+        bySteamId.put(e.steamId, e);
+    }
+
+    @Override
+    public void onProfileChanged(PlayerProfile profile) {
+        whenIndexed(() -> updateProfile(profile));
+    }
+
+    private void updateProfile(PlayerProfile profile) {
+        final Entry old = index.get(profile.steamId);
+        put(new Entry(profile.steamId, profile.dsId, profile.name,
+                old != null ? old.characterNames : Collections.emptyList()));
+    }
+
+    @Override
+    public void onCharactersChanged(List<CharacterFeed.Change> changes) {
+        whenIndexed(() -> updateCharacters(changes));
+    }
+
+    private void updateCharacters(List<CharacterFeed.Change> changes) {
+        final HashMap<String, ArrayList<CharacterFeed.Change>> bySteamId = new HashMap<>();
+        for (CharacterFeed.Change c : changes)
+            if (c.isNew() || c.isDeleted() || !Objects.equals(c.getBefore().name, c.getAfter().name))
+                bySteamId.computeIfAbsent(c.getSteamId(), k -> new ArrayList<>()).add(c);
+
+        bySteamId.forEach((steamId, list) -> {
+            final Entry old = index.get(steamId);
+            if (old == null) return; // Profile is not bound yet
+            final ArrayList<String> names = new ArrayList<>(old.characterNames);
+            // A replayed change may already be in what the load has read
+            for (CharacterFeed.Change c : list) {
+                if (!c.isNew()) names.remove(c.getBefore().name);
+                if (!c.isDeleted() && !names.contains(c.getAfter().name)) names.add(c.getAfter().name);
+            }
+            put(new Entry(old.steamId, old.disId, old.name, names));
+        });
+    }
+
+    public static class Entry {
+        private final String steamId;
+        private final String disId;
+        private final String name;
+        private final List<String> characterNames;
+
+        public Entry(String steamId, String disId, String name, List<String> characterNames) {
+            this.steamId = steamId;
+            this.disId = disId;
+            this.name = name;
+            this.characterNames = characterNames;
+        }
+
+        public String getSteamId() {
+            return steamId;
+        }
+
+        public String getDisId() {
+            return disId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getCharacterNames() {
+            return characterNames;
+        }
+
+        /**
+         * Choice label, fits into Discord's 100 characters
+         */
+        public String getLabel() {
+            String title = name != null ? name : !characterNames.isEmpty() ? characterNames.get(0) : "?";
+            if (!characterNames.isEmpty() && !characterNames.get(0).equals(title))
+                title += " / " + characterNames.get(0);
+            if (title.length() > 75)
+                title = title.substring(0, 75);
+            return "%s (%s)".formatted(title, steamId);
+        }
+    }
+}
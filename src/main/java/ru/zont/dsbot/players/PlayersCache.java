@@ -0,0 +1,141 @@
+package ru.zont.dsbot.players;
+
+import ru.zont.dsbot.util.LongLruCache;
+
+import java.util.List;
+
+/**
+ * Readers take a {@link #stamp()} before reading the database and pass it to the put:
+ * a value read before an invalidation of the same key is not cached.
+ * Invalidation stamps are kept per stripe of keys, so a collision only skips a put.
+ */
+public class PlayersCache {
+    public static final int CAPACITY = 2048;
+    public static final long LIFETIME = 60_000;
+    private static final int STRIPES = 1024;
+
+    private final LongLruCache<PlayerProfile> profilesBySteamId = new LongLruCache<>(CAPACITY, LIFETIME);
+    private final LongLruCache<PlayerProfile> profilesByDisId = new LongLruCache<>(CAPACITY, LIFETIME);
+    // Shared by every caller, so only immutable lists are stored
+    private final LongLruCache<List<PlayerCharacter>> characters = new LongLruCache<>(CAPACITY, LIFETIME);
+    private final long[] invalidatedAt = new long[STRIPES];
+    private volatile long generation = 0;
+
+    public static long key(String id) {
+        if (id == null || id.isEmpty() || id.length() > 19)
+            return 0L;
+        long res = 0L;
+        for (int i = 0; i < id.length(); i++) {
+            final char c = id.charAt(i);
+            if (c < '0' || c > '9')
+                return 0L;
+            res = res * 10 + (c - '0');
+            if (res < 0) return 0L;
+        }
+        return res;
+    }
+
+    PlayerProfile getProfile(String steamId) {
+        final long key = key(steamId);
+        return key != 0L ? profilesBySteamId.get(key) : null;
+    }
+
+    PlayerProfile getProfileByDisId(String disId) {
+        final long key = key(disId);
+        return key != 0L ? profilesByDisId.get(key) : null;
+    }
+
+    List<PlayerCharacter> getCharacters(String steamId) {
+        final long key = key(steamId);
+        return key != 0L ? characters.get(key) : null;
+    }
+
+    /**
+     * @return stamp to take before reading what is going to be put
+     */
+    long stamp() {
+        return generation;
+    }
+
+    synchronized void putProfile(PlayerProfile profile, long stamp) {
+        final long steamKey = key(profile.steamId);
+        final long disKey = key(profile.dsId);
+        if (isInvalidated(steamKey, stamp) || isInvalidated(disKey, stamp))
+            return;
+        if (steamKey != 0L)
+            profilesBySteamId.put(steamKey, profile);
+        if (disKey != 0L)
+            profilesByDisId.put(disKey, profile);
+    }
+
+    synchronized void putCharacters(String steamId, List<PlayerCharacter> chars, long stamp) {
+        final long key = key(steamId);
+        if (key != 0L && !isInvalidated(key, stamp))
+            characters.put(key, List.copyOf(chars));
+    }
+
+    private boolean isInvalidated(long key, long stamp) {
+        return key != 0L && invalidatedAt[stripe(key)] > stamp;
+    }
+
+    private void markInvalidated(long key) {
+        if (key != 0L)
+            invalidatedAt[stripe(key)] = ++generation;
+    }
+
+    private static int stripe(long key) {
+        // Top 10 bits of a Fibonacci hash, one of STRIPES
+        return (int) (key * 0x9E3779B97F4A7C15L >>> 54);
+    }
+
+    synchronized void invalidateProfile(String steamId, String disId) {
+        final long steamKey = key(steamId);
+        markInvalidated(steamKey);
+        markInvalidated(key(disId));
+        if (steamKey != 0L) {
+            final PlayerProfile cached = profilesBySteamId.peek(steamKey);
+            if (cached != null && key(cached.dsId) != 0L) {
+                markInvalidated(key(cached.dsId));
+                profilesByDisId.remove(key(cached.dsId));
+            }
+            profilesBySteamId.remove(steamKey);
+        }
+
+        final long disKey = key(disId);
+        if (disKey != 0L) {
+            final PlayerProfile cached = profilesByDisId.peek(disKey);
+            if (cached != null && key(cached.steamId) != 0L) {
+                markInvalidated(key(cached.steamId));
+                profilesBySteamId.remove(key(cached.steamId));
+            }
+            profilesByDisId.remove(disKey);
+        }
+    }
+
+    synchronized void invalidateCharacters(String steamId) {
+        final long key = key(steamId);
+        markInvalidated(key);
+        if (key != 0L)
+            characters.remove(key);
+    }
+
+    public synchronized void clear() {
+        profilesBySteamId.clear();
+        profilesByDisId.clear();
+        characters.clear();
+    }
+
+    public long getHits() {
+        return profilesBySteamId.getHits() + profilesByDisId.getHits() + characters.getHits();
+    }
+
+    public long getMisses() {
+        return profilesBySteamId.getMisses() + profilesByDisId.getMisses() + characters.getMisses();
+    }
+
+    @Override
+    public String toString() {
+        return "profiles by SteamID: %s; profiles by Discord ID: %s; characters: %s".formatted(
+                profilesBySteamId, profilesByDisId, characters);
+    }
+}
@@ -1,16 +1,27 @@
 package ru.zont.dsbot.players;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.zont.dsbot.core.ZDSBot;
 import ru.zont.dsbot.core.util.DescribedException;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Types;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 import static ru.zont.dsbot.util.StringsRG.STR;
 
 public class PlayersDB {
+    private static final Logger log = LoggerFactory.getLogger(PlayersDB.class);
     private static final WeakHashMap<ZDSBot, PlayersDB> instances = new WeakHashMap<>();
 
     public static PlayersDB getInstance(ZDSBot bot) {
@@ -23,40 +34,271 @@ public class PlayersDB {
         }
     }
 
+    // Hot statements, shared with the query plan test. %s are expanded into placeholders
+    static final String SELECT_PROFILE_BY_STEAM_ID = """
+            SELECT * FROM profiles
+            WHERE p_uid = ?
+            """;
+    static final String SELECT_PROFILE_BY_DIS_ID = """
+            SELECT * FROM profiles
+            WHERE p_id_dis = ?
+            """;
+    static final String LOCK_PLAYERS = """
+            SELECT p_id, p_name, p_id_dis, p_uid, p_roles, c_id, c_name, c_uid, c_roles, c_lastupd, c_side
+            FROM profiles LEFT JOIN characters ON c_uid = p_uid
+            WHERE p_uid IN (%s) OR p_id_dis IN (%s)
+            ORDER BY p_uid, c_lastupd DESC
+            FOR UPDATE
+            """;
+    // Longer id lists are split into several statements, see inChunks
+    static final int MAX_IN_PARAMS = 1000;
+    static final String SELECT_PROFILES_BY_STEAM_IDS = """
+            SELECT p_id_dis, p_roles, p_name, p_uid, p_id FROM profiles
+            WHERE p_uid IN (%s)
+            """;
+    static final String SELECT_INFOS_BY_STEAM_IDS = """
+            SELECT p_id, p_name, p_id_dis, p_uid, p_roles, c_id, c_name, c_uid, c_roles, c_lastupd, c_side
+            FROM profiles LEFT JOIN characters ON c_uid = p_uid
+            WHERE p_uid IN (%s)
+            ORDER BY p_uid, c_lastupd DESC
+            """;
+    static final String SELECT_INFO_BY_DIS_ID = """
+            SELECT p_id, p_name, p_id_dis, p_uid, p_roles, c_id, c_name, c_uid, c_roles, c_lastupd, c_side
+            FROM profiles LEFT JOIN characters ON c_uid = p_uid
+            WHERE p_id_dis = ?
+            ORDER BY p_uid, c_lastupd DESC
+            """;
+    static final String CAS_PROFILE = """
+            UPDATE profiles
+            SET p_id_dis = ?, p_roles = ?
+            WHERE p_id = ? AND p_roles = ? AND p_id_dis <=> ?
+            """;
+    static final String SELECT_CHARACTERS_BY_STEAM_ID = """
+            SELECT c_id, c_name, c_uid, c_roles, c_lastupd, c_side
+            FROM characters
+            WHERE c_uid = ?
+            ORDER BY c_lastupd DESC
+            """;
+    static final String SELECT_CHARACTERS_BY_DIS_ID = """
+            SELECT c_id, c_name, c_uid, c_roles, c_lastupd, c_side
+            FROM characters, profiles
+            WHERE c_uid = p_uid AND p_id_dis = ?
+            ORDER BY c_lastupd DESC
+            """;
+
+    /** Conditional writes of a row that keeps being changed by others give up after this many */
+    static final int CAS_ATTEMPTS = 10;
+
     private final ZDSBot bot;
+    private final CopyOnWriteArrayList<ProfileListener> profileListeners = new CopyOnWriteArrayList<>();
+    private final RoleIndex roleIndex = new RoleIndex();
+    private final Object roleIndexReloadLock = new Object();
+    private final PlayersCache cache = new PlayersCache();
+    /** The bot's shared connection serves one statement at a time, and no transactions */
+    private final Object sharedConnectionLock = new Object();
+    private volatile PlayersDataSource dataSource;
+    private volatile CharacterFeed feed;
+    private volatile AuditJournal journal;
 
     public PlayersDB(ZDSBot bot) {
         this.bot = bot;
     }
 
+    public PlayersDB(ZDSBot bot, PlayersDataSource dataSource) {
+        this.bot = bot;
+        this.dataSource = dataSource;
+    }
+
+    public PlayersCache getCache() {
+        return cache;
+    }
+
+    public PlayersDataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Route queries through a connection pool instead of the bot's shared connection.
+     * Passing {@code null} returns to the shared connection.
+     */
+    public void setDataSource(PlayersDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public void addProfileListener(ProfileListener listener) {
+        profileListeners.add(listener);
+    }
+
+    public void removeProfileListener(ProfileListener listener) {
+        profileListeners.remove(listener);
+    }
+
+    private void fireProfileChanged(String steamId, @Nullable PlayerProfile profile) {
+        if (profileListeners.isEmpty()) return;
+        final PlayerProfile p;
+        try {
+            p = profile != null ? profile : getPlayer(steamId);
+        } catch (RuntimeException e) {
+            log.error("Cannot read changed profile {}", steamId, e);
+            return;
+        }
+        for (ProfileListener listener : profileListeners) {
+            try {
+                listener.onProfileChanged(p);
+            } catch (Throwable e) {
+                log.error("Profile listener failed", e);
+            }
+        }
+    }
+
+    private void fireProfilesChanged(List<PlayerProfile> profiles) {
+        if (profiles.isEmpty()) return;
+        for (ProfileListener listener : profileListeners) {
+            try {
+                listener.onProfilesChanged(profiles);
+            } catch (Throwable e) {
+                log.error("Profile listener failed", e);
+            }
+        }
+    }
+
+    void setCharacterFeed(CharacterFeed feed) {
+        this.feed = feed;
+    }
+
+    public AuditJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Record role changes to the journal. Passing {@code null} stops recording.
+     */
+    public void setJournal(AuditJournal journal) {
+        this.journal = journal;
+    }
+
+    private void audit(String steamId, long charId, @Nullable RoleSet before, RoleSet after, String actor) {
+        final AuditJournal j = journal;
+        if (j != null)
+            j.record(steamId, charId, before, after, actor);
+    }
+
+    private void audit(String steamId, long charId, @Nullable RoleSet before, RoleSet after) {
+        audit(steamId, charId, before, after, AuditJournal.currentActor());
+    }
+
+    <T> T withStatement(String sql, SqlFunction<T> fn) {
+        final PlayersDataSource ds = dataSource;
+        if (ds == null) {
+            synchronized (sharedConnectionLock) {
+                return bot.getDbConnectionHandler().withPrepStatement(sql, st -> { return fn.apply(st); });
+            }
+        }
+
+        try (Connection conn = ds.getConnection();
+             PreparedStatement st = conn.prepareStatement(sql)) {
+            return fn.apply(st);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs {@code fn} with a connection of the pool, for work that prepares its own statements.
+     * The bot's shared connection is not lent out: code outside of PlayersDB runs statements on it as well,
+     * so they would be committed or rolled back along with the work of {@code fn}.
+     * @throws PoolRequiredException without a pool
+     */
+    <T> T withConnection(SqlConnectionFunction<T> fn) {
+        final PlayersDataSource ds = dataSource;
+        if (ds == null)
+            throw new PoolRequiredException();
+
+        try (Connection conn = ds.getConnection()) {
+            return fn.apply(conn);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs {@code fn} in one transaction on a connection of the pool: committed if it returns,
+     * rolled back if it throws.
+     * @throws PoolRequiredException without a pool
+     */
+    <T> T withTransaction(String sql, SqlFunction<T> fn) {
+        return withConnection(conn -> {
+            try (PreparedStatement st = conn.prepareStatement(sql)) {
+                return inTransaction(conn, c -> fn.apply(st));
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #withTransaction(String, SqlFunction)}, for work that prepares its own statements
+     */
+    <T> T withTransaction(SqlConnectionFunction<T> fn) {
+        return withConnection(conn -> inTransaction(conn, fn));
+    }
+
+    private static <T> T inTransaction(Connection conn, SqlConnectionFunction<T> fn) throws SQLException {
+        final boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            final T res = fn.apply(conn);
+            conn.commit();
+            return res;
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private void withStatement(String sql, SqlConsumer fn) {
+        withStatement(sql, st -> {
+            fn.accept(st);
+            return null;
+        });
+    }
+
     public PlayerProfile getPlayer(String steamId) {
-        return bot.getDbConnectionHandler().withPrepStatement("""
-                SELECT * FROM profiles
-                WHERE p_uid = ?
-                """, (st) -> {
+        final PlayerProfile cached = cache.getProfile(steamId);
+        if (cached != null)
+            return cached;
+
+        final long stamp = cache.stamp();
+        final PlayerProfile player = withStatement(SELECT_PROFILE_BY_STEAM_ID, (st) -> {
             st.setString(1, steamId);
             ResultSet r = st.executeQuery();
             if (!r.next())
-                throw new DescribedException("No such player SteamID in the database");
+                throw new NoSuchPlayerException();
             return getPlayerProfile(r);
         });
+        cache.putProfile(player, stamp);
+        return player;
     }
 
     public PlayerProfile getPlayerByDisId(String disId) {
-        return bot.getDbConnectionHandler().withPrepStatement("""
-                SELECT * FROM profiles
-                WHERE p_id_dis = ?
-                """, st -> {
+        final PlayerProfile cached = cache.getProfileByDisId(disId);
+        if (cached != null)
+            return cached;
+
+        final long stamp = cache.stamp();
+        final PlayerProfile player = withStatement(SELECT_PROFILE_BY_DIS_ID, st -> {
             st.setString(1, disId);
             ResultSet r = st.executeQuery();
             if (!r.next())
                 throw new PlayerNotBoundException();
             return getPlayerProfile(r);
         });
+        cache.putProfile(player, stamp);
+        return player;
     }
 
     public void bindPlayer(String steamId, String disId) {
-        bot.getDbConnectionHandler().withPrepStatement("""
+        withStatement("""
                 INSERT INTO profiles (p_id_dis, p_uid, p_roles)
                 VALUES (?, ?, '[ ]')
                 ON DUPLICATE KEY UPDATE
@@ -67,76 +309,689 @@ public class PlayersDB {
             st.setString(3, disId);
             st.executeUpdate();
         });
+        cache.invalidateProfile(steamId, disId);
+        fireProfileChanged(steamId, null);
     }
 
-    public void updateRoles(String steamId, String disId, Set<Integer> newRoles) {
-        bot.getDbConnectionHandler().withPrepStatement("""
-                INSERT INTO profiles (p_id_dis, p_uid, p_roles)
-                VALUES (?, ?, ?)
-                ON DUPLICATE KEY UPDATE
-                p_id_dis = ?, p_roles = ?
-                """, st -> {
-            String roles = setToString(newRoles);
-            st.setString(1, disId);
-            st.setString(2, steamId);
-            st.setString(3, roles);
-            st.setString(4, disId);
-            st.setString(5, roles);
-            st.executeUpdate();
+    public void updateRoles(String steamId, String disId, RoleSet newRoles) {
+        final PlayerProfile cached = cache.getProfile(steamId);
+        try {
+            withStatement("""
+                    INSERT INTO profiles (p_id_dis, p_uid, p_roles)
+                    VALUES (?, ?, ?)
+                    ON DUPLICATE KEY UPDATE
+                    p_id_dis = ?, p_roles = ?
+                    """, st -> {
+                String roles = setToString(newRoles);
+                st.setString(1, disId);
+                st.setString(2, steamId);
+                st.setString(3, roles);
+                st.setString(4, disId);
+                st.setString(5, roles);
+                st.executeUpdate();
+            });
+            roleIndex.update(steamId, newRoles);
+            audit(steamId, 0, cached != null ? cached.roles : null, newRoles);
+        } finally {
+            cache.invalidateProfile(steamId, disId);
+        }
+        fireProfileChanged(steamId, null);
+    }
+
+    public PlayerInfo addRoles(String steamId, String disId, Collection<Integer> newRoles, Characters scope) {
+        return addRoles(steamId, disId, newRoles, scope, null);
+    }
+
+    /**
+     * @param hook runs in the transaction of the role change
+     */
+    public PlayerInfo addRoles(String steamId, String disId, Collection<Integer> newRoles, Characters scope,
+                               @Nullable RoleChangeHook hook) {
+        return mutateRoles(new RoleWriteQueue.Op(steamId, disId, scope, roles -> roles.addAll(newRoles), hook));
+    }
+
+    public PlayerInfo rmRoles(String disId, Collection<Integer> toRm) {
+        return rmRoles(disId, toRm, Characters.ALL);
+    }
+
+    public PlayerInfo rmRoles(String disId, Collection<Integer> toRm, Characters scope) {
+        return rmRoles(disId, toRm, scope, null);
+    }
+
+    public PlayerInfo rmRoles(String disId, Collection<Integer> toRm, Characters scope, @Nullable RoleChangeHook hook) {
+        return mutateRoles(new RoleWriteQueue.Op(null, disId, scope, roles -> roles.removeAll(toRm), hook));
+    }
+
+    /**
+     * Same as {@link #rmRoles(String, Collection, Characters)}, for players that may have no Discord bound
+     */
+    public PlayerInfo rmRolesBySteamId(String steamId, Collection<Integer> toRm, Characters scope) {
+        return mutateRoles(new RoleWriteQueue.Op(steamId, null, scope, roles -> roles.removeAll(toRm), null));
+    }
+
+    /**
+     * A profile-only change of a cached player is one conditional UPDATE, see {@link #compareAndSetRoles}.
+     * Otherwise, and on conflict, it is a {@link #mutateRolesBatch} of one operation: the profile and characters
+     * are read under their row locks in the writing transaction, so the change is applied to, and journaled
+     * against, the values actually overwritten. Character-scoped changes always take the locked path:
+     * one statement cannot check the cached roles of every character along with the profile.
+     */
+    PlayerInfo mutateRoles(RoleWriteQueue.Op op) {
+        if (dataSource == null)
+            return mutateRolesAutocommit(op);
+        if (op.scope == Characters.NONE && op.hook == null) {
+            final PlayerInfo fast = compareAndSetRoles(op);
+            if (fast != null)
+                return fast;
+        }
+
+        final PlayerInfo res = mutateRolesBatch(List.of(op)).get(op);
+        if (res != null)
+            return res;
+        if (op.steamId != null)
+            throw new NoSuchPlayerException();
+        throw new PlayerNotBoundException();
+    }
+
+    /**
+     * Writes the change against the cached profile in autocommit, provided the row still holds the cached
+     * binding and roles. As the row is compared by value, the cached roles are exactly what is overwritten.
+     * @return {@code null} if the profile is not cached or has been changed since, so the caller has to lock it
+     */
+    @Nullable
+    private PlayerInfo compareAndSetRoles(RoleWriteQueue.Op op) {
+        final PlayerProfile old = op.steamId != null ? cache.getProfile(op.steamId) : cache.getProfileByDisId(op.disId);
+        if (old == null)
+            return null;
+
+        final RoleSet roles = new RoleSet(old.roles);
+        op.op.accept(roles);
+        final String disId = op.disId != null ? op.disId : old.dsId;
+        final PlayerProfile profile = new PlayerProfile(old.id, old.name, disId, old.steamId, roles);
+        try {
+            final int updated = withStatement(CAS_PROFILE, st -> {
+                st.setString(1, disId);
+                st.setString(2, roles.toString());
+                st.setLong(3, old.id);
+                st.setString(4, old.roles.toString());
+                st.setString(5, old.dsId);
+                return st.executeUpdate();
+            });
+            // 0 also when the driver counts affected rather than found rows and nothing has changed
+            if (updated == 0)
+                return null;
+            roleIndex.update(old.steamId, roles);
+            audit(old.steamId, 0, old.roles, roles, op.actor);
+        } finally {
+            cache.invalidateProfile(op.steamId, op.disId);
+            cache.invalidateProfile(old.steamId, old.dsId);
+        }
+        fireProfileChanged(profile.steamId, profile);
+        return new PlayerInfo(profile, new ArrayList<>());
+    }
+
+    /**
+     * Without a pool a change cannot have a transaction of its own, see {@link #withConnection}. Every row is
+     * written alone in autocommit instead: read, changed and written back by a conditional UPDATE against the
+     * value read, and read again on conflict. The profile goes first, then each character. So a change is not
+     * atomic across rows, and changes with a hook, which runs in the transaction, require the pool.
+     */
+    private PlayerInfo mutateRolesAutocommit(RoleWriteQueue.Op op) {
+        if (op.hook != null)
+            throw new PoolRequiredException();
+
+        PlayerInfo info = null;
+        PlayerProfile profile = null;
+        final ArrayList<PlayerCharacter> chars = new ArrayList<>();
+        final ArrayList<PlayerCharacter> writtenChars = new ArrayList<>();
+        try {
+            for (int attempt = 0; profile == null; attempt++) {
+                if (attempt >= CAS_ATTEMPTS)
+                    throw new RuntimeException("Roles of player %s keep changing".formatted(info.profile.steamId));
+                info = readPlayerInfo(op);
+                profile = writeProfile(info.profile, op);
+            }
+            roleIndex.update(profile.steamId, profile.roles);
+
+            int j = 0;
+            for (PlayerCharacter c : info.characters) {
+                final boolean inScope = op.scope == Characters.ALL || op.scope == Characters.LAST_ACTIVE && j == 0;
+                j++;
+                final PlayerCharacter updated = inScope ? writeCharacter(c, op) : c;
+                if (updated == null) continue;
+                chars.add(updated);
+                if (updated != c) writtenChars.add(updated);
+            }
+            final CharacterFeed f = feed;
+            if (f != null)
+                writtenChars.forEach(f::update);
+        } finally {
+            cache.invalidateProfile(op.steamId, op.disId);
+            if (info != null) {
+                cache.invalidateProfile(info.profile.steamId, info.profile.dsId);
+                cache.invalidateCharacters(info.profile.steamId);
+            }
+        }
+        fireProfileChanged(profile.steamId, profile);
+        return new PlayerInfo(profile, chars);
+    }
+
+    /**
+     * Reads the player an operation is addressed to, bypassing the cache
+     */
+    private PlayerInfo readPlayerInfo(RoleWriteQueue.Op op) {
+        return withStatement(op.steamId != null ? SELECT_INFOS_BY_STEAM_IDS.formatted(placeholders(1))
+                : SELECT_INFO_BY_DIS_ID, st -> {
+            st.setString(1, op.steamId != null ? op.steamId : op.disId);
+            final LinkedList<PlayerInfo> res = new LinkedList<>();
+            readPlayerInfos(st.executeQuery(), res::add);
+            if (!res.isEmpty())
+                return res.getFirst();
+            if (op.steamId != null)
+                throw new NoSuchPlayerException();
+            throw new PlayerNotBoundException();
         });
     }
 
-    public PlayerProfile addRoles(String disId, Collection<Integer> newRoles) {
-        PlayerProfile ply = getPlayerByDisId(disId);
-        addRoles(ply, disId, newRoles);
-        return ply;
+    /**
+     * @param old profile as just read
+     * @return profile written, or {@code null} if it has been changed since it was read
+     */
+    @Nullable
+    private PlayerProfile writeProfile(PlayerProfile old, RoleWriteQueue.Op op) {
+        final RoleSet roles = new RoleSet(old.roles);
+        op.op.accept(roles);
+        final String disId = op.disId != null ? op.disId : old.dsId;
+        // Without a change the read itself is the point the change takes effect at
+        if (!roles.equals(old.roles) || !Objects.equals(disId, old.dsId)) {
+            final int updated = withStatement(CAS_PROFILE, st -> {
+                st.setString(1, disId);
+                st.setString(2, roles.toString());
+                st.setLong(3, old.id);
+                st.setString(4, old.roles.toString());
+                st.setString(5, old.dsId);
+                return st.executeUpdate();
+            });
+            if (updated == 0)
+                return null;
+        }
+        audit(old.steamId, 0, old.roles, roles, op.actor);
+        return new PlayerProfile(old.id, old.name, disId, old.steamId, roles);
     }
 
-    public PlayerProfile addRoles(String steamId, String disId, Collection<Integer> newRoles) {
-        PlayerProfile player = getPlayer(steamId);
-        addRoles(player, disId, newRoles);
-        return player;
+    /**
+     * @return character written, {@code c} itself if it does not change, or {@code null} if it has been deleted
+     */
+    @Nullable
+    private PlayerCharacter writeCharacter(PlayerCharacter c, RoleWriteQueue.Op op) {
+        for (int attempt = 0; attempt < CAS_ATTEMPTS; attempt++) {
+            final PlayerCharacter old = c;
+            final RoleSet roles = new RoleSet(old.roles);
+            op.charOp.accept(old, roles);
+            if (roles.equals(old.roles))
+                return old;
+            final int updated = withStatement("""
+                    UPDATE characters
+                    SET c_roles = ?
+                    WHERE c_id = ? AND c_roles = ?
+                    """, st -> {
+                st.setString(1, roles.toString());
+                st.setLong(2, old.id);
+                st.setString(3, old.roles.toString());
+                return st.executeUpdate();
+            });
+            if (updated > 0) {
+                audit(old.steamId, old.id, old.roles, roles, op.actor);
+                return new PlayerCharacter(old.id, old.name, old.steamId, roles, old.lastupd, old.side);
+            }
+            c = withStatement("""
+                    SELECT c_id, c_name, c_uid, c_roles, c_lastupd, c_side
+                    FROM characters
+                    WHERE c_id = ?
+                    """, st -> {
+                st.setLong(1, old.id);
+                final ResultSet r = st.executeQuery();
+                return r.next() ? getPlayerCharacter(r) : null;
+            });
+            if (c == null)
+                return null;
+        }
+        throw new RuntimeException("Roles of character %d keep changing".formatted(c.id));
     }
 
-    public void addRoles(PlayerProfile player, String disId, Collection<Integer> newRoles) {
-        player.roles.addAll(newRoles);
-        updateRoles(player.steamId, disId, player.roles);
+    /**
+     * Write-behind flush: applies the queued operations of many players in one transaction. Round trips do not
+     * depend on the number of players: one read locking the profiles along with their characters, one batched
+     * UPDATE of the profiles, one of the changed characters if there are any, and the commit. Switching
+     * autocommit off and back on around the transaction may cost the driver two more.
+     * @return final state of the player for every operation; operations of unbound players are absent
+     */
+    IdentityHashMap<RoleWriteQueue.Op, PlayerInfo> mutateRolesBatch(List<RoleWriteQueue.Op> ops) {
+        final IdentityHashMap<RoleWriteQueue.Op, PlayerInfo> res = new IdentityHashMap<>();
+        final LinkedHashMap<String, PlayerInfo> written = new LinkedHashMap<>();
+        final ArrayList<PlayerCharacter> writtenChars = new ArrayList<>();
+        final ArrayList<Runnable> audited = new ArrayList<>();
+        try {
+            withTransaction(conn -> {
+                final HashMap<String, PlayerInfo> locked = lockPlayers(conn, ops);
+                for (Map.Entry<String, ArrayList<RoleWriteQueue.Op>> e : groupByPlayer(ops, locked).entrySet()) {
+                    final PlayerInfo after = applyOps(conn, locked.get(e.getKey()), e.getValue(), audited);
+                    written.put(e.getKey(), after);
+                    for (RoleWriteQueue.Op op : e.getValue())
+                        res.put(op, after);
+                }
+                writtenChars.addAll(writePlayers(conn, locked, written));
+                return null;
+            });
+            notifyWritten(written.values(), writtenChars, audited);
+        } finally {
+            for (RoleWriteQueue.Op op : ops)
+                cache.invalidateProfile(op.steamId, op.disId);
+            for (PlayerInfo info : written.values()) {
+                cache.invalidateProfile(info.profile.steamId, info.profile.dsId);
+                cache.invalidateCharacters(info.profile.steamId);
+            }
+        }
+        for (PlayerInfo info : written.values())
+            fireProfileChanged(info.profile.steamId, info.profile);
+        return res;
     }
 
-    public PlayerProfile rmRoles(String disId, Collection<Integer> toRm) {
-        PlayerProfile player = getPlayerByDisId(disId);
-        rmRoles(player, toRm);
-        return player;
+    /**
+     * @return players the operations are addressed to, by SteamID, with their characters most recent first
+     */
+    private HashMap<String, PlayerInfo> lockPlayers(Connection conn, List<RoleWriteQueue.Op> ops)
+            throws SQLException {
+        final LinkedHashSet<String> steamIds = new LinkedHashSet<>();
+        final LinkedHashSet<String> disIds = new LinkedHashSet<>();
+        for (RoleWriteQueue.Op op : ops) {
+            if (op.steamId != null) steamIds.add(op.steamId);
+            else disIds.add(op.disId);
+        }
+
+        final HashMap<String, PlayerInfo> res = new HashMap<>();
+        try (PreparedStatement st = conn.prepareStatement(LOCK_PLAYERS.formatted(
+                placeholders(Math.max(1, steamIds.size())), placeholders(Math.max(1, disIds.size()))))) {
+            int i = 1;
+            if (steamIds.isEmpty()) st.setNull(i++, Types.VARCHAR);
+            for (String steamId : steamIds) st.setString(i++, steamId);
+            if (disIds.isEmpty()) st.setNull(i++, Types.VARCHAR);
+            for (String disId : disIds) st.setString(i++, disId);
+            readPlayerInfos(st.executeQuery(), info ->
+                    res.put(info.profile.steamId, new PlayerInfo(info.profile, new ArrayList<>(info.characters))));
+        }
+        return res;
     }
-    
-    public void rmRoles(PlayerProfile player, Collection<Integer> toRm) {
-        toRm.forEach(player.roles::remove);
-        updateRoles(player.steamId, player.dsId, player.roles);
+
+    /**
+     * @return operations of every locked player, in the order they were queued
+     */
+    private static LinkedHashMap<String, ArrayList<RoleWriteQueue.Op>> groupByPlayer(
+            List<RoleWriteQueue.Op> ops, Map<String, PlayerInfo> locked) {
+        final HashMap<String, String> byDisId = new HashMap<>();
+        for (PlayerInfo info : locked.values())
+            if (info.profile.dsId != null) byDisId.put(info.profile.dsId, info.profile.steamId);
+
+        final LinkedHashMap<String, ArrayList<RoleWriteQueue.Op>> res = new LinkedHashMap<>();
+        for (RoleWriteQueue.Op op : ops) {
+            final String steamId = op.steamId != null ? op.steamId : byDisId.get(op.disId);
+            if (steamId != null && locked.containsKey(steamId))
+                res.computeIfAbsent(steamId, k -> new ArrayList<>()).add(op);
+        }
+        return res;
+    }
+
+    /**
+     * Applies the operations of one player in memory and runs their hooks.
+     * Every operation is journaled under its own actor, as if it was written alone.
+     * @param audited receives the journal records, to be made once the transaction is committed
+     * @return state to be written; characters that have not changed are the locked instances
+     */
+    private PlayerInfo applyOps(Connection conn, PlayerInfo old, List<RoleWriteQueue.Op> ops,
+                                List<Runnable> audited) throws SQLException {
+        final PlayerProfile p = old.profile;
+        final List<PlayerCharacter> oldChars = old.characters;
+        final RoleSet roles = new RoleSet(p.roles);
+        final ArrayList<RoleSet> charRoles = new ArrayList<>(oldChars.size());
+        for (PlayerCharacter c : oldChars)
+            charRoles.add(new RoleSet(c.roles));
+        String disId = p.dsId;
+        for (RoleWriteQueue.Op op : ops) {
+            final PlayerInfo before = op.hook != null ? snapshot(p, disId, roles, oldChars, charRoles) : null;
+            final RoleSet opBefore = new RoleSet(roles);
+            op.op.accept(roles);
+            final RoleSet opAfter = new RoleSet(roles);
+            audited.add(() -> audit(p.steamId, 0, opBefore, opAfter, op.actor));
+            if (op.disId != null) disId = op.disId;
+
+            for (int j = 0; j < oldChars.size(); j++) {
+                if (op.scope != Characters.ALL && !(op.scope == Characters.LAST_ACTIVE && j == 0))
+                    continue;
+                final PlayerCharacter c = oldChars.get(j);
+                final RoleSet charBefore = new RoleSet(charRoles.get(j));
+                op.charOp.accept(c, charRoles.get(j));
+                final RoleSet charAfter = new RoleSet(charRoles.get(j));
+                audited.add(() -> audit(c.steamId, c.id, charBefore, charAfter, op.actor));
+            }
+            if (op.hook != null)
+                op.hook.apply(conn, before, snapshot(p, disId, roles, oldChars, charRoles));
+        }
+
+        final ArrayList<PlayerCharacter> newChars = new ArrayList<>(oldChars.size());
+        for (int j = 0; j < oldChars.size(); j++) {
+            final PlayerCharacter c = oldChars.get(j);
+            newChars.add(charRoles.get(j).equals(c.roles) ? c
+                    : new PlayerCharacter(c.id, c.name, c.steamId, charRoles.get(j), c.lastupd, c.side));
+        }
+        return new PlayerInfo(new PlayerProfile(p.id, p.name, disId, p.steamId, roles), newChars);
+    }
+
+    /**
+     * @return characters that have been changed
+     */
+    private static ArrayList<PlayerCharacter> writePlayers(Connection conn, Map<String, PlayerInfo> locked,
+                                                           Map<String, PlayerInfo> written) throws SQLException {
+        final ArrayList<PlayerCharacter> res = new ArrayList<>();
+        if (written.isEmpty())
+            return res;
+        try (PreparedStatement profiles = conn.prepareStatement("""
+                UPDATE profiles
+                SET p_id_dis = ?, p_roles = ?
+                WHERE p_id = ?
+                """);
+             PreparedStatement characters = conn.prepareStatement("""
+                UPDATE characters
+                SET c_roles = ?
+                WHERE c_id = ?
+                """)) {
+            for (Map.Entry<String, PlayerInfo> e : written.entrySet()) {
+                final PlayerProfile profile = e.getValue().profile;
+                profiles.setString(1, profile.dsId);
+                profiles.setString(2, profile.roles.toString());
+                profiles.setLong(3, profile.id);
+                profiles.addBatch();
+
+                final List<PlayerCharacter> oldChars = locked.get(e.getKey()).characters;
+                final List<PlayerCharacter> newChars = e.getValue().characters;
+                for (int j = 0; j < newChars.size(); j++) {
+                    final PlayerCharacter c = newChars.get(j);
+                    if (c == oldChars.get(j)) continue;
+                    res.add(c);
+                    characters.setString(1, c.roles.toString());
+                    characters.setLong(2, c.id);
+                    characters.addBatch();
+                }
+            }
+            profiles.executeBatch();
+            if (!res.isEmpty())
+                characters.executeBatch();
+        }
+        return res;
+    }
+
+    /**
+     * Publishes a committed flush to the role index, the journal and the character feed
+     */
+    private void notifyWritten(Collection<PlayerInfo> written, List<PlayerCharacter> writtenChars,
+                               List<Runnable> audited) {
+        for (PlayerInfo info : written)
+            roleIndex.update(info.profile.steamId, info.profile.roles);
+        audited.forEach(Runnable::run);
+        final CharacterFeed f = feed;
+        if (f != null)
+            writtenChars.forEach(f::update);
+    }
+
+    private static PlayerInfo snapshot(PlayerProfile p, String disId, RoleSet roles,
+                                       List<PlayerCharacter> chars, List<RoleSet> charRoles) {
+        final ArrayList<PlayerCharacter> res = new ArrayList<>(chars.size());
+        for (int j = 0; j < chars.size(); j++) {
+            final PlayerCharacter c = chars.get(j);
+            res.add(new PlayerCharacter(c.id, c.name, c.steamId, new RoleSet(charRoles.get(j)), c.lastupd, c.side));
+        }
+        return new PlayerInfo(new PlayerProfile(p.id, p.name, disId, p.steamId, new RoleSet(roles)), res);
+    }
+
+    /**
+     * One chunk of a bulk import: locks the existing profiles, merges the roles and upserts all rows in a batch.
+     * Rows with the same SteamID are merged, the last Discord id wins.
+     * @return amount of profiles written
+     */
+    int importProfiles(List<PlayersImport.Row> rows) {
+        final LinkedHashMap<String, PlayersImport.Row> bySteamId = new LinkedHashMap<>();
+        for (PlayersImport.Row row : rows) {
+            final PlayersImport.Row prev = bySteamId.get(row.steamId);
+            if (prev != null) {
+                // Merged into a new row: the chunk may be imported again row by row
+                final RoleSet roles = new RoleSet(row.roles);
+                roles.addAll(prev.roles);
+                row = new PlayersImport.Row(row.position, row.steamId,
+                        row.disId != null ? row.disId : prev.disId, roles);
+            }
+            bySteamId.put(row.steamId, row);
+        }
+
+        final ArrayList<PlayerProfile> written = new ArrayList<>(bySteamId.size());
+        final HashMap<String, PlayerProfile> existing = new HashMap<>();
+        try {
+            withTransaction("""
+                    SELECT * FROM profiles
+                    WHERE p_uid IN (%s)
+                    FOR UPDATE
+                    """.formatted(placeholders(bySteamId.size())), st -> {
+                final Connection conn = st.getConnection();
+                int i = 1;
+                for (String steamId : bySteamId.keySet())
+                    st.setString(i++, steamId);
+                ResultSet r = st.executeQuery();
+                while (r.next()) {
+                    final PlayerProfile p = getPlayerProfile(r);
+                    existing.put(p.steamId, p);
+                }
+
+                try (PreparedStatement upsert = conn.prepareStatement("""
+                        INSERT INTO profiles (p_id_dis, p_uid, p_roles)
+                        VALUES (?, ?, ?)
+                        ON DUPLICATE KEY UPDATE
+                        p_id_dis = VALUES(p_id_dis), p_roles = VALUES(p_roles)
+                        """)) {
+                    for (PlayersImport.Row row : bySteamId.values()) {
+                        final PlayerProfile old = existing.get(row.steamId);
+                        final RoleSet roles = old != null ? new RoleSet(old.roles) : new RoleSet();
+                        roles.addAll(row.roles);
+                        final String disId = row.disId != null ? row.disId : old != null ? old.dsId : null;
+
+                        upsert.setString(1, disId);
+                        upsert.setString(2, row.steamId);
+                        upsert.setString(3, roles.toString());
+                        upsert.addBatch();
+                        written.add(new PlayerProfile(old != null ? old.id : 0,
+                                old != null ? old.name : null, disId, row.steamId, roles));
+                    }
+                    upsert.executeBatch();
+                }
+
+                // Ids of the new profiles, so listeners get complete profiles without reading them one by one
+                final ArrayList<String> created = new ArrayList<>();
+                for (PlayerProfile p : written)
+                    if (p.id == 0) created.add(p.steamId);
+                if (created.isEmpty())
+                    return null;
+                final HashMap<String, Long> ids = new HashMap<>();
+                try (PreparedStatement select = conn.prepareStatement("""
+                        SELECT p_id, p_uid FROM profiles
+                        WHERE p_uid IN (%s)
+                        """.formatted(placeholders(created.size())))) {
+                    int k = 1;
+                    for (String steamId : created)
+                        select.setString(k++, steamId);
+                    final ResultSet idRows = select.executeQuery();
+                    while (idRows.next())
+                        ids.put(idRows.getString("p_uid"), idRows.getLong("p_id"));
+                }
+                written.replaceAll(p -> p.id != 0 ? p
+                        : new PlayerProfile(ids.getOrDefault(p.steamId, 0L), p.name, p.dsId, p.steamId, p.roles));
+                return null;
+            });
+            for (PlayerProfile p : written) {
+                roleIndex.update(p.steamId, p.roles);
+                final PlayerProfile old = existing.get(p.steamId);
+                audit(p.steamId, 0, old != null ? old.roles : null, p.roles);
+            }
+        } finally {
+            for (PlayersImport.Row row : bySteamId.values()) {
+                final PlayerProfile old = existing.get(row.steamId);
+                cache.invalidateProfile(row.steamId, row.disId);
+                if (old != null) cache.invalidateProfile(null, old.dsId);
+            }
+        }
+        // Only profiles that have actually changed, so role sync does not diff the unchanged ones
+        final ArrayList<PlayerProfile> changed = new ArrayList<>(written.size());
+        for (PlayerProfile p : written) {
+            final PlayerProfile old = existing.get(p.steamId);
+            if (old == null || !old.roles.equals(p.roles) || !Objects.equals(old.dsId, p.dsId))
+                changed.add(p);
+        }
+        fireProfilesChanged(changed);
+        return written.size();
     }
 
     public LinkedList<PlayerProfile> getPlayersWithRole(int role) {
-        return bot.getDbConnectionHandler().withPrepStatement("""
-            SELECT p_id_dis, p_roles, p_name, p_uid, p_id FROM profiles
-            """, st -> {
+        final LinkedList<PlayerProfile> res = new LinkedList<>();
+        for (List<String> chunk : inChunks(getRoleIndex().getSteamIds(role))) {
+            withStatement(SELECT_PROFILES_BY_STEAM_IDS.formatted(placeholders(chunk.size())), st -> {
+                int i = 1;
+                for (String steamId : chunk)
+                    st.setString(i++, steamId);
+
+                ResultSet r = st.executeQuery();
+                while (r.next()) {
+                    PlayerProfile player = getPlayerProfile(r);
+                    RoleSet roles = player.getRoles();
+                    if (roles.contains(role))
+                        res.add(player);
+                    else roleIndex.update(player.getSteamId(), roles);
+                }
+                return null;
+            });
+        }
+        return res;
+    }
+
+    /**
+     * All profiles bound to a Discord account, keyed by Discord id. Bypasses the cache.
+     */
+    public HashMap<String, PlayerProfile> getBoundProfiles() {
+        return withStatement("""
+                SELECT p_id_dis, p_roles, p_name, p_uid, p_id FROM profiles
+                WHERE p_id_dis IS NOT NULL
+                """, st -> {
             ResultSet r = st.executeQuery();
-            LinkedList<PlayerProfile> res = new LinkedList<>();
+            HashMap<String, PlayerProfile> res = new HashMap<>();
             while (r.next()) {
                 PlayerProfile player = getPlayerProfile(r);
-                HashSet<Integer> roles = player.getRoles();
-                if (roles.contains(role))
-                    res.add(player);
+                res.put(player.dsId, player);
             }
             return res;
         });
     }
 
+    public LinkedList<PlayerInfo> getPlayersWithRoleAndCharacters(int role) {
+        final LinkedList<PlayerInfo> res = new LinkedList<>();
+        for (List<String> chunk : inChunks(getRoleIndex().getSteamIds(role))) {
+            withStatement(SELECT_INFOS_BY_STEAM_IDS.formatted(placeholders(chunk.size())), st -> {
+                int i = 1;
+                for (String steamId : chunk)
+                    st.setString(i++, steamId);
+
+                readPlayerInfos(st.executeQuery(), info -> {
+                    RoleSet roles = info.profile.getRoles();
+                    if (roles.contains(role))
+                        res.add(info);
+                    else roleIndex.update(info.profile.getSteamId(), roles);
+                });
+                return null;
+            });
+        }
+        return res;
+    }
+
+    public PlayerInfo getPlayerWithCharactersByDisId(String disId) {
+        final long stamp = cache.stamp();
+        return withStatement(SELECT_INFO_BY_DIS_ID, st -> {
+            st.setString(1, disId);
+            LinkedList<PlayerInfo> res = new LinkedList<>();
+            readPlayerInfos(st.executeQuery(), res::add);
+            if (res.isEmpty())
+                throw new PlayerNotBoundException();
+            PlayerInfo info = res.getFirst();
+            cache.putProfile(info.profile, stamp);
+            cache.putCharacters(info.profile.steamId, info.characters, stamp);
+            return info;
+        });
+    }
+
+    private void readPlayerInfos(ResultSet r, Consumer<PlayerInfo> consumer) throws SQLException {
+        PlayerProfile current = null;
+        LinkedList<PlayerCharacter> chars = null;
+        while (r.next()) {
+            final String steamId = r.getString("p_uid");
+            if (current == null || !Objects.equals(current.steamId, steamId)) {
+                if (current != null)
+                    consumer.accept(new PlayerInfo(current, chars));
+                current = getPlayerProfile(r);
+                chars = new LinkedList<>();
+            }
+            r.getLong("c_id");
+            if (!r.wasNull())
+                chars.add(getPlayerCharacter(r));
+        }
+        if (current != null)
+            consumer.accept(new PlayerInfo(current, chars));
+    }
+
+    RoleIndex getRoleIndex() {
+        if (!roleIndex.isExpired())
+            return roleIndex;
+
+        // Single flight: callers that come during a reload wait for it instead of reading the table again
+        synchronized (roleIndexReloadLock) {
+            if (!roleIndex.isExpired())
+                return roleIndex;
+            roleIndex.beginReload();
+            try {
+                final HashMap<String, RoleSet> roles = withStatement("""
+                    SELECT p_uid, p_roles FROM profiles
+                    """, st -> {
+                    ResultSet r = st.executeQuery();
+                    HashMap<String, RoleSet> res = new HashMap<>();
+                    while (r.next())
+                        res.put(r.getString("p_uid"), parseSet(r.getString("p_roles")));
+                    return res;
+                });
+                roleIndex.load(roles);
+            } catch (RuntimeException e) {
+                roleIndex.abortReload();
+                throw e;
+            }
+        }
+        return roleIndex;
+    }
+
     public LinkedList<PlayerCharacter> getPlayerCharacters(String steamId) {
-        return bot.getDbConnectionHandler().withPrepStatement("""
-                SELECT c_id, c_name, c_uid, c_roles, c_lastupd, c_side
-                FROM characters
-                WHERE c_uid = ?
-                ORDER BY c_lastupd DESC
-                """, st -> {
+        final List<PlayerCharacter> cached = cache.getCharacters(steamId);
+        if (cached != null)
+            return new LinkedList<>(cached);
+
+        // The feed has no entry for players without characters, or with rows it has not seen yet.
+        // Its entries may be up to 3 polls old, and deletes show up only when their range is reconciled
+        final CharacterFeed f = feed;
+        final List<PlayerCharacter> fromFeed = f != null && f.isHealthy() ? f.getCharacters(steamId) : null;
+        if (fromFeed != null)
+            return new LinkedList<>(fromFeed);
+
+        final long stamp = cache.stamp();
+        final LinkedList<PlayerCharacter> chars = withStatement(SELECT_CHARACTERS_BY_STEAM_ID, st -> {
             st.setString(1, steamId);
             ResultSet r = st.executeQuery();
             LinkedList<PlayerCharacter> res = new LinkedList<>();
@@ -144,15 +999,16 @@ public class PlayersDB {
                 res.add(getPlayerCharacter(r));
             return res;
         });
+        cache.putCharacters(steamId, chars, stamp);
+        return chars;
     }
 
     public LinkedList<PlayerCharacter> getPlayerCharactersByDisId(String disId) {
-        return bot.getDbConnectionHandler().withPrepStatement("""
-                SELECT c_id, c_name, c_uid, c_roles, c_lastupd, c_side
-                FROM characters, profiles
-                WHERE c_uid = p_uid AND p_id_dis = ?
-                ORDER BY c_lastupd DESC
-                """, st -> {
+        final PlayerProfile cached = cache.getProfileByDisId(disId);
+        if (cached != null)
+            return getPlayerCharacters(cached.steamId);
+
+        return withStatement(SELECT_CHARACTERS_BY_DIS_ID, st -> {
             st.setString(1, disId);
             ResultSet r = st.executeQuery();
             LinkedList<PlayerCharacter> res = new LinkedList<>();
@@ -162,43 +1018,24 @@ public class PlayersDB {
         });
     }
 
-    public void updateRolesForCharacter(PlayerCharacter chr, HashSet<Integer> roles) {
-        bot.getDbConnectionHandler().withPrepStatement("""
-                UPDATE characters
-                SET c_roles = ?
-                WHERE c_id = ?
-                LIMIT 1
-                """, st -> {
-            st.setString(1, setToString(roles));
-            st.setLong(2, chr.id);
-            st.executeBatch();
-        });
-    }
-
-    public LinkedList<PlayerCharacter> addRolesToCharacters(String steamId, Collection<Integer> newRoles, boolean all) {
-        LinkedList<PlayerCharacter> chars = getPlayerCharacters(steamId);
-        addRolesToCharacters(chars, newRoles, all);
-        return chars;
-    }
-
-    public void addRolesToCharacters(List<PlayerCharacter> chars, Collection<Integer> newRoles, boolean all) {
-        for (PlayerCharacter c : chars) {
-            c.roles.addAll(newRoles);
-            updateRolesForCharacter(c, c.roles);
-            if (!all) break;
-        }
-    }
-
-    public LinkedList<PlayerCharacter> rmRolesFromCharactersByDisId(String disId, Collection<Integer> toRm) {
-        LinkedList<PlayerCharacter> chars = getPlayerCharactersByDisId(disId);
-        rmRolesFromCharacters(chars, toRm);
-        return chars;
-    }
-
-    public void rmRolesFromCharacters(List<PlayerCharacter> chars, Collection<Integer> toRm) {
-        for (PlayerCharacter c : chars) {
-            toRm.forEach(c.roles::remove);
-            updateRolesForCharacter(c, c.roles);
+    public void updateRolesForCharacter(PlayerCharacter chr, RoleSet roles) {
+        try {
+            withStatement("""
+                    UPDATE characters
+                    SET c_roles = ?
+                    WHERE c_id = ?
+                    LIMIT 1
+                    """, st -> {
+                st.setString(1, setToString(roles));
+                st.setLong(2, chr.id);
+                st.executeUpdate();
+            });
+            audit(chr.steamId, chr.id, chr.roles, roles);
+            final CharacterFeed f = feed;
+            if (f != null)
+                f.update(new PlayerCharacter(chr.id, chr.name, chr.steamId, roles, chr.lastupd, chr.side));
+        } finally {
+            cache.invalidateCharacters(chr.steamId);
         }
     }
 
@@ -209,36 +1046,116 @@ public class PlayersDB {
                 r.getString("p_name"),
                 r.getString("p_id_dis"),
                 r.getString("p_uid"),
-                parseSet(r.getString("p_roles"))
+                parseSet(r.getString("p_roles")).freeze()
         );
     }
 
     @NotNull
-    private PlayerCharacter getPlayerCharacter(ResultSet r) throws SQLException {
+    PlayerCharacter getPlayerCharacter(ResultSet r) throws SQLException {
         return new PlayerCharacter(
                 r.getLong("c_id"),
                 r.getString("c_name"),
                 r.getString("c_uid"),
-                parseSet(r.getString("c_roles")),
+                parseSet(r.getString("c_roles")).freeze(),
                 r.getTimestamp("c_lastupd"),
                 r.getString("c_side")
         );
     }
 
+    /**
+     * @return whether {@code e} is caused by the connection rather than by the statement: SQLState class 08,
+     * a broken connection, or a transient error such as a pool timeout. Retrying the statements one by one
+     * would only fail the same way.
+     */
+    static boolean isTransient(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransientException || t instanceof SQLRecoverableException)
+                return true;
+            if (t instanceof SQLException sql && sql.getSQLState() != null && sql.getSQLState().startsWith("08"))
+                return true;
+        }
+        return false;
+    }
+
+    static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    /**
+     * Splits {@code steamIds} for {@code IN} lists of at most {@link #MAX_IN_PARAMS} placeholders.
+     * The ids are sorted first, so rows read chunk by chunk stay ordered by SteamID.
+     */
+    static List<List<String>> inChunks(List<String> steamIds) {
+        final ArrayList<String> sorted = new ArrayList<>(steamIds);
+        Collections.sort(sorted);
+        final ArrayList<List<String>> res = new ArrayList<>();
+        for (int from = 0; from < sorted.size(); from += MAX_IN_PARAMS)
+            res.add(sorted.subList(from, Math.min(sorted.size(), from + MAX_IN_PARAMS)));
+        return res;
+    }
+
+    public static String setToString(RoleSet set) {
+        return set.toString();
+    }
+
     public static String setToString(Set<Integer> set) {
-        return String.join(" ",
-                "[",
-                String.join(", ", set.stream().map(String::valueOf).toList()),
-                "]");
-    }
-
-    public static HashSet<Integer> parseSet(String str) {
-        return new HashSet<>(
-                Arrays.stream(str.replaceAll("[\\[\\]\s]", "").split(","))
-                        .filter(s -> s.matches("\\d+"))
-                        .map(Integer::parseInt)
-                        .toList()
-        );
+        return RoleSet.of(set).toString();
+    }
+
+    public static RoleSet parseSet(String str) {
+        return RoleSet.parse(str);
+    }
+
+    interface SqlFunction<T> {
+        T apply(PreparedStatement st) throws SQLException;
+    }
+
+    interface SqlConnectionFunction<T> {
+        T apply(Connection conn) throws SQLException;
+    }
+
+    private interface SqlConsumer {
+        void accept(PreparedStatement st) throws SQLException;
+    }
+
+    public interface RoleChangeHook {
+        /**
+         * Called in the transaction of a role change. Throwing rolls the change back.
+         * @param before state of the player locked by the transaction
+         * @param after state to be written
+         */
+        void apply(Connection conn, PlayerInfo before, PlayerInfo after) throws SQLException;
+    }
+
+    public interface ProfileListener {
+        /**
+         * Called after the bot has written a profile
+         */
+        void onProfileChanged(PlayerProfile profile);
+
+        /**
+         * Called after a bulk write, with profiles read in the same transaction
+         */
+        default void onProfilesChanged(List<PlayerProfile> profiles) {
+            for (PlayerProfile p : profiles)
+                onProfileChanged(p);
+        }
+    }
+
+    public enum Characters {
+        NONE, LAST_ACTIVE, ALL
+    }
+
+    public static class NoSuchPlayerException extends DescribedException {
+        public NoSuchPlayerException() {
+            super("No such player SteamID in the database");
+        }
+    }
+
+    public static class PoolRequiredException extends DescribedException {
+        public PoolRequiredException() {
+            super(STR.get("ply.err.busy.title"), STR.get("ply.err.pool"));
+        }
     }
 
     public static class PlayerNotBoundException extends DescribedException {
@@ -0,0 +1,169 @@
+package ru.zont.dsbot.players;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.zont.dsbot.core.ZDSBot;
+import ru.zont.dsbot.core.util.DescribedException;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static ru.zont.dsbot.util.StringsRG.STR;
+
+public class PlayersDBAsync {
+    private static final Logger log = LoggerFactory.getLogger(PlayersDBAsync.class);
+    private static final WeakHashMap<ZDSBot, PlayersDBAsync> instances = new WeakHashMap<>();
+
+    public static final int THREADS = 4;
+    public static final int QUEUE_LIMIT = 64;
+    public static final long TIMEOUT_SECONDS = 20;
+
+    public static synchronized PlayersDBAsync getInstance(ZDSBot bot) {
+        return instances.computeIfAbsent(bot, b -> new PlayersDBAsync(PlayersDB.getInstance(b)));
+    }
+
+    private final PlayersDB db;
+    private final ThreadPoolExecutor executor;
+    private volatile RoleWriteQueue writeQueue;
+
+    public PlayersDBAsync(PlayersDB db) {
+        this.db = db;
+
+        final AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_LIMIT),
+                r -> {
+                    Thread t = new Thread(r, "PlayersDB-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public PlayersDB getSync() {
+        return db;
+    }
+
+    public RoleWriteQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * @param writeQueue queue to send role edits to, or null to write them immediately
+     */
+    public void setWriteQueue(RoleWriteQueue writeQueue) {
+        this.writeQueue = writeQueue;
+    }
+
+    public <T> CompletableFuture<T> submit(Function<PlayersDB, T> query) {
+        final CompletableFuture<T> future;
+        final String actor = AuditJournal.currentActor();
+        try {
+            future = CompletableFuture.supplyAsync(() -> AuditJournal.callAs(actor, () -> query.apply(db)), executor);
+        } catch (RejectedExecutionException e) {
+            log.warn("PlayersDB queue is full ({} pending)", executor.getQueue().size());
+            return CompletableFuture.failedFuture(
+                    new DescribedException(STR.get("ply.err.busy.title"), STR.get("ply.err.busy")));
+        }
+
+        return withTimeout(future);
+    }
+
+    /**
+     * The query keeps running after the timeout, so a write may still be applied
+     */
+    private static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future) {
+        return future.orTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS).exceptionallyCompose(e -> {
+            if (e instanceof TimeoutException)
+                return CompletableFuture.failedFuture(
+                        new DescribedException(STR.get("ply.err.timeout.title"), STR.get("ply.err.timeout")));
+            return CompletableFuture.failedFuture(e instanceof CompletionException && e.getCause() != null
+                    ? e.getCause() : e);
+        });
+    }
+
+    public CompletableFuture<PlayerProfile> getPlayer(String steamId) {
+        return submit(db -> db.getPlayer(steamId));
+    }
+
+    public CompletableFuture<PlayerProfile> getPlayerByDisId(String disId) {
+        return submit(db -> db.getPlayerByDisId(disId));
+    }
+
+    public CompletableFuture<Void> bindPlayer(String steamId, String disId) {
+        return submit(db -> {
+            db.bindPlayer(steamId, disId);
+            return null;
+        });
+    }
+
+    public CompletableFuture<PlayerInfo> addRoles(String steamId, String disId, Collection<Integer> newRoles,
+                                                  PlayersDB.Characters scope) {
+        return addRoles(steamId, disId, newRoles, scope, null);
+    }
+
+    /**
+     * @param hook runs in the transaction of the role change
+     */
+    public CompletableFuture<PlayerInfo> addRoles(String steamId, String disId, Collection<Integer> newRoles,
+                                                  PlayersDB.Characters scope, @Nullable PlayersDB.RoleChangeHook hook) {
+        final RoleWriteQueue q = writeQueue;
+        if (q != null)
+            return withTimeout(q.addRoles(steamId, disId, newRoles, scope, hook));
+        return submit(db -> db.addRoles(steamId, disId, newRoles, scope, hook));
+    }
+
+    public CompletableFuture<PlayerInfo> rmRoles(String disId, Collection<Integer> toRm) {
+        return rmRoles(disId, toRm, null);
+    }
+
+    public CompletableFuture<PlayerInfo> rmRoles(String disId, Collection<Integer> toRm,
+                                                 @Nullable PlayersDB.RoleChangeHook hook) {
+        final RoleWriteQueue q = writeQueue;
+        if (q != null)
+            return withTimeout(q.rmRoles(disId, toRm, hook));
+        return submit(db -> db.rmRoles(disId, toRm, PlayersDB.Characters.ALL, hook));
+    }
+
+    public CompletableFuture<LinkedList<PlayerProfile>> getPlayersWithRole(int role) {
+        return submit(db -> db.getPlayersWithRole(role));
+    }
+
+    public CompletableFuture<LinkedList<PlayerInfo>> getPlayersWithRoleAndCharacters(int role) {
+        return submit(db -> db.getPlayersWithRoleAndCharacters(role));
+    }
+
+    public CompletableFuture<PlayerInfo> getPlayerWithCharactersByDisId(String disId) {
+        return submit(db -> db.getPlayerWithCharactersByDisId(disId));
+    }
+
+    public CompletableFuture<LinkedList<PlayerCharacter>> getPlayerCharacters(String steamId) {
+        return submit(db -> db.getPlayerCharacters(steamId));
+    }
+
+    public CompletableFuture<LinkedList<PlayerCharacter>> getPlayerCharactersByDisId(String disId) {
+        return submit(db -> db.getPlayerCharactersByDisId(disId));
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stop taking queries and wait for the running ones, so they do not outlive the connection pool
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                log.warn("PlayersDB queries still running after {} s: {}", TIMEOUT_SECONDS, executor.getActiveCount());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package ru.zont.dsbot.players;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class PlayersDataSource implements Closeable {
+    public static final long CONNECTION_TIMEOUT = 10_000;
+    public static final long VALIDATION_TIMEOUT = 3_000;
+    public static final long KEEPALIVE_TIME = 5 * 60_000;
+    public static final long MAX_LIFETIME = 30 * 60_000;
+    public static final int PREP_STMT_CACHE_SIZE = 250;
+
+    private final HikariDataSource dataSource;
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private volatile PoolStats stats;
+
+    public PlayersDataSource(String jdbcUrl, int poolSize) {
+        this(jdbcUrl, poolSize, CONNECTION_TIMEOUT);
+    }
+
+    PlayersDataSource(String jdbcUrl, int poolSize, long connectionTimeout) {
+        final HikariConfig cfg = new HikariConfig();
+        cfg.setPoolName("PlayersDB");
+        cfg.setJdbcUrl(jdbcUrl);
+        cfg.setMaximumPoolSize(poolSize);
+        cfg.setMinimumIdle(1);
+        cfg.setConnectionTimeout(connectionTimeout);
+        cfg.setValidationTimeout(VALIDATION_TIMEOUT);
+        cfg.setKeepaliveTime(KEEPALIVE_TIME);
+        cfg.setMaxLifetime(MAX_LIFETIME);
+        // Do not fail startup while the database is down, connections are created on demand
+        cfg.setInitializationFailTimeout(-1);
+
+        cfg.addDataSourceProperty("useServerPrepStmts", "true");
+        cfg.addDataSourceProperty("cachePrepStmts", "true");
+        cfg.addDataSourceProperty("prepStmtCacheSize", String.valueOf(PREP_STMT_CACHE_SIZE));
+
+        cfg.setMetricsTrackerFactory((poolName, poolStats) -> {
+            stats = poolStats;
+            return new IMetricsTracker() {
+                @Override
+                public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                    acquired.increment();
+                    waitNanos.add(elapsedAcquiredNanos);
+                    maxWaitNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+                }
+
+                @Override
+                public void recordConnectionTimeout() {
+                    timeouts.increment();
+                }
+            };
+        });
+
+        dataSource = new HikariDataSource(cfg);
+    }
+
+    public Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    public int getActiveConnections() {
+        final PoolStats s = stats;
+        return s != null ? s.getActiveConnections() : 0;
+    }
+
+    public int getTotalConnections() {
+        final PoolStats s = stats;
+        return s != null ? s.getTotalConnections() : 0;
+    }
+
+    public int getPendingThreads() {
+        final PoolStats s = stats;
+        return s != null ? s.getPendingThreads() : 0;
+    }
+
+    public double getAverageWaitMillis() {
+        final long count = acquired.sum();
+        return count > 0 ? waitNanos.sum() / 1_000_000.0 / count : 0.0;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "%d/%d active, %d waiting, wait avg %.2f ms, max %.2f ms, %d timeouts".formatted(
+                getActiveConnections(), getTotalConnections(), getPendingThreads(),
+                getAverageWaitMillis(), getMaxWaitMillis(), getTimeouts());
+    }
+
+    @Override
+    public void close() {
+        dataSource.close();
+    }
+}
@@ -0,0 +1,378 @@
+package ru.zont.dsbot.players;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.IntConsumer;
+import java.util.regex.Pattern;
+
+import static ru.zont.dsbot.util.StringsRG.STR;
+
+/**
+ * Bulk import of SteamID-Discord bindings and profile roles. Input is parsed as a stream
+ * and written in chunks, one transaction with batched upserts per chunk. Roles are added to the
+ * existing ones, a row without Discord id keeps the current binding.
+ * <p>
+ * CSV: {@code steamid,discord,roles} with an optional header. Roles are ids or known names separated
+ * by {@code |}; ids alone may also be separated by spaces.
+ * <br>
+ * JSON: {@code [{"steamid": "...", "discord": "...", "roles": [1, "Name"]}, ...]}
+ * <p>
+ * Errors are reported per row: by line for CSV, by {@code #<index>} of the array item for JSON.
+ */
+public class PlayersImport {
+    private static final Logger log = LoggerFactory.getLogger(PlayersImport.class);
+    private static final Pattern STEAM_ID = Pattern.compile("7656\\d{13}");
+    private static final Pattern DISCORD_ID = Pattern.compile("\\d{17,20}");
+    private static final Pattern ROLES_SEPARATOR = Pattern.compile("[|\\[\\],;]+");
+    private static final Pattern ROLE_IDS = Pattern.compile("[\\d\\s]+");
+
+    public static final int CHUNK_SIZE = 500;
+    public static final int MAX_REPORTED_ERRORS = 5000;
+
+    private final PlayersDB db;
+    private final RgRoles.Snapshot knownRoles;
+
+    public PlayersImport(PlayersDB db) {
+        this(db, RgRoles.getSnapshot());
+    }
+
+    PlayersImport(PlayersDB db, RgRoles.Snapshot knownRoles) {
+        this.db = db;
+        this.knownRoles = knownRoles;
+    }
+
+    public enum Format {
+        CSV, JSON;
+
+        public static Format byFileName(String name) {
+            return name != null && name.toLowerCase(Locale.ROOT).endsWith(".json") ? JSON : CSV;
+        }
+    }
+
+    /**
+     * @param progress receives the number of rows processed after every chunk
+     */
+    public Report run(InputStream in, Format format, IntConsumer progress) throws IOException {
+        final long start = System.currentTimeMillis();
+        final Report report = new Report(format == Format.JSON ? "#" : "");
+        final ArrayList<Row> chunk = new ArrayList<>(CHUNK_SIZE);
+
+        final Reader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        final RowSource source = format == Format.JSON ? new JsonSource(reader) : new CsvSource(reader);
+        Row row;
+        while ((row = source.next()) != null) {
+            report.rows++;
+            if (row.error != null) {
+                report.addError(row.position, row.error);
+                continue;
+            }
+            chunk.add(row);
+            if (chunk.size() >= CHUNK_SIZE) {
+                flush(chunk, report);
+                progress.accept(report.rows);
+            }
+        }
+        if (!chunk.isEmpty())
+            flush(chunk, report);
+        progress.accept(report.rows);
+
+        report.millis = System.currentTimeMillis() - start;
+        log.info("Players import: {}", report);
+        return report;
+    }
+
+    /**
+     * A failed chunk is rolled back whole, so it is retried row by row to report only the rows that fail
+     */
+    private void flush(ArrayList<Row> chunk, Report report) {
+        try {
+            report.imported += db.importProfiles(chunk);
+        } catch (RuntimeException e) {
+            log.warn("Players import chunk failed, retrying it row by row", e);
+            for (Row r : chunk) {
+                try {
+                    report.imported += db.importProfiles(List.of(r));
+                } catch (RuntimeException ex) {
+                    log.error("Players import row {} failed", r.position, ex);
+                    final String message = ex.getCause() != null ? ex.getCause().getMessage() : ex.getMessage();
+                    report.addError(r.position, STR.get("roles.import.err.db", message));
+                }
+            }
+        }
+        chunk.clear();
+    }
+
+    private Row parse(int position, String steamId, String disId, List<String> roles) {
+        steamId = steamId != null ? steamId.strip() : "";
+        disId = disId != null ? disId.strip() : "";
+        if (!STEAM_ID.matcher(steamId).matches())
+            return Row.error(position, STR.get("roles.import.err.steamid", steamId));
+        if (!disId.isEmpty() && !DISCORD_ID.matcher(disId).matches())
+            return Row.error(position, STR.get("roles.import.err.discord", disId));
+
+        final RoleSet set = new RoleSet();
+        for (String role : roles) {
+            role = role.strip();
+            if (role.isEmpty()) continue;
+            try {
+                if (ROLE_IDS.matcher(role).matches()) {
+                    for (String id : role.split("\\s+")) {
+                        final int value = Integer.parseInt(id);
+                        if (value <= 0)
+                            return Row.error(position, STR.get("roles.import.err.role", role));
+                        set.add(value);
+                    }
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                return Row.error(position, STR.get("roles.import.err.role", role));
+            }
+            final int id = knownRoles.findId(role);
+            if (id == RgRoles.Snapshot.NOT_FOUND)
+                return Row.error(position, STR.get("roles.import.err.role", role));
+            set.add(id);
+        }
+        return new Row(position, steamId, disId.isEmpty() ? null : disId, set);
+    }
+
+    private interface RowSource {
+        /**
+         * @return next row, or null at the end of input
+         */
+        Row next() throws IOException;
+    }
+
+    private class CsvSource implements RowSource {
+        private final BufferedReader reader;
+        private int line = 0;
+        private int steamIdCol = 0, disIdCol = 1, rolesCol = 2;
+        private char separator = 0;
+
+        private CsvSource(Reader reader) {
+            this.reader = (BufferedReader) reader;
+        }
+
+        @Override
+        public Row next() throws IOException {
+            String str;
+            do {
+                str = reader.readLine();
+                line++;
+                if (str == null) return null;
+            } while (str.isBlank());
+
+            if (separator == 0) {
+                separator = str.indexOf(';') >= 0 && str.indexOf(',') < 0 ? ';' : ',';
+                if (line == 1 && str.startsWith("\uFEFF"))
+                    str = str.substring(1);
+                if (readHeader(split(str)))
+                    return next();
+            }
+
+            final List<String> cols = split(str);
+            final String roles = get(cols, rolesCol);
+            return parse(line, get(cols, steamIdCol), get(cols, disIdCol),
+                    roles != null ? List.of(ROLES_SEPARATOR.split(roles)) : List.of());
+        }
+
+        private boolean readHeader(List<String> cols) {
+            int steam = -1, dis = -1, roles = -1;
+            for (int i = 0; i < cols.size(); i++) {
+                final String c = cols.get(i).strip().toLowerCase(Locale.ROOT);
+                if (c.startsWith("steam") || c.equals("uid")) steam = i;
+                else if (c.startsWith("dis") || c.startsWith("ds")) dis = i;
+                else if (c.startsWith("role")) roles = i;
+            }
+            if (steam < 0) return false;
+            steamIdCol = steam;
+            disIdCol = dis;
+            rolesCol = roles;
+            return true;
+        }
+
+        private static String get(List<String> cols, int idx) {
+            return idx >= 0 && idx < cols.size() ? cols.get(idx) : null;
+        }
+
+        /**
+         * Fields may be quoted with {@code "}, doubled quotes inside are unescaped
+         */
+        private List<String> split(String str) {
+            final ArrayList<String> res = new ArrayList<>(4);
+            final StringBuilder sb = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < str.length(); i++) {
+                final char c = str.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < str.length() && str.charAt(i + 1) == '"') {
+                        sb.append('"');
+                        i++;
+                    } else if (c == '"') quoted = false;
+                    else sb.append(c);
+                } else if (c == '"') quoted = true;
+                else if (c == separator) {
+                    res.add(sb.toString());
+                    sb.setLength(0);
+                } else sb.append(c);
+            }
+            res.add(sb.toString());
+            return res;
+        }
+    }
+
+    private class JsonSource implements RowSource {
+        private final JsonReader reader;
+        private int index = 0;
+
+        private JsonSource(Reader reader) throws IOException {
+            this.reader = new JsonReader(reader);
+            this.reader.beginArray();
+        }
+
+        @Override
+        public Row next() throws IOException {
+            if (!reader.hasNext()) {
+                reader.endArray();
+                return null;
+            }
+            index++;
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                return Row.error(index, STR.get("roles.import.err.json"));
+            }
+
+            String steamId = null, disId = null;
+            final ArrayList<String> roles = new ArrayList<>();
+            boolean broken = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName().toLowerCase(Locale.ROOT);
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                // A value of the wrong type fails its row only: it is skipped, so the next row is read as usual
+                try {
+                    switch (name) {
+                        case "steamid", "steam_id", "uid" -> steamId = reader.nextString();
+                        case "discord", "discordid", "disid", "discord_id" -> disId = reader.nextString();
+                        case "roles" -> {
+                            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                                reader.beginArray();
+                                while (reader.hasNext())
+                                    roles.add(nextScalar());
+                                reader.endArray();
+                            } else roles.addAll(List.of(ROLES_SEPARATOR.split(reader.nextString())));
+                        }
+                        default -> reader.skipValue();
+                    }
+                } catch (IllegalStateException e) {
+                    broken = true;
+                    reader.skipValue();
+                    // Inside of the roles array, the rest of it is skipped too
+                    while (reader.peek() != JsonToken.NAME && reader.peek() != JsonToken.END_OBJECT) {
+                        if (reader.peek() == JsonToken.END_ARRAY) reader.endArray();
+                        else reader.skipValue();
+                    }
+                }
+            }
+            reader.endObject();
+            if (broken)
+                return Row.error(index, STR.get("roles.import.err.json.value"));
+            return parse(index, steamId, disId, roles);
+        }
+
+        /**
+         * @throws IllegalStateException without consuming the value, if it is not a string or a number
+         */
+        private String nextScalar() throws IOException {
+            final JsonToken token = reader.peek();
+            if (token != JsonToken.STRING && token != JsonToken.NUMBER)
+                throw new IllegalStateException("Expected a string or a number but was " + token);
+            return reader.nextString();
+        }
+    }
+
+    static final class Row {
+        /** Line of CSV, or 1-based index of the JSON array item */
+        final int position;
+        final String steamId;
+        final String disId;
+        final RoleSet roles;
+        final String error;
+
+        Row(int position, String steamId, String disId, RoleSet roles) {
+            this.position = position;
+            this.steamId = steamId;
+            this.disId = disId;
+            this.roles = roles;
+            this.error = null;
+        }
+
+        private Row(int position, String error) {
+            this.position = position;
+            this.steamId = null;
+            this.disId = null;
+            this.roles = null;
+            this.error = error;
+        }
+
+        private static Row error(int position, String error) {
+            return new Row(position, error);
+        }
+    }
+
+    public static class Report {
+        private int rows = 0;
+        private int imported = 0;
+        private int errors = 0;
+        private long millis = 0;
+        private final StringBuilder errorReport = new StringBuilder();
+        private final String positionPrefix;
+
+        private Report(String positionPrefix) {
+            this.positionPrefix = positionPrefix;
+        }
+
+        private void addError(int position, String message) {
+            if (++errors <= MAX_REPORTED_ERRORS)
+                errorReport.append(positionPrefix).append(position).append(": ").append(message).append('\n');
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getImported() {
+            return imported;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return {@code <line>: <error>} or {@code #<index>: <error>} per failed row, or an empty string
+         */
+        public String getErrorReport() {
+            return errorReport.toString();
+        }
+
+        @Override
+        public String toString() {
+            return "rows=%d, imported=%d, errors=%d, %d ms".formatted(rows, imported, errors, millis);
+        }
+    }
+}
@@ -4,31 +4,178 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import ru.zont.dsbot.core.util.DescribedException;
 import ru.zont.dsbot.core.util.LiteJSON;
+import ru.zont.dsbot.util.TrigramIndex;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
 
 public class RgRoles {
     private static final LiteJSON db = new LiteJSON("known_roles");
+    private static volatile Snapshot snapshot;
 
-    public static HashMap<String, Integer> getKnownRoles() {
-        return db.op(root -> {
-            HashMap<String, Integer> res = new HashMap<>();
-            for (Map.Entry<String, JsonElement> e : root.entrySet())
-                res.put(e.getValue().getAsString(), Integer.parseInt(e.getKey()));
-            return res;
-        });
+    public static Snapshot getSnapshot() {
+        Snapshot s = snapshot;
+        if (s != null) return s;
+        synchronized (RgRoles.class) {
+            if (snapshot == null)
+                snapshot = load(1);
+            return snapshot;
+        }
     }
 
     public static int getRoleId(String role) {
-        HashMap<String, Integer> knownRoles = getKnownRoles();
-        if (!knownRoles.containsKey(role))
+        final int id = getSnapshot().findId(role);
+        if (id == Snapshot.NOT_FOUND)
             throw new DescribedException("Cannot find role id for that name");
-        return knownRoles.get(role);
+        return id;
     }
 
     public static void addRole(int id, String name) {
-        db.op((Consumer<JsonObject>) root -> root.addProperty(id + "", name));
+        synchronized (RgRoles.class) {
+            db.op((Consumer<JsonObject>) root -> root.addProperty(id + "", name));
+            final Snapshot old = snapshot;
+            snapshot = load(old != null ? old.version + 1 : 1);
+        }
+    }
+
+    private static Snapshot load(long version) {
+        return db.op(root -> {
+            final ArrayList<Map.Entry<Integer, String>> roles = new ArrayList<>(root.size());
+            for (Map.Entry<String, JsonElement> e : root.entrySet()) {
+                try {
+                    roles.add(Map.entry(Integer.parseInt(e.getKey()), e.getValue().getAsString()));
+                } catch (NumberFormatException ignored) { }
+            }
+            return new Snapshot(version, roles);
+        });
+    }
+
+    /**
+     * Immutable view of the known roles. Lookups are binary searches over sorted arrays and allocate nothing.
+     */
+    public static class Snapshot {
+        public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+        private final long version;
+        // Sorted by id
+        private final int[] ids;
+        private final String[] names;
+        // Sorted by name, case-insensitively, then by id
+        private final String[] byName;
+        private final int[] byNameIds;
+        private final TrigramIndex<Integer> search = new TrigramIndex<>();
+
+        Snapshot(long version, Collection<Map.Entry<Integer, String>> roles) {
+            this.version = version;
+
+            final ArrayList<Map.Entry<Integer, String>> list = new ArrayList<>(roles);
+            list.sort(Map.Entry.comparingByKey());
+            ids = new int[list.size()];
+            names = new String[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                ids[i] = list.get(i).getKey();
+                names[i] = list.get(i).getValue();
+            }
+
+            list.sort(Map.Entry.<Integer, String>comparingByValue(String.CASE_INSENSITIVE_ORDER)
+                    .thenComparing(Map.Entry.comparingByKey()));
+            byName = new String[list.size()];
+            byNameIds = new int[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                byName[i] = list.get(i).getValue();
+                byNameIds[i] = list.get(i).getKey();
+                search.put(String.valueOf(byNameIds[i]), byNameIds[i], byName[i]);
+            }
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        /**
+         * @param index position in the id order
+         */
+        public int getId(int index) {
+            return ids[index];
+        }
+
+        /**
+         * @param index position in the id order
+         */
+        public String getName(int index) {
+            return names[index];
+        }
+
+        public String getNameById(int id) {
+            final int idx = Arrays.binarySearch(ids, id);
+            return idx >= 0 ? names[idx] : null;
+        }
+
+        /**
+         * Case-insensitive lookup. If several roles share the name, the lowest id wins.
+         * @return role id or {@link #NOT_FOUND}
+         */
+        public int findId(String name) {
+            final int idx = lowerBound(name);
+            if (idx < byName.length && byName[idx].equalsIgnoreCase(name))
+                return byNameIds[idx];
+            return NOT_FOUND;
+        }
+
+        /**
+         * Case-insensitive prefix search in name order
+         * @param limit max amount of roles to pass to the consumer
+         */
+        public void forEachWithPrefix(String prefix, int limit, ObjIntConsumer<String> consumer) {
+            int count = 0;
+            for (int i = lowerBound(prefix); i < byName.length && count < limit; i++, count++) {
+                if (!byName[i].regionMatches(true, 0, prefix, 0, prefix.length()))
+                    break;
+                consumer.accept(byName[i], byNameIds[i]);
+            }
+        }
+
+        /**
+         * Autocomplete: exact id, then name prefix matches, then fuzzy matches.
+         * Blank query lists the roles in id order.
+         */
+        public List<Integer> search(String query, int limit) {
+            final LinkedHashSet<Integer> res = new LinkedHashSet<>();
+            if (query == null || query.isBlank()) {
+                for (int i = 0; i < ids.length && res.size() < limit; i++)
+                    res.add(ids[i]);
+                return new ArrayList<>(res);
+            }
+
+            query = query.strip();
+            try {
+                final int id = Integer.parseInt(query);
+                if (getNameById(id) != null) res.add(id);
+            } catch (NumberFormatException ignored) { }
+
+            forEachWithPrefix(query, limit, (name, id) -> res.add(id));
+            if (res.size() < limit)
+                for (Integer id : search.search(query, limit))
+                    res.add(id);
+
+            final ArrayList<Integer> list = new ArrayList<>(res);
+            return list.size() > limit ? list.subList(0, limit) : list;
+        }
+
+        private int lowerBound(String key) {
+            int lo = 0, hi = byName.length;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (String.CASE_INSENSITIVE_ORDER.compare(byName[mid], key) < 0)
+                    lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
     }
 }
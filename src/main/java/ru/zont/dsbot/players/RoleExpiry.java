@@ -0,0 +1,387 @@
+package ru.zont.dsbot.players;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.zont.dsbot.core.ZDSBot;
+import ru.zont.dsbot.util.TimingWheel;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Time-limited role grants. Grants are kept in {@code role_grants}; pending expiries live in a
+ * {@link TimingWheel} loaded once at startup, and the expiry thread sleeps until the wheel has something due.
+ * A grant is written in the transaction of the role change and records what the change has actually added:
+ * on expiry the role is removed only from there, so roles the player already held permanently stay.
+ * <p>
+ * Extending or cancelling a grant only changes its row: stale wheel entries are checked against it when they fire.
+ */
+public class RoleExpiry {
+    private static final Logger log = LoggerFactory.getLogger(RoleExpiry.class);
+    private static final WeakHashMap<ZDSBot, RoleExpiry> instances = new WeakHashMap<>();
+    private static final Pattern DURATION = Pattern.compile("(\\d+)\\s*([wdhm])");
+
+    public static final long TICK = 1000;
+    public static final long RETRY_DELAY = 60_000;
+    public static final String ACTOR = "expiry";
+    /** Upper bound for a sleep, in case the system clock jumps */
+    private static final long MAX_WAIT = 3_600_000;
+
+    public static synchronized RoleExpiry getInstance(ZDSBot bot) {
+        return instances.computeIfAbsent(bot, b -> new RoleExpiry(PlayersDB.getInstance(b), TICK));
+    }
+
+    private final PlayersDB db;
+    private final TimingWheel<Grant> wheel;
+    private final Object lock = new Object();
+    private Thread thread;
+    private volatile boolean running = false;
+
+    RoleExpiry(PlayersDB db, long tick) {
+        this.db = db;
+        wheel = new TimingWheel<>(tick, System.currentTimeMillis());
+    }
+
+    /**
+     * Load pending grants and start removing expired roles. Grants that expired while the bot was down go first.
+     */
+    public synchronized void start() {
+        if (running) return;
+        final LinkedList<Grant> grants = db.withStatement("""
+                SELECT g_uid, g_role, g_expires FROM role_grants
+                """, st -> {
+            final ResultSet r = st.executeQuery();
+            final LinkedList<Grant> res = new LinkedList<>();
+            while (r.next())
+                res.add(new Grant(r.getString("g_uid"), r.getInt("g_role"), r.getTimestamp("g_expires").getTime(),
+                        true, null));
+            return res;
+        });
+        synchronized (lock) {
+            for (Grant g : grants)
+                wheel.add(g.expiresAt, g);
+        }
+        log.info("Loaded {} role grants", grants.size());
+
+        running = true;
+        thread = new Thread(this::run, "RoleExpiry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void shutdown() {
+        if (!running) return;
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        try {
+            thread.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Make {@code roles} expire at {@code expiresAt}, to be run in the transaction that gives them.
+     * An existing grant of the same role is extended and keeps what it has added.
+     */
+    public PlayersDB.RoleChangeHook grant(Collection<Integer> roles, long expiresAt) {
+        final List<Integer> granted = List.copyOf(roles);
+        return (conn, before, after) -> {
+            final String steamId = after.profile.steamId;
+            final HashMap<Integer, Grant> existing = new HashMap<>();
+            try (PreparedStatement st = conn.prepareStatement("""
+                    SELECT g_uid, g_role, g_expires, g_profile, g_chars FROM role_grants
+                    WHERE g_uid = ? AND g_role IN (%s)
+                    FOR UPDATE
+                    """.formatted(PlayersDB.placeholders(granted.size())))) {
+                st.setString(1, steamId);
+                int i = 2;
+                for (int role : granted)
+                    st.setInt(i++, role);
+                final ResultSet r = st.executeQuery();
+                while (r.next()) {
+                    final Grant g = getGrant(r);
+                    existing.put(g.role, g);
+                }
+            }
+
+            final HashMap<Long, RoleSet> charsBefore = new HashMap<>();
+            for (PlayerCharacter c : before.characters)
+                charsBefore.put(c.id, c.roles);
+            try (PreparedStatement st = conn.prepareStatement("""
+                    INSERT INTO role_grants (g_uid, g_role, g_expires, g_profile, g_chars)
+                    VALUES (?, ?, ?, ?, ?)
+                    ON DUPLICATE KEY UPDATE
+                    g_expires = VALUES(g_expires), g_profile = VALUES(g_profile), g_chars = VALUES(g_chars)
+                    """)) {
+                for (int role : granted) {
+                    final Grant old = existing.get(role);
+                    final boolean profile = old != null && old.profile
+                            || !before.profile.roles.contains(role) && after.profile.roles.contains(role);
+                    TreeSet<Long> chars = null;
+                    if (old == null || old.chars != null) {
+                        chars = old != null ? new TreeSet<>(old.chars) : new TreeSet<>();
+                        for (PlayerCharacter c : after.characters) {
+                            final RoleSet was = charsBefore.get(c.id);
+                            if (c.roles.contains(role) && (was == null || !was.contains(role)))
+                                chars.add(c.id);
+                        }
+                    }
+                    st.setString(1, steamId);
+                    st.setInt(2, role);
+                    st.setTimestamp(3, new Timestamp(expiresAt));
+                    st.setBoolean(4, profile);
+                    st.setString(5, chars != null ? charsToString(chars) : null);
+                    st.addBatch();
+                }
+                st.executeBatch();
+            }
+
+            // Scheduled before the commit: if it rolls back, the entries find no grant when they fire
+            synchronized (lock) {
+                for (int role : granted)
+                    wheel.add(expiresAt, new Grant(steamId, role, expiresAt, true, null));
+                lock.notifyAll();
+            }
+        };
+    }
+
+    /**
+     * Make the roles permanent again, to be run in the transaction that changes them
+     */
+    public PlayersDB.RoleChangeHook cancel(Collection<Integer> roles) {
+        final List<Integer> cancelled = List.copyOf(roles);
+        return (conn, before, after) -> deleteGrants(conn, after.profile.steamId, cancelled, null);
+    }
+
+    public LinkedList<Grant> getGrants(String steamId) {
+        return db.withStatement("""
+                SELECT g_uid, g_role, g_expires, g_profile, g_chars FROM role_grants
+                WHERE g_uid = ?
+                ORDER BY g_expires
+                """, st -> {
+            st.setString(1, steamId);
+            final ResultSet r = st.executeQuery();
+            final LinkedList<Grant> res = new LinkedList<>();
+            while (r.next())
+                res.add(getGrant(r));
+            return res;
+        });
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getPending() {
+        synchronized (lock) {
+            return wheel.size();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            final ArrayList<Grant> due = new ArrayList<>();
+            synchronized (lock) {
+                final long now = System.currentTimeMillis();
+                wheel.advance(now, due::add);
+                if (due.isEmpty()) {
+                    try {
+                        lock.wait(Math.max(1, Math.min(MAX_WAIT, wheel.nextEventTime() - now)));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            expire(due);
+        }
+    }
+
+    /**
+     * Roles of one player are removed in one transaction, together with their grants.
+     * On failure, grants are retried later.
+     */
+    private void expire(List<Grant> due) {
+        final LinkedHashMap<String, ArrayList<Grant>> byPlayer = new LinkedHashMap<>();
+        for (Grant g : due)
+            byPlayer.computeIfAbsent(g.steamId, k -> new ArrayList<>()).add(g);
+
+        for (Map.Entry<String, ArrayList<Grant>> e : byPlayer.entrySet()) {
+            try {
+                final long now = System.currentTimeMillis();
+                final List<Grant> expired = expiredGrants(e.getKey(), e.getValue(), now);
+                if (expired.isEmpty()) continue;
+                final List<Integer> roles = expired.stream().map(g -> g.role).toList();
+                try {
+                    AuditJournal.runAs(ACTOR, () -> db.mutateRoles(removal(e.getKey(), expired, roles, now)));
+                } catch (PlayersDB.NoSuchPlayerException ex) {
+                    log.warn("Role grants of unknown player {} dropped", e.getKey());
+                    db.withConnection(conn -> deleteGrants(conn, e.getKey(), roles, now));
+                }
+                log.info("Roles {} of {} expired", roles, e.getKey());
+            } catch (RuntimeException ex) {
+                log.error("Cannot expire roles of {}, will retry", e.getKey(), ex);
+                synchronized (lock) {
+                    final long retry = System.currentTimeMillis() + RETRY_DELAY;
+                    for (Grant g : e.getValue())
+                        wheel.add(retry, g);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the roles only where the grants have added them, and deletes the grants.
+     * A grant extended meanwhile is not deleted, and rolls the removal back.
+     */
+    private RoleWriteQueue.Op removal(String steamId, List<Grant> expired, List<Integer> roles, long now) {
+        return new RoleWriteQueue.Op(steamId, null, PlayersDB.Characters.ALL,
+                profile -> {
+                    for (Grant g : expired)
+                        if (g.profile) profile.remove(g.role);
+                },
+                (c, charRoles) -> {
+                    for (Grant g : expired)
+                        if (g.chars == null || g.chars.contains(c.id)) charRoles.remove(g.role);
+                },
+                (conn, before, after) -> {
+                    if (deleteGrants(conn, steamId, roles, now) != roles.size())
+                        throw new SQLException("Role grants of %s have changed".formatted(steamId));
+                });
+    }
+
+    /**
+     * @return grants that are still in the table and expired
+     */
+    private List<Grant> expiredGrants(String steamId, List<Grant> due, long now) {
+        final ArrayList<Grant> res = new ArrayList<>();
+        final HashSet<Integer> roles = new HashSet<>();
+        for (Grant g : getGrants(steamId)) {
+            if (g.expiresAt > now) continue;
+            res.add(g);
+            roles.add(g.role);
+        }
+        for (Grant g : due)
+            if (!roles.contains(g.role))
+                log.debug("Stale grant of role {} to {} skipped", g.role, steamId);
+        return res;
+    }
+
+    /**
+     * @param expiredAt delete only grants expired at this time, or null for any
+     * @return amount of grants deleted
+     */
+    private static int deleteGrants(Connection conn, String steamId, List<Integer> roles, @Nullable Long expiredAt)
+            throws SQLException {
+        if (roles.isEmpty()) return 0;
+        try (PreparedStatement st = conn.prepareStatement("""
+                DELETE FROM role_grants
+                WHERE g_uid = ? AND g_expires <= COALESCE(?, g_expires) AND g_role IN (%s)
+                """.formatted(PlayersDB.placeholders(roles.size())))) {
+            st.setString(1, steamId);
+            st.setTimestamp(2, expiredAt != null ? new Timestamp(expiredAt) : null);
+            int i = 3;
+            for (int role : roles)
+                st.setInt(i++, role);
+            return st.executeUpdate();
+        }
+    }
+
+    private static Grant getGrant(ResultSet r) throws SQLException {
+        final String chars = r.getString("g_chars");
+        TreeSet<Long> charIds = null;
+        if (chars != null) {
+            charIds = new TreeSet<>();
+            for (String id : chars.split(","))
+                if (!id.isBlank()) charIds.add(Long.parseLong(id.strip()));
+        }
+        return new Grant(r.getString("g_uid"), r.getInt("g_role"), r.getTimestamp("g_expires").getTime(),
+                r.getBoolean("g_profile"), charIds);
+    }
+
+    private static String charsToString(Set<Long> chars) {
+        return chars.stream().map(String::valueOf).collect(Collectors.joining(","));
+    }
+
+    /**
+     * @param str e.g. {@code 30m}, {@code 12h}, {@code 1d12h}, {@code 2w}
+     * @return duration in milliseconds
+     * @throws IllegalArgumentException if the string is not a duration
+     */
+    public static long parseDuration(String str) {
+        final String s = str.strip().toLowerCase(Locale.ROOT);
+        final Matcher m = DURATION.matcher(s);
+        long res = 0;
+        int end = 0;
+        while (m.find()) {
+            if (!s.substring(end, m.start()).isBlank())
+                throw new IllegalArgumentException("Not a duration: " + str);
+            final long n = Long.parseLong(m.group(1));
+            try {
+                res = Math.addExact(res, Math.multiplyExact(n, switch (m.group(2)) {
+                    case "w" -> 7 * 24 * 3600_000L;
+                    case "d" -> 24 * 3600_000L;
+                    case "h" -> 3600_000L;
+                    default -> 60_000L;
+                }));
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Duration is too long: " + str);
+            }
+            end = m.end();
+        }
+        if (end == 0 || end != s.length() || res <= 0)
+            throw new IllegalArgumentException("Not a duration: " + str);
+        return res;
+    }
+
+    public static class Grant {
+        private final String steamId;
+        private final int role;
+        private final long expiresAt;
+        /** Whether the grant has added the role to the profile */
+        private final boolean profile;
+        /** Characters the grant has added the role to, null for all of them */
+        @Nullable
+        private final Set<Long> chars;
+
+        Grant(String steamId, int role, long expiresAt, boolean profile, @Nullable Set<Long> chars) {
+            this.steamId = steamId;
+            this.role = role;
+            this.expiresAt = expiresAt;
+            this.profile = profile;
+            this.chars = chars;
+        }
+
+        public String getSteamId() {
+            return steamId;
+        }
+
+        public int getRole() {
+            return role;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public boolean isProfile() {
+            return profile;
+        }
+
+        @Nullable
+        public Set<Long> getChars() {
+            return chars;
+        }
+    }
+}
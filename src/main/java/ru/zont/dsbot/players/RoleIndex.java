@@ -0,0 +1,79 @@
+package ru.zont.dsbot.players;
+
+import java.util.*;
+
+class RoleIndex {
+    // Full reload to pick up p_roles changes made outside the bot
+    public static final long LIFETIME = 10 * 60_000;
+
+    private final HashMap<Integer, HashSet<String>> byRole = new HashMap<>();
+    private final HashMap<String, RoleSet> bySteamId = new HashMap<>();
+    private long nextReload = 0L;
+    // Updates made while a reload is reading the table, applied over its result
+    private HashMap<String, RoleSet> replay = null;
+
+    public synchronized boolean isExpired() {
+        return nextReload <= System.currentTimeMillis();
+    }
+
+    /**
+     * Start recording updates, so {@link #load(Map)} does not overwrite them with the older rows it got
+     */
+    public synchronized void beginReload() {
+        replay = new HashMap<>();
+    }
+
+    public synchronized void abortReload() {
+        replay = null;
+    }
+
+    public synchronized void load(Map<String, RoleSet> roles) {
+        byRole.clear();
+        bySteamId.clear();
+        roles.forEach(this::put);
+        if (replay != null) {
+            replay.forEach(this::set);
+            replay = null;
+        }
+        nextReload = System.currentTimeMillis() + LIFETIME;
+    }
+
+    public synchronized void update(String steamId, RoleSet roles) {
+        if (replay != null)
+            replay.put(steamId, new RoleSet(roles));
+        set(steamId, roles);
+    }
+
+    private void set(String steamId, RoleSet roles) {
+        final RoleSet old = bySteamId.remove(steamId);
+        if (old != null) {
+            for (int i = 0; i < old.size(); i++) {
+                final int role = old.get(i);
+                final HashSet<String> ids = byRole.get(role);
+                if (ids == null) continue;
+                ids.remove(steamId);
+                if (ids.isEmpty())
+                    byRole.remove(role);
+            }
+        }
+        put(steamId, roles);
+    }
+
+    public synchronized List<String> getSteamIds(int role) {
+        final HashSet<String> ids = byRole.get(role);
+        if (ids == null)
+            return Collections.emptyList();
+        return new ArrayList<>(ids);
+    }
+
+    public synchronized void invalidate() {
+        nextReload = 0L;
+    }
+
+    private void put(String steamId, RoleSet roles) {
+        if (steamId == null || roles.isEmpty()) return;
+        bySteamId.put(steamId, new RoleSet(roles));
+        for (int i = 0; i < roles.size(); i++)
+            byRole.computeIfAbsent(roles.get(i), k -> new HashSet<>()).add(steamId);
+    }
+}
@@ -0,0 +1,188 @@
+package ru.zont.dsbot.players;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Sorted set of role ids backed by a primitive {@code int[]}.
+ * Also the codec for the {@code [ 1, 2 ]} format used in {@code p_roles} and {@code c_roles}.
+ * Sets held by profiles and characters are frozen, since those are shared through the cache and the feed.
+ */
+public class RoleSet {
+    private static final int[] EMPTY = new int[0];
+
+    private int[] values;
+    private int size;
+    private boolean frozen = false;
+
+    public RoleSet() {
+        values = EMPTY;
+        size = 0;
+    }
+
+    public RoleSet(int... roles) {
+        this();
+        for (int role : roles)
+            add(role);
+    }
+
+    public RoleSet(RoleSet other) {
+        values = Arrays.copyOf(other.values, other.size);
+        size = other.size;
+    }
+
+    /**
+     * @return unmodifiable set of the same roles: {@code roles} itself if it is frozen, a frozen copy otherwise
+     */
+    public static RoleSet unmodifiable(RoleSet roles) {
+        return roles.frozen ? roles : new RoleSet(roles).freeze();
+    }
+
+    /**
+     * Make this set unmodifiable
+     * @return this
+     */
+    RoleSet freeze() {
+        frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    public static RoleSet of(Collection<Integer> roles) {
+        final RoleSet res = new RoleSet();
+        res.addAll(roles);
+        return res;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException(index);
+        return values[index];
+    }
+
+    public boolean contains(int role) {
+        return Arrays.binarySearch(values, 0, size, role) >= 0;
+    }
+
+    public boolean add(int role) {
+        checkModifiable();
+        int idx = Arrays.binarySearch(values, 0, size, role);
+        if (idx >= 0) return false;
+        idx = -idx - 1;
+
+        if (size == values.length)
+            values = Arrays.copyOf(values, Math.max(4, size * 2));
+        System.arraycopy(values, idx, values, idx + 1, size - idx);
+        values[idx] = role;
+        size++;
+        return true;
+    }
+
+    public boolean remove(int role) {
+        checkModifiable();
+        final int idx = Arrays.binarySearch(values, 0, size, role);
+        if (idx < 0) return false;
+        System.arraycopy(values, idx + 1, values, idx, size - idx - 1);
+        size--;
+        return true;
+    }
+
+    public boolean addAll(Collection<Integer> roles) {
+        boolean changed = false;
+        for (Integer role : roles)
+            changed |= add(role);
+        return changed;
+    }
+
+    public boolean addAll(RoleSet roles) {
+        boolean changed = false;
+        for (int i = 0; i < roles.size; i++)
+            changed |= add(roles.values[i]);
+        return changed;
+    }
+
+    public boolean removeAll(Collection<Integer> roles) {
+        boolean changed = false;
+        for (Integer role : roles)
+            changed |= remove(role);
+        return changed;
+    }
+
+    private void checkModifiable() {
+        if (frozen)
+            throw new UnsupportedOperationException("Role set is frozen");
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    public static RoleSet parse(String str) {
+        final RoleSet res = new RoleSet();
+        if (str == null) return res;
+
+        // Same rules as the former regex parser: '[', ']' and ' ' are ignored anywhere,
+        // tokens are separated by ',' and only tokens made of digits are taken
+        long value = 0;
+        boolean digits = false;
+        boolean valid = true;
+        final int len = str.length();
+        for (int i = 0; i <= len; i++) {
+            final char c = i < len ? str.charAt(i) : ',';
+            if (c == ',') {
+                if (digits && valid) {
+                    if (value > Integer.MAX_VALUE)
+                        throw new NumberFormatException("Role id is out of range in \"%s\"".formatted(str));
+                    res.add((int) value);
+                }
+                value = 0;
+                digits = false;
+                valid = true;
+            } else if (c >= '0' && c <= '9') {
+                digits = true;
+                if (value <= Integer.MAX_VALUE)
+                    value = value * 10 + (c - '0');
+            } else if (c != '[' && c != ']' && c != ' ') {
+                valid = false;
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(4 + size * 6);
+        sb.append("[ ");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(values[i]);
+        }
+        return sb.append(" ]").toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof RoleSet other)) return false;
+        return Arrays.equals(values, 0, size, other.values, 0, other.size);
+    }
+
+    @Override
+    public int hashCode() {
+        int res = 1;
+        for (int i = 0; i < size; i++)
+            res = 31 * res + values[i];
+        return res;
+    }
+}
@@ -0,0 +1,277 @@
+package ru.zont.dsbot.players;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.zont.dsbot.core.util.DescribedException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static ru.zont.dsbot.util.StringsRG.STR;
+
+/**
+ * Write-behind mode for role edits. Operations queued within {@code windowMillis} are flushed together:
+ * all operations of one player are folded into a single row update, and all players go in one transaction
+ * with batched statements. Futures complete only after the flush has been committed.
+ * While the database is unreachable, flushes fail fast and at most {@link #MAX_QUEUE} operations wait for one.
+ */
+public class RoleWriteQueue {
+    private static final Logger log = LoggerFactory.getLogger(RoleWriteQueue.class);
+    public static final int MAX_BATCH = 500;
+    public static final int MAX_QUEUE = 4 * MAX_BATCH;
+
+    private final PlayersDB db;
+    private final long windowMillis;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Object lock = new Object();
+    private ArrayList<Op> pending = new ArrayList<>();
+    private boolean scheduled = false;
+
+    private long flushes = 0;
+    private long flushedOps = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+    private long lastFlushMillis = 0;
+
+    public RoleWriteQueue(PlayersDB db, long windowMillis) {
+        this.db = db;
+        this.windowMillis = windowMillis;
+        executor = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread t = new Thread(r, "RoleWriteQueue");
+            t.setDaemon(true);
+            return t;
+        });
+        // shutdown() flushes right away, the scheduled flush would only hold the termination
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    public CompletableFuture<PlayerInfo> addRoles(String steamId, String disId, Collection<Integer> newRoles,
+                                                  PlayersDB.Characters scope) {
+        return addRoles(steamId, disId, newRoles, scope, null);
+    }
+
+    /**
+     * @param hook runs in the flush transaction, after this operation has been applied
+     */
+    public CompletableFuture<PlayerInfo> addRoles(String steamId, String disId, Collection<Integer> newRoles,
+                                                  PlayersDB.Characters scope, @Nullable PlayersDB.RoleChangeHook hook) {
+        final List<Integer> roles = List.copyOf(newRoles);
+        return enqueue(new Op(steamId, disId, scope, set -> set.addAll(roles), hook));
+    }
+
+    public CompletableFuture<PlayerInfo> rmRoles(String disId, Collection<Integer> toRm) {
+        return rmRoles(disId, toRm, null);
+    }
+
+    public CompletableFuture<PlayerInfo> rmRoles(String disId, Collection<Integer> toRm,
+                                                 @Nullable PlayersDB.RoleChangeHook hook) {
+        final List<Integer> roles = List.copyOf(toRm);
+        return enqueue(new Op(null, disId, PlayersDB.Characters.ALL, set -> set.removeAll(roles), hook));
+    }
+
+    private CompletableFuture<PlayerInfo> enqueue(Op op) {
+        synchronized (lock) {
+            if (executor.isShutdown())
+                return CompletableFuture.failedFuture(new RejectedExecutionException("Role write queue is shut down"));
+            if (pending.size() >= MAX_QUEUE) {
+                log.warn("Role write queue is full ({} pending)", pending.size());
+                return CompletableFuture.failedFuture(
+                        new DescribedException(STR.get("ply.err.busy.title"), STR.get("ply.err.busy")));
+            }
+            pending.add(op);
+            if (!scheduled) {
+                scheduled = true;
+                executor.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return op.future;
+    }
+
+    private void flush() {
+        final ArrayList<Op> ops;
+        synchronized (lock) {
+            ops = pending;
+            pending = new ArrayList<>();
+            scheduled = false;
+        }
+
+        // Once the database is found unreachable, the rest of the queue is failed without trying it
+        Exception down = null;
+        for (int from = 0; from < ops.size(); from += MAX_BATCH)
+            down = flushBatch(ops.subList(from, Math.min(ops.size(), from + MAX_BATCH)), down);
+    }
+
+    /**
+     * @param down error of an earlier batch that found the database unreachable, to fail this one with
+     * @return {@code down}, or the error this batch has found the database unreachable with
+     */
+    @Nullable
+    private Exception flushBatch(List<Op> ops, @Nullable Exception down) {
+        final long start = System.currentTimeMillis();
+        final IdentityHashMap<Op, PlayerInfo> written = new IdentityHashMap<>();
+        final IdentityHashMap<Op, Exception> failed = new IdentityHashMap<>();
+        if (down == null)
+            down = write(ops, written, failed);
+        else fail(ops, down, failed);
+
+        // Metrics go first, so a caller that has been confirmed always sees its flush counted
+        final long end = System.currentTimeMillis();
+        synchronized (lock) {
+            flushes++;
+            flushedOps += ops.size();
+            lastFlushMillis = end - start;
+            for (Op op : ops) {
+                final long latency = end - op.queuedAt;
+                totalLatency += latency;
+                maxLatency = Math.max(maxLatency, latency);
+            }
+        }
+        log.debug("Flushed {} role operations in {} ms", ops.size(), end - start);
+
+        for (Op op : ops) {
+            final Exception error = failed.get(op);
+            final PlayerInfo info = written.get(op);
+            if (error != null) op.future.completeExceptionally(error);
+            else if (info != null) op.future.complete(info);
+            else op.future.completeExceptionally(new PlayersDB.PlayerNotBoundException());
+        }
+        return down;
+    }
+
+    /**
+     * A failed transaction is rolled back whole, so it is retried in halves down to single operations:
+     * only the operations that fail on their own are failed. Operations of one player keep their order.
+     * Connection errors fail every operation left at once, as each retry would wait for the pool again.
+     * @return the error if the database is unreachable
+     */
+    @Nullable
+    private Exception write(List<Op> ops, IdentityHashMap<Op, PlayerInfo> written,
+                            IdentityHashMap<Op, Exception> failed) {
+        try {
+            written.putAll(db.mutateRolesBatch(ops));
+            return null;
+        } catch (Exception e) {
+            if (PlayersDB.isTransient(e)) {
+                log.error("Role write-behind flush of {} operations failed, the database is unreachable",
+                        ops.size(), e);
+                final DescribedException down = new DescribedException(STR.get("ply.err.busy.title"),
+                        STR.get("ply.err.down"));
+                fail(ops, down, failed);
+                return down;
+            }
+            if (ops.size() == 1) {
+                log.error("Role write-behind operation failed", e);
+                failed.put(ops.get(0), e);
+                return null;
+            }
+            log.warn("Role write-behind flush of {} operations failed, retrying it in halves", ops.size(), e);
+            final int mid = ops.size() / 2;
+            final Exception down = write(ops.subList(0, mid), written, failed);
+            if (down == null)
+                return write(ops.subList(mid, ops.size()), written, failed);
+            fail(ops.subList(mid, ops.size()), down, failed);
+            return down;
+        }
+    }
+
+    private static void fail(List<Op> ops, Exception e, IdentityHashMap<Op, Exception> failed) {
+        for (Op op : ops)
+            failed.put(op, e);
+    }
+
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    public long getFlushes() {
+        synchronized (lock) {
+            return flushes;
+        }
+    }
+
+    /**
+     * @return average time from queueing an operation to its confirmation
+     */
+    public double getAverageLatencyMillis() {
+        synchronized (lock) {
+            return flushedOps > 0 ? (double) totalLatency / flushedOps : 0;
+        }
+    }
+
+    public long getMaxLatencyMillis() {
+        synchronized (lock) {
+            return maxLatency;
+        }
+    }
+
+    /**
+     * @return duration of the last flush transaction
+     */
+    public long getLastFlushMillis() {
+        synchronized (lock) {
+            return lastFlushMillis;
+        }
+    }
+
+    /**
+     * Flush what is queued and stop accepting operations
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            executor.execute(this::flush);
+            executor.shutdown();
+        }
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS))
+                log.warn("Role write queue did not flush in time, {} operations lost", getQueueDepth());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "depth=%d, flushes=%d, ops=%d, avgLatency=%.1fms, maxLatency=%dms, lastFlush=%dms".formatted(
+                    pending.size(), flushes, flushedOps,
+                    flushedOps > 0 ? (double) totalLatency / flushedOps : 0, maxLatency, lastFlushMillis);
+        }
+    }
+
+    static final class Op {
+        final String steamId;
+        final String disId;
+        final PlayersDB.Characters scope;
+        final Consumer<RoleSet> op;
+        /** Applied to the characters selected by {@link #scope} */
+        final BiConsumer<PlayerCharacter, RoleSet> charOp;
+        @Nullable
+        final PlayersDB.RoleChangeHook hook;
+        final String actor = AuditJournal.currentActor();
+        final long queuedAt = System.currentTimeMillis();
+        final CompletableFuture<PlayerInfo> future = new CompletableFuture<>();
+
+        Op(String steamId, String disId, PlayersDB.Characters scope, Consumer<RoleSet> op,
+           @Nullable PlayersDB.RoleChangeHook hook) {
+            this(steamId, disId, scope, op, (c, roles) -> op.accept(roles), hook);
+        }
+
+        Op(String steamId, String disId, PlayersDB.Characters scope, Consumer<RoleSet> op,
+           BiConsumer<PlayerCharacter, RoleSet> charOp, @Nullable PlayersDB.RoleChangeHook hook) {
+            this.steamId = steamId;
+            this.disId = disId;
+            this.scope = scope;
+            this.op = op;
+            this.charOp = charOp;
+            this.hook = hook;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package ru.zont.dsbot.players;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.Nullable;
+import ru.zont.dsbot.core.util.DescribedException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Locale;
+
+import static ru.zont.dsbot.util.StringsRG.STR;
+
+/**
+ * Roster export straight from a forward-only streaming cursor, so memory use does not depend on the roster size.
+ * Rows bypass the cache. The cursor holds its connection for the whole export, so it needs a pool:
+ * on the bot's shared connection every other query would wait for it.
+ */
+public class RosterExport {
+    public static final int FETCH_SIZE = 500;
+    private static final String CSV_HEADER = "steamid,discord,name,roles,character,side,character_roles,lastupd\n";
+    private static final Gson gson = new Gson();
+
+    public enum Format {
+        CSV, NDJSON;
+
+        public String getExtension() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    static final String SELECT_ROSTER = """
+            SELECT p_id, p_name, p_id_dis, p_uid, p_roles, c_id, c_name, c_uid, c_roles, c_lastupd, c_side
+            FROM profiles LEFT JOIN characters ON c_uid = p_uid
+            %s
+            ORDER BY p_uid, c_lastupd DESC
+            """;
+    static final String ROLE_FILTER = "WHERE p_uid IN (%s)";
+
+    private final PlayersDB db;
+
+    public RosterExport(PlayersDB db) {
+        this.db = db;
+    }
+
+    /**
+     * CSV has a row per character, or one with empty character columns for a player without them.
+     * NDJSON has a line per player with a {@code characters} array.
+     * @param role only players that have this role in their profile, or everyone if null
+     * @return amount of players written
+     */
+    public int write(@Nullable Integer role, Format format, Writer out) {
+        if (db.getDataSource() == null)
+            throw new DescribedException(STR.get("roles.err.export.pool"));
+
+        if (format == Format.CSV)
+            write(out, CSV_HEADER);
+        if (role == null)
+            return writePart(null, null, format, out);
+
+        // Players are taken from the role index, the roles are checked again as read.
+        // Chunks hold distinct players, so every chunk is a complete part of the roster.
+        int players = 0;
+        for (List<String> chunk : PlayersDB.inChunks(db.getRoleIndex().getSteamIds(role)))
+            players += writePart(chunk, role, format, out);
+        return players;
+    }
+
+    private int writePart(@Nullable List<String> steamIds, @Nullable Integer role, Format format, Writer out) {
+        final String filter = steamIds != null ? ROLE_FILTER.formatted(PlayersDB.placeholders(steamIds.size())) : "";
+        return db.withStatement(SELECT_ROSTER.formatted(filter), st -> {
+            if (steamIds != null) {
+                int i = 1;
+                for (String steamId : steamIds)
+                    st.setString(i++, steamId);
+            }
+            st.setFetchSize(FETCH_SIZE);
+
+            try {
+                final ResultSet r = st.executeQuery();
+                return format == Format.CSV ? writeCsv(r, role, out) : writeNdjson(r, role, out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static void write(Writer out, String str) {
+        try {
+            out.write(str);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int writeCsv(ResultSet r, Integer role, Writer out) throws SQLException, IOException {
+        int players = 0;
+        String current = null;
+        String roles = null;
+        while (r.next()) {
+            final String steamId = r.getString("p_uid");
+            if (!steamId.equals(current)) {
+                current = steamId;
+                final RoleSet parsed = RoleSet.parse(r.getString("p_roles"));
+                roles = role == null || parsed.contains(role) ? csv(parsed.toString()) : null;
+                if (roles != null) players++;
+            }
+            if (roles == null) continue;
+
+            final String charRoles = r.getString("c_roles");
+            final Timestamp lastupd = r.getTimestamp("c_lastupd");
+            out.append(steamId).append(',')
+                    .append(csv(r.getString("p_id_dis"))).append(',')
+                    .append(csv(r.getString("p_name"))).append(',')
+                    .append(roles).append(',')
+                    .append(csv(r.getString("c_name"))).append(',')
+                    .append(csv(r.getString("c_side"))).append(',')
+                    .append(charRoles != null ? csv(RoleSet.parse(charRoles).toString()) : "").append(',')
+                    .append(lastupd != null ? lastupd.toInstant().toString() : "")
+                    .append('\n');
+        }
+        return players;
+    }
+
+    private int writeNdjson(ResultSet r, Integer role, Writer out) throws SQLException, IOException {
+        int players = 0;
+        JsonObject player = null;
+        JsonArray chars = null;
+        while (r.next()) {
+            final String steamId = r.getString("p_uid");
+            if (player == null || !steamId.equals(player.get("steamid").getAsString())) {
+                if (player != null && chars != null) {
+                    gson.toJson(player, out);
+                    out.write('\n');
+                }
+                player = new JsonObject();
+                player.addProperty("steamid", steamId);
+                final RoleSet roles = RoleSet.parse(r.getString("p_roles"));
+                if (role != null && !roles.contains(role)) {
+                    chars = null;
+                    continue;
+                }
+                players++;
+                player.addProperty("discord", r.getString("p_id_dis"));
+                player.addProperty("name", r.getString("p_name"));
+                player.add("roles", toJson(roles));
+                chars = new JsonArray();
+                player.add("characters", chars);
+            }
+            if (chars == null || r.getString("c_uid") == null) continue;
+
+            final JsonObject c = new JsonObject();
+            c.addProperty("name", r.getString("c_name"));
+            c.addProperty("side", r.getString("c_side"));
+            c.add("roles", toJson(RoleSet.parse(r.getString("c_roles"))));
+            final Timestamp lastupd = r.getTimestamp("c_lastupd");
+            c.addProperty("lastupd", lastupd != null ? lastupd.toInstant().toString() : null);
+            chars.add(c);
+        }
+        if (player != null && chars != null) {
+            gson.toJson(player, out);
+            out.write('\n');
+        }
+        return players;
+    }
+
+    private static JsonArray toJson(RoleSet roles) {
+        final JsonArray res = new JsonArray(roles.size());
+        for (int i = 0; i < roles.size(); i++)
+            res.add(roles.get(i));
+        return res;
+    }
+
+    /**
+     * Names come from players, so a leading {@code = + - @} is escaped with {@code '}:
+     * spreadsheets would run the value as a formula
+     */
+    private static String csv(String value) {
+        if (value == null) return "";
+        if (!value.isEmpty() && "=+-@".indexOf(value.charAt(0)) >= 0)
+            value = "'" + value;
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+            return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,156 @@
+package ru.zont.dsbot.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies {@code db/migration/V<n>__<name>.sql} resources in version order.
+ * Applied versions are recorded in {@code bot_schema_version}; a migration is never applied twice.
+ * <p>
+ * {@code CREATE UNIQUE INDEX IF NOT EXISTS} is skipped if the table already has a unique index
+ * on the same columns under any name, so an existing constraint is not duplicated.
+ */
+public class DBMigrations {
+    private static final Logger log = LoggerFactory.getLogger(DBMigrations.class);
+    private static final Pattern NAME_PATTERN = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+    private static final Pattern UNIQUE_INDEX_PATTERN = Pattern.compile(
+            "CREATE\\s+UNIQUE\\s+INDEX\\s+IF\\s+NOT\\s+EXISTS\\s+\\w+\\s+ON\\s+(\\w+)\\s*\\(([^)]+)\\)",
+            Pattern.CASE_INSENSITIVE);
+    private static final String LOCK_NAME = "bot_schema_migration";
+    private static final int LOCK_TIMEOUT = 60;
+
+    public static final String PATH = "/db/migration/";
+    /** Add new migrations to the end of the list */
+    public static final List<String> MIGRATIONS = List.of(
+            "V1__players_indexes.sql",
+            "V2__characters_lastupd.sql",
+            "V3__role_audit.sql",
+            "V4__role_grants.sql",
+            "V5__activity_stats.sql",
+            "V6__role_grants_scope.sql"
+    );
+
+    public static int migrate(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("""
+                    CREATE TABLE IF NOT EXISTS bot_schema_version (
+                        version    INT          NOT NULL PRIMARY KEY,
+                        name       VARCHAR(128) NOT NULL,
+                        applied_at TIMESTAMP    NOT NULL DEFAULT CURRENT_TIMESTAMP
+                    )
+                    """);
+        }
+
+        // Another instance of the bot may be migrating the same database
+        try (PreparedStatement st = conn.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+            st.setString(1, LOCK_NAME);
+            st.setInt(2, LOCK_TIMEOUT);
+            ResultSet r = st.executeQuery();
+            if (!r.next() || r.getInt(1) != 1)
+                throw new SQLException("Could not acquire schema migration lock");
+        }
+
+        try {
+            final int current = getVersion(conn);
+            int applied = 0;
+            for (String file : MIGRATIONS) {
+                final Matcher m = NAME_PATTERN.matcher(file);
+                if (!m.matches())
+                    throw new IllegalStateException("Invalid migration name: " + file);
+                final int version = Integer.parseInt(m.group(1));
+                if (version <= current) continue;
+
+                log.info("Applying schema migration {}", file);
+                try (Statement st = conn.createStatement()) {
+                    for (String sql : readStatements(file))
+                        if (!isUniqueIndexPresent(conn, sql))
+                            st.execute(sql);
+                }
+                try (PreparedStatement st = conn.prepareStatement(
+                        "INSERT INTO bot_schema_version (version, name) VALUES (?, ?)")) {
+                    st.setInt(1, version);
+                    st.setString(2, m.group(2));
+                    st.executeUpdate();
+                }
+                applied++;
+            }
+            if (applied > 0)
+                log.info("Database schema migrated from version {} to {}", current, getVersion(conn));
+            return applied;
+        } finally {
+            try (PreparedStatement st = conn.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+                st.setString(1, LOCK_NAME);
+                st.executeQuery();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if {@code sql} creates a unique index, and the table already has a unique index
+     * on exactly the same columns. A unique index on more columns does not make them unique, so it does not count
+     */
+    static boolean isUniqueIndexPresent(Connection conn, String sql) throws SQLException {
+        final Matcher m = UNIQUE_INDEX_PATTERN.matcher(sql);
+        if (!m.matches()) return false;
+        final String table = m.group(1);
+        final String columns = m.group(2).replaceAll("\\s+", "").toLowerCase();
+
+        try (PreparedStatement st = conn.prepareStatement("""
+                SELECT INDEX_NAME, GROUP_CONCAT(LOWER(COLUMN_NAME) ORDER BY SEQ_IN_INDEX)
+                FROM information_schema.STATISTICS
+                WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND NON_UNIQUE = 0
+                GROUP BY INDEX_NAME
+                """)) {
+            st.setString(1, table);
+            ResultSet r = st.executeQuery();
+            while (r.next()) {
+                if (columns.equals(r.getString(2))) {
+                    log.info("Unique index {} already covers {} ({}), not creating another one",
+                            r.getString(1), table, columns);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static int getVersion(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            ResultSet r = st.executeQuery("SELECT COALESCE(MAX(version), 0) FROM bot_schema_version");
+            r.next();
+            return r.getInt(1);
+        }
+    }
+
+    private static List<String> readStatements(String file) {
+        final String script;
+        try (InputStream in = DBMigrations.class.getResourceAsStream(PATH + file)) {
+            if (in == null)
+                throw new IllegalStateException("Migration resource not found: " + file);
+            script = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (String line : script.split("\n"))
+            if (!line.strip().startsWith("--"))
+                sb.append(line).append('\n');
+
+        final ArrayList<String> res = new ArrayList<>();
+        for (String sql : sb.toString().split(";"))
+            if (!sql.isBlank())
+                res.add(sql.strip());
+        return res;
+    }
+}
@@ -0,0 +1,144 @@
+package ru.zont.dsbot.util;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session with the DCS website. One pooled client keeps connections alive and the session cookie between fetches,
+ * so a fetch is a single GET; the login form is posted again only when the site stops returning the server list.
+ * The list is requested conditionally when the site sent validators. Not thread-safe: used by the refresher only.
+ */
+class DCSClient implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(DCSClient.class);
+
+    public static final String BASE_URL = "https://www.digitalcombatsimulator.com";
+    public static final String SERVERS_PATH = "/en/personal/server/?ajax=y";
+    public static final String LOGIN_URL = BASE_URL + "/en/personal/server/?login=yes&ajax=y";
+    public static final int CONNECT_TIMEOUT = 10_000;
+    public static final int READ_TIMEOUT = 30_000;
+
+    private final BasicCookieStore cookies = new BasicCookieStore();
+    private final CloseableHttpClient client;
+    private String loggedInAs = null;
+    private String etag = null;
+    private String lastModified = null;
+
+    DCSClient() {
+        final PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager(
+                5, TimeUnit.MINUTES);
+        connections.setMaxTotal(2);
+        connections.setDefaultMaxPerRoute(2);
+        client = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setDefaultCookieStore(cookies)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(CONNECT_TIMEOUT)
+                        .setConnectionRequestTimeout(CONNECT_TIMEOUT)
+                        .setSocketTimeout(READ_TIMEOUT)
+                        .build())
+                .evictIdleConnections(2, TimeUnit.MINUTES)
+                .build();
+    }
+
+    /**
+     * @return servers, or {@code null} if the list has not changed since the last call
+     */
+    List<DCSData.ServerData> fetchServers(String login, String password, long fetchTime) throws IOException {
+        if (!Objects.equals(login, loggedInAs)) {
+            cookies.clear();
+            loggedInAs = etag = lastModified = null;
+        }
+
+        if (loggedInAs != null) {
+            final HttpGet get = new HttpGet(BASE_URL + SERVERS_PATH);
+            if (etag != null) get.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+            if (lastModified != null) get.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            try (CloseableHttpResponse resp = client.execute(get)) {
+                if (resp.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED)
+                    return null;
+                final List<DCSData.ServerData> res = readServers(get, resp, fetchTime);
+                if (res != null) return res;
+            }
+            log.info("DCS website session expired, logging in again");
+            loggedInAs = null;
+        }
+
+        final HttpPost post = new HttpPost(LOGIN_URL);
+        post.setEntity(new UrlEncodedFormEntity(List.<NameValuePair>of(
+                new BasicNameValuePair("AUTH_FORM", "Y"),
+                new BasicNameValuePair("TYPE", "AUTH"),
+                new BasicNameValuePair("backurl", SERVERS_PATH),
+                new BasicNameValuePair("USER_LOGIN", login),
+                new BasicNameValuePair("USER_PASSWORD", password),
+                new BasicNameValuePair("USER_REMEMBER", "Y")
+        ), StandardCharsets.UTF_8));
+        try (CloseableHttpResponse resp = client.execute(post)) {
+            final List<DCSData.ServerData> res = readServers(post, resp, fetchTime);
+            if (res == null)
+                throw new IOException("DCS website login failed: HTTP %d".formatted(resp.getStatusLine().getStatusCode()));
+            loggedInAs = login;
+            return res;
+        }
+    }
+
+    /**
+     * @return {@code null} if the response is not a server list, which means the session is not logged in
+     */
+    private List<DCSData.ServerData> readServers(HttpRequestBase request, CloseableHttpResponse resp, long fetchTime) {
+        final HttpEntity entity = resp.getEntity();
+        if (resp.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+            EntityUtils.consumeQuietly(entity);
+            return null;
+        }
+
+        final List<DCSData.ServerData> res;
+        try {
+            res = DCSData.parseServers(new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8), fetchTime);
+            // Trailing whitespace has to be read for the connection to go back to the pool
+            EntityUtils.consume(entity);
+        } catch (IOException | RuntimeException e) {
+            // A login page instead of JSON, or a connection broken mid-read: either way, the login below
+            // decides whether the refresh fails. Aborting keeps a half-read connection out of the pool
+            request.abort();
+            log.debug("Not a server list", e);
+            return null;
+        }
+
+        etag = header(resp, HttpHeaders.ETAG);
+        lastModified = header(resp, HttpHeaders.LAST_MODIFIED);
+        return res;
+    }
+
+    private static String header(CloseableHttpResponse resp, String name) {
+        return resp.containsHeader(name) ? resp.getFirstHeader(name).getValue() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+}
@@ -1,48 +1,60 @@
 package ru.zont.dsbot.util;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.message.BasicNameValuePair;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.zont.dsbot.ConfigRG;
 import ru.zont.dsbot.core.GuildContext;
+import ru.zont.dsbot.core.ZDSBot;
 import ru.zont.dsbot.core.commands.exceptions.InvalidSyntaxException;
 import ru.zont.dsbot.core.util.LiteJSON;
 import ru.zont.dsbot.core.util.Strings;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.Reader;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
 
 import static ru.zont.dsbot.util.StringsRG.STR;
 
+/**
+ * Servers listed on the DCS website. The list is fetched by a background refresher and published as an immutable
+ * {@link Snapshot}; readers never wait for the website. While a refresh is running or the website is down,
+ * readers keep getting the previous snapshot, and failed refreshes are retried with exponential backoff.
+ * Callers that need a fresh list share one in-flight fetch (see {@link #requestFresh(long)}).
+ */
 public class DCSData {
     public static final Pattern IP_PATTERN = Pattern.compile("(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})(?::(\\d{2,5}))?$");
     private static final Logger log = LoggerFactory.getLogger(DCSData.class);
     public static final int DEFAULT_PORT = 10308;
 
-    private static final Object lock = new Object();
     public static final int CACHE_LIFETIME = 30_000;
-    private static long nextCache = 0L;
-    private static long lastFetch = 0L;
-    private static JsonArray jsonCache = null;
-    private static final HashMap<String, ServerData> dataCache = new HashMap<>();
+    public static final long RETRY_DELAY = 5_000;
+    public static final long MAX_RETRY_DELAY = 10 * 60_000;
+    /** Discord limit for autocomplete choices */
+    public static final int MAX_RESULTS = 25;
+
+    /** Refreshes asked for by {@link #requestFresh(long)} are not started more often than this */
+    public static final long MIN_REFRESH_INTERVAL = 5_000;
+    public static final long FRESH_TIMEOUT = 10_000;
+
+    private static volatile Snapshot snapshot = Snapshot.EMPTY;
+    /** Last successful fetch, including ones that found the list unchanged */
+    private static volatile long lastChecked = 0;
+    /** Written by the class only, read without the lock to skip {@link #startRefresher(ZDSBot)} once started */
+    private static volatile ScheduledExecutorService refresher = null;
+    private static DCSClient client = null;
+    private static Runnable refreshTask = null;
+    /** Guarded by the class: the only pending or running refresh, and the future its waiters share */
+    private static Future<?> next = null;
+    private static CompletableFuture<Snapshot> inFlight = null;
+    private static long lastAttempt = 0;
+    private static int failures = 0;
 
     private final GuildContext context;
 
@@ -51,6 +63,8 @@ public class DCSData {
     }
 
     public static DCSData getInstance(GuildContext context) {
+        if (refresher == null)
+            startRefresher(context.getBot());
         return context.getInstance(DCSData.class, () -> new DCSData(context));
     }
 
@@ -59,6 +73,106 @@ public class DCSData {
         return context.getLJInstance("dcs");
     }
 
+    /**
+     * Start refreshing the server list with credentials from the config of {@code bot}. Does nothing if started.
+     */
+    public static synchronized void startRefresher(ZDSBot bot) {
+        if (refresher != null) return;
+        final DCSClient client = new DCSClient();
+        DCSData.client = client;
+        refreshTask = () -> refresh(bot, client);
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "DCSData");
+            t.setDaemon(true);
+            return t;
+        });
+        next = refresher.submit(refreshTask);
+    }
+
+    public static synchronized void shutdownRefresher() {
+        if (refresher != null)
+            refresher.shutdownNow();
+        refresher = null;
+        next = null;
+        if (inFlight != null)
+            inFlight.completeExceptionally(new CancellationException("DCS refresher is shut down"));
+        inFlight = null;
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.warn("Cannot close DCS website client", e);
+            }
+        }
+        client = null;
+    }
+
+    /**
+     * For callers that cannot use stale data. Concurrent callers share one fetch: if a refresh is running, they get
+     * its future; otherwise the next refresh is started now, unless the last one started less than
+     * {@link #MIN_REFRESH_INTERVAL} ago, in which case they wait for the scheduled one.
+     * @param maxAge how long ago the list may have been fetched to be returned right away
+     * @return snapshot fetched within {@code maxAge}; fails with the error of the fetch
+     */
+    public static CompletableFuture<Snapshot> requestFresh(long maxAge) {
+        if (lastChecked > 0 && System.currentTimeMillis() - lastChecked <= maxAge)
+            return CompletableFuture.completedFuture(snapshot);
+
+        synchronized (DCSData.class) {
+            if (refresher == null)
+                return CompletableFuture.failedFuture(new IllegalStateException("DCS refresher is not started"));
+            if (inFlight == null)
+                inFlight = new CompletableFuture<>();
+            // A running refresh cannot be cancelled and completes the future anyway
+            if (System.currentTimeMillis() - lastAttempt >= MIN_REFRESH_INTERVAL && next.cancel(false))
+                next = refresher.submit(refreshTask);
+            return inFlight;
+        }
+    }
+
+    /**
+     * Runs on the refresher thread only and schedules the next run
+     */
+    private static void refresh(ZDSBot bot, DCSClient client) {
+        final CompletableFuture<Snapshot> flight;
+        synchronized (DCSData.class) {
+            if (inFlight == null) inFlight = new CompletableFuture<>();
+            flight = inFlight;
+            lastAttempt = System.currentTimeMillis();
+        }
+
+        long delay;
+        Exception error = null;
+        try {
+            final Snapshot fetched = fetch(client, ConfigRG.castBotConfig(bot.getConfig()), snapshot.version + 1);
+            if (fetched != null) {
+                snapshot = fetched;
+                log.debug("DCS servers refreshed: {} servers, version {}", fetched.servers.size(), fetched.version);
+            }
+            lastChecked = System.currentTimeMillis();
+            failures = 0;
+            delay = CACHE_LIFETIME;
+        } catch (Exception e) {
+            error = e;
+            delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(failures, 20));
+            failures++;
+            log.error("Cannot fetch DCS servers, retrying in {} s. Last success: {}",
+                    delay / 1000, lastChecked > 0 ? new Date(lastChecked) : "never", e);
+        }
+
+        synchronized (DCSData.class) {
+            inFlight = null;
+            if (refresher != null && !refresher.isShutdown())
+                next = refresher.schedule(refreshTask, delay, TimeUnit.MILLISECONDS);
+        }
+        if (error == null) flight.complete(snapshot);
+        else flight.completeExceptionally(error);
+    }
+
+    public static Snapshot getSnapshot() {
+        return snapshot;
+    }
+
     public static String normIp(String ip) {
         if (ip == null)
             throw new IllegalArgumentException();
@@ -81,141 +195,187 @@ public class DCSData {
         if (nameQuery.length() < 2)
             return Collections.emptyList();
 
-        ServerData data = fetchCachedData(nameQuery);
-        if (data != null)
-            return List.of(data);
-
         if (IP_PATTERN.matcher(nameQuery).matches()) {
-            data = findData(nameQuery);
+            final ServerData data = findData(normIp(nameQuery));
             if (data != null)
                 return List.of(data);
             else return Collections.emptyList();
         }
 
-        return StreamSupport.stream(jsonCache.spliterator(), false)
-                .map(JsonElement::getAsJsonObject)
-                .filter(obj -> isValidServer(obj) && obj.get("NAME").getAsString()
-                        .toLowerCase().contains(nameQuery.toLowerCase()))
-                .limit(25)
-                .map(obj -> parseData(obj, parseIp(obj)))
-                .toList();
+        return snapshot.byName.search(nameQuery, MAX_RESULTS);
     }
 
+    /**
+     * @param targetIp normalized by {@link #normIp(String)}
+     */
     public ServerData findData(String targetIp) {
-        try {
-            ServerData data = fetchCachedData(targetIp);
-            if (data != null) return data;
-
-            Optional<JsonObject> optional = StreamSupport.stream(jsonCache.spliterator(), false)
-                    .map(JsonElement::getAsJsonObject)
-                    .filter(obj -> isValidServer(obj) && parseIp(obj).equals(targetIp))
-                    .findAny();
-
-            if (optional.isPresent()) {
-                JsonObject object = optional.get();
-                String ip = parseIp(object);
-                data = parseData(object, ip);
-                dataCache.put(ip, data);
-                return data;
-            }
-        } catch (Exception e) {
-            log.error("Cannot parse data", e);
-        }
-        return null;
+        return snapshot.byIp.get(targetIp);
     }
 
-    private boolean isValidServer(JsonObject obj) {
-        return obj.has("IP_ADDRESS") && obj.has("NAME");
+    /**
+     * Like {@link #findData(String)}, but a server missing from the current snapshot is looked up again
+     * in one fetched within {@link #MIN_REFRESH_INTERVAL}, waiting for it up to {@link #FRESH_TIMEOUT}.
+     * For commands where the user has just started the server; monitoring and autocomplete use stale data.
+     * @return future that never fails: without a fresh list, the current snapshot is used
+     */
+    public CompletableFuture<ServerData> findFreshData(String targetIp) {
+        final ServerData data = findData(targetIp);
+        if (data != null) return CompletableFuture.completedFuture(data);
+        // The in-flight future is shared, so the timeout goes on a copy
+        return requestFresh(MIN_REFRESH_INTERVAL).copy()
+                .orTimeout(FRESH_TIMEOUT, TimeUnit.MILLISECONDS)
+                .handle((fresh, e) -> {
+                    if (e == null) return fresh.byIp.get(targetIp);
+                    log.warn("No fresh DCS server list for {}: {}", targetIp, e.toString());
+                    return findData(targetIp);
+                });
     }
 
-    private String parseIp(JsonObject obj) {
-        final String ipAddress = obj.getAsJsonPrimitive("IP_ADDRESS").getAsString();
-        final String port = obj.has("PORT") ? obj.get("PORT").getAsString() : String.valueOf(DEFAULT_PORT);
-        return normIp("%s:%s".formatted(ipAddress, port));
+    private static Snapshot fetch(DCSClient client, ConfigRG.BotConfig cfg, long version) throws IOException {
+        if (!ConfigRG.checkConfigEntries(null, cfg.dcsLogin, cfg.dcsPass))
+            throw new IllegalStateException("Login/Password not set");
+
+        final long fetchTime = System.currentTimeMillis();
+        final List<ServerData> servers = client.fetchServers(cfg.dcsLogin.getString(), cfg.dcsPass.getString(), fetchTime);
+        if (servers == null) return null;
+        return new Snapshot(version, fetchTime, servers);
     }
 
-    @NotNull
-    private ServerData parseData(JsonObject dataObj, String ip) {
-        ServerData data;
-        data = new ServerData();
-        data.name = dataObj.getAsJsonPrimitive("NAME").getAsString();
-        data.ip = ip;
-        data.mission = dataObj.getAsJsonPrimitive("MISSION_NAME").getAsString();
-        data.players = dataObj.getAsJsonPrimitive("PLAYERS").getAsInt();
-        data.playersMax = dataObj.getAsJsonPrimitive("PLAYERS_MAX").getAsInt();
-        data.description = dataObj.getAsJsonPrimitive("DESCRIPTION").getAsString();
-        data.missionTime = dataObj.getAsJsonPrimitive("MISSION_TIME_FORMATTED").getAsString();
-        data.fetchTime = lastFetch;
-
-        if ("No".equals(data.description.trim()) || data.description.isBlank())
-            data.description = STR.get("dcs.description.no");
-        return data;
+    public static int countCached() {
+        return snapshot.servers.size();
     }
 
-    @Nullable
-    private ServerData fetchCachedData(String targetIp) {
-        ServerData data;
-        synchronized (lock) {
-            if (jsonCache == null || nextCache <= System.currentTimeMillis()) {
-                fetchData();
-                data = null;
-            } else if (targetIp != null) {
-                data = dataCache.getOrDefault(targetIp, null);
-            } else {
-                data = null;
+    /**
+     * Reads the {@code SERVERS} array of the response as a stream, keeping only the fields of {@link ServerData}.
+     * Repeating strings such as mission names and descriptions share one instance per response.
+     * Entries missing a field or with a malformed one are skipped.
+     */
+    static List<ServerData> parseServers(Reader in, long fetchTime) throws IOException {
+        final JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        final HashMap<String, String> strings = new HashMap<>();
+        final ArrayList<ServerData> res = new ArrayList<>();
+        boolean found = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"SERVERS".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
             }
+            found = true;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                final ServerData data = readServer(reader, strings, fetchTime);
+                if (data != null) res.add(data);
+            }
+            reader.endArray();
         }
-        return data;
+        reader.endObject();
+
+        if (!found)
+            throw new IOException("No server list in the response of dcs website");
+        res.trimToSize();
+        return res;
     }
 
-    private void fetchData() {
-        final ConfigRG.BotConfig cfg = ConfigRG.castBotConfig(context.getBot().getConfig());
-        if (!ConfigRG.checkConfigEntries(null, cfg.dcsLogin, cfg.dcsPass))
-            throw new IllegalStateException("Login/Password not set");
+    private static ServerData readServer(JsonReader reader, HashMap<String, String> strings, long fetchTime)
+            throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
 
-        final String resp;
-        try {
-            lastFetch = System.currentTimeMillis();
-            resp = post(new LinkedList<>() {{
-                add(new BasicNameValuePair("AUTH_FORM", "Y"));
-                add(new BasicNameValuePair("TYPE", "AUTH"));
-                add(new BasicNameValuePair("backurl", "/en/personal/server/?ajax=y"));
-                add(new BasicNameValuePair("USER_LOGIN", cfg.dcsLogin.getString()));
-                add(new BasicNameValuePair("USER_PASSWORD", cfg.dcsPass.getString()));
-                add(new BasicNameValuePair("USER_REMEMBER", "Y"));
-            }});
-        } catch (IOException e) {
-            log.error("Cannot fetch DCS Servers.", e);
-            return;
+        String name = null, address = null, port = null, mission = null, players = null, playersMax = null;
+        String description = null, missionTime = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "NAME" -> name = nextString(reader);
+                case "IP_ADDRESS" -> address = nextString(reader);
+                case "PORT" -> port = nextString(reader);
+                case "MISSION_NAME" -> mission = nextString(reader);
+                case "PLAYERS" -> players = nextString(reader);
+                case "PLAYERS_MAX" -> playersMax = nextString(reader);
+                case "DESCRIPTION" -> description = nextString(reader);
+                case "MISSION_TIME_FORMATTED" -> missionTime = nextString(reader);
+                default -> reader.skipValue();
+            }
         }
+        reader.endObject();
 
-        if (resp != null && !resp.isBlank()) {
-            jsonCache = JsonParser.parseString(resp).getAsJsonObject().get("SERVERS").getAsJsonArray();
-            nextCache = System.currentTimeMillis() + CACHE_LIFETIME;
-        } else {
-            log.error("No response from dcs website");
+        if (name == null || address == null || mission == null || players == null || playersMax == null
+                || description == null || missionTime == null)
+            return null;
+
+        final ServerData data = new ServerData();
+        try {
+            data.ip = normIp("%s:%s".formatted(address, port != null ? port : DEFAULT_PORT));
+            data.players = Integer.parseInt(players.trim());
+            data.playersMax = Integer.parseInt(playersMax.trim());
+        } catch (RuntimeException e) {
+            log.debug("Skipped malformed DCS server entry {} ({}:{})", name, address, port);
+            return null;
         }
+        data.name = name;
+        data.mission = strings.computeIfAbsent(mission, k -> k);
+        data.missionTime = strings.computeIfAbsent(missionTime, k -> k);
+        data.fetchTime = fetchTime;
+        if ("No".equals(description.trim()) || description.isBlank())
+            data.description = STR.get("dcs.description.no");
+        else data.description = strings.computeIfAbsent(description, k -> k);
+        return data;
     }
 
-    public static int countCached() {
-        if (jsonCache != null)
-            return jsonCache.size();
-        return 0;
+    /**
+     * @return string or number as a string, {@code null} for anything else
+     */
+    private static String nextString(JsonReader reader) throws IOException {
+        final JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER)
+            return reader.nextString();
+        reader.skipValue();
+        return null;
     }
 
-    private static String post(List<NameValuePair> payload) throws IOException {
-        final CloseableHttpClient client = HttpClients.createDefault();
+    /**
+     * Server list as of one successful fetch, with an index by IP and a trigram index by name built along with it.
+     * Neither the snapshot nor its servers are modified after publishing.
+     */
+    public static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(0, 0, List.of());
+
+        private final long version;
+        private final long fetchTime;
+        private final List<ServerData> servers;
+        private final HashMap<String, ServerData> byIp;
+        private final TrigramIndex<ServerData> byName = new TrigramIndex<>();
+
+        private Snapshot(long version, long fetchTime, List<ServerData> servers) {
+            this.version = version;
+            this.fetchTime = fetchTime;
+            this.servers = Collections.unmodifiableList(servers);
+            byIp = new HashMap<>(servers.size() * 4 / 3 + 1);
+            for (ServerData data : servers) {
+                byIp.put(data.ip, data);
+                byName.put(data.ip, data, data.name);
+            }
+        }
 
-        final HttpPost post = new HttpPost("https://www.digitalcombatsimulator.com/en/personal/server/?login=yes&ajax=y");
-        post.setEntity(new UrlEncodedFormEntity(payload));
-        post.setHeader("Accept", "application/x-www-form-urlencoded");
-        post.setHeader("Content-type", "application/x-www-form-urlencoded");
+        /**
+         * @return 0 until the first successful fetch, then increasing by one with every fetch that changed the list
+         */
+        public long getVersion() {
+            return version;
+        }
 
-        final CloseableHttpResponse resp = client.execute(post);
-        final String res = IOUtils.toString(resp.getEntity().getContent(), StandardCharsets.UTF_8);
-        resp.close();
+        public long getFetchTime() {
+            return fetchTime;
+        }
 
-        return res;
+        public List<ServerData> getServers() {
+            return servers;
+        }
     }
 
     public static class ServerData {
@@ -0,0 +1,210 @@
+package ru.zont.dsbot.util;
+
+import java.util.Arrays;
+
+/**
+ * Bounded LRU cache with TTL, keyed by primitive {@code long} (SteamID64, snowflakes).
+ * Keys are never boxed: nodes live in parallel arrays, lookup is open addressing over node indexes.
+ */
+public class LongLruCache<V> {
+    private final int capacity;
+    private final long ttl;
+
+    private final long[] keys;
+    private final Object[] values;
+    private final long[] expires;
+    private final int[] prev;
+    private final int[] next;
+    private final int[] table;
+    private final int mask;
+
+    private int size = 0;
+    private int head = -1;
+    private int tail = -1;
+    private int freeTop;
+    private final int[] free;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public LongLruCache(int capacity, long ttlMillis) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity should be positive");
+        this.capacity = capacity;
+        this.ttl = ttlMillis;
+
+        keys = new long[capacity];
+        values = new Object[capacity];
+        expires = new long[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+        free = new int[capacity];
+        for (int i = 0; i < capacity; i++)
+            free[i] = capacity - 1 - i;
+        freeTop = capacity;
+
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        table = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V get(long key) {
+        final int slot = findSlot(key);
+        if (slot < 0) {
+            misses++;
+            return null;
+        }
+
+        final int node = table[slot] - 1;
+        if (expires[node] <= System.currentTimeMillis()) {
+            removeAt(slot);
+            misses++;
+            return null;
+        }
+
+        hits++;
+        moveToHead(node);
+        return (V) values[node];
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V peek(long key) {
+        final int slot = findSlot(key);
+        if (slot < 0) return null;
+        final int node = table[slot] - 1;
+        return expires[node] > System.currentTimeMillis() ? (V) values[node] : null;
+    }
+
+    public synchronized void put(long key, V value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+
+        final int slot = findSlot(key);
+        final int node;
+        if (slot >= 0) {
+            node = table[slot] - 1;
+            moveToHead(node);
+        } else {
+            if (size == capacity)
+                removeAt(findSlot(keys[tail]));
+            node = free[--freeTop];
+            keys[node] = key;
+            insertSlot(key, node);
+            linkHead(node);
+            size++;
+        }
+        values[node] = value;
+        expires[node] = System.currentTimeMillis() + ttl;
+    }
+
+    public synchronized void remove(long key) {
+        final int slot = findSlot(key);
+        if (slot >= 0)
+            removeAt(slot);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(values, null);
+        for (int i = 0; i < capacity; i++)
+            free[i] = capacity - 1 - i;
+        freeTop = capacity;
+        head = tail = -1;
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final long total = hits + misses;
+        return "%d/%d entries, %d hits, %d misses (%.1f%% hit rate)".formatted(
+                size, capacity, hits, misses, total > 0 ? hits * 100.0 / total : 0.0);
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private int findSlot(long key) {
+        int i = hash(key) & mask;
+        while (table[i] != 0) {
+            if (keys[table[i] - 1] == key)
+                return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insertSlot(long key, int node) {
+        int i = hash(key) & mask;
+        while (table[i] != 0)
+            i = (i + 1) & mask;
+        table[i] = node + 1;
+    }
+
+    private void removeAt(int slot) {
+        final int node = table[slot] - 1;
+        unlink(node);
+        values[node] = null;
+        free[freeTop++] = node;
+        size--;
+
+        // Backward shift deletion, keeps probe chains intact without tombstones
+        int i = slot;
+        int j = slot;
+        table[i] = 0;
+        while (true) {
+            j = (j + 1) & mask;
+            if (table[j] == 0) return;
+            final int k = hash(keys[table[j] - 1]) & mask;
+            final boolean stays = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if (!stays) {
+                table[i] = table[j];
+                table[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    private void linkHead(int node) {
+        prev[node] = -1;
+        next[node] = head;
+        if (head >= 0) prev[head] = node;
+        head = node;
+        if (tail < 0) tail = node;
+    }
+
+    private void unlink(int node) {
+        if (prev[node] >= 0) next[prev[node]] = next[node];
+        else head = next[node];
+        if (next[node] >= 0) prev[next[node]] = prev[node];
+        else tail = prev[node];
+    }
+
+    private void moveToHead(int node) {
+        if (head == node) return;
+        unlink(node);
+        linkHead(node);
+    }
+}
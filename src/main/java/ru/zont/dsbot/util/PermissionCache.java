@@ -0,0 +1,218 @@
+package ru.zont.dsbot.util;
+
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import ru.zont.dsbot.core.ZDSBot;
+import ru.zont.dsbot.core.config.ZDSBConfig;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Permission facts of guild members, keyed by guild and member snowflakes: whether the member is an owner or
+ * administrator and the sorted ids of their roles. Role ids from the config are parsed once per config value.
+ * A permission check is then a cache lookup and a binary search, without streams or string comparisons.
+ * <p>
+ * Entries are dropped on member role changes, joins and leaves, and the whole guild on role permission
+ * and ownership changes (see {@link ru.zont.dsbot.listeners.PermissionCacheListener}).
+ * A changed config value is noticed on the next check. Entries also expire after {@link #LIFETIME}
+ * in case an event has been missed.
+ */
+public class PermissionCache {
+    private static final WeakHashMap<ZDSBot, PermissionCache> instances = new WeakHashMap<>();
+    private static final long[] NO_ROLES = new long[0];
+
+    public static final int CAPACITY = 4096;
+    public static final long LIFETIME = 10 * 60_000;
+    public static final MemberPermissions NOT_MEMBER = new MemberPermissions(false, false, NO_ROLES);
+
+    public static synchronized PermissionCache getInstance(ZDSBot bot) {
+        return instances.computeIfAbsent(bot, b -> new PermissionCache());
+    }
+
+    private final Object lock = new Object();
+    private volatile long[] guildIds = new long[0];
+    private volatile LongLruCache<?>[] guilds = new LongLruCache<?>[0];
+    private final ConcurrentHashMap<ZDSBConfig.Entry, ConfigRoles> configRoles = new ConcurrentHashMap<>();
+
+    public MemberPermissions get(Member member) {
+        final LongLruCache<MemberPermissions> cache = guild(member.getGuild().getIdLong());
+        final long id = member.getIdLong();
+        MemberPermissions res = cache.get(id);
+        if (res == null) {
+            res = MemberPermissions.of(member);
+            cache.put(id, res);
+        }
+        return res;
+    }
+
+    /**
+     * Member of another guild, e.g. the main one. Only JDA's member cache is consulted.
+     * @return {@link #NOT_MEMBER} if the user is not in the guild
+     */
+    public MemberPermissions get(Guild guild, long userId) {
+        final LongLruCache<MemberPermissions> cache = guild(guild.getIdLong());
+        MemberPermissions res = cache.get(userId);
+        if (res == null) {
+            final Member member = guild.getMemberById(userId);
+            res = member != null ? MemberPermissions.of(member) : NOT_MEMBER;
+            cache.put(userId, res);
+        }
+        return res;
+    }
+
+    /**
+     * Lock-free: concurrent checks after a config change may parse the same value twice, with equal results
+     * @return role ids from a config entry holding one id or a list of them, sorted
+     */
+    public long[] roleIds(ZDSBConfig.Entry entry) {
+        final String raw = entry.getValue();
+        ConfigRoles res = configRoles.get(entry);
+        if (res == null || !Objects.equals(res.raw, raw)) {
+            res = new ConfigRoles(raw);
+            configRoles.put(entry, res);
+        }
+        return res.ids;
+    }
+
+    public void invalidate(long guildId, long memberId) {
+        final LongLruCache<?> cache = find(guildId);
+        if (cache != null) cache.remove(memberId);
+    }
+
+    public void invalidateGuild(long guildId) {
+        final LongLruCache<?> cache = find(guildId);
+        if (cache != null) cache.clear();
+    }
+
+    private LongLruCache<?> find(long guildId) {
+        final long[] ids = guildIds;
+        final LongLruCache<?>[] caches = guilds;
+        for (int i = 0; i < ids.length; i++)
+            if (ids[i] == guildId) return caches[i];
+        return null;
+    }
+
+    /**
+     * The bot is in a handful of guilds, so they are scanned linearly instead of boxing the id for a map
+     */
+    @SuppressWarnings("unchecked")
+    private LongLruCache<MemberPermissions> guild(long guildId) {
+        LongLruCache<?> res = find(guildId);
+        if (res != null) return (LongLruCache<MemberPermissions>) res;
+        synchronized (lock) {
+            res = find(guildId);
+            if (res != null) return (LongLruCache<MemberPermissions>) res;
+
+            final int n = guildIds.length;
+            final long[] ids = Arrays.copyOf(guildIds, n + 1);
+            final LongLruCache<?>[] caches = Arrays.copyOf(guilds, n + 1);
+            ids[n] = guildId;
+            caches[n] = res = new LongLruCache<MemberPermissions>(CAPACITY, LIFETIME);
+            guilds = caches;
+            guildIds = ids;
+            return (LongLruCache<MemberPermissions>) res;
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        final long[] ids = guildIds;
+        final LongLruCache<?>[] caches = guilds;
+        for (int i = 0; i < ids.length; i++)
+            sb.append(i > 0 ? "; " : "").append(ids[i]).append(": ").append(caches[i]);
+        return sb.toString();
+    }
+
+    private static final class ConfigRoles {
+        private final String raw;
+        private final long[] ids;
+
+        private ConfigRoles(String raw) {
+            this.raw = raw;
+            ids = parseIds(raw);
+        }
+
+        /**
+         * Every run of digits is an id, whatever the list is serialized like
+         */
+        private static long[] parseIds(String raw) {
+            if (raw == null) return NO_ROLES;
+            long[] res = new long[4];
+            int n = 0;
+            long value = 0;
+            boolean digits = false;
+            for (int i = 0; i <= raw.length(); i++) {
+                final char c = i < raw.length() ? raw.charAt(i) : ' ';
+                if (c >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    digits = true;
+                } else if (digits) {
+                    if (n == res.length) res = Arrays.copyOf(res, n * 2);
+                    res[n++] = value;
+                    value = 0;
+                    digits = false;
+                }
+            }
+            res = Arrays.copyOf(res, n);
+            Arrays.sort(res);
+            return res;
+        }
+    }
+
+    public static final class MemberPermissions {
+        private final boolean member;
+        private final boolean admin;
+        private final long[] roles;
+
+        private MemberPermissions(boolean member, boolean admin, long[] roles) {
+            this.member = member;
+            this.admin = admin;
+            this.roles = roles;
+        }
+
+        private static MemberPermissions of(Member member) {
+            final List<Role> list = member.getRoles();
+            final long[] roles = new long[list.size()];
+            for (int i = 0; i < roles.length; i++)
+                roles[i] = list.get(i).getIdLong();
+            Arrays.sort(roles);
+            return new MemberPermissions(true,
+                    member.isOwner() || member.hasPermission(Permission.ADMINISTRATOR), roles);
+        }
+
+        public boolean isMember() {
+            return member;
+        }
+
+        /**
+         * @return whether the member owns the guild or has the administrator permission
+         */
+        public boolean isAdmin() {
+            return admin;
+        }
+
+        public boolean hasRole(long role) {
+            return Arrays.binarySearch(roles, role) >= 0;
+        }
+
+        /**
+         * @param ids sorted role ids
+         */
+        public boolean hasAnyRole(long[] ids) {
+            int i = 0, j = 0;
+            while (i < roles.length && j < ids.length) {
+                if (roles[i] == ids[j]) return true;
+                if (roles[i] < ids[j]) i++;
+                else j++;
+            }
+            return false;
+        }
+    }
+}
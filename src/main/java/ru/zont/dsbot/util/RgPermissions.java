@@ -1,9 +1,6 @@
 package ru.zont.dsbot.util;
 
-import net.dv8tion.jda.api.Permission;
-import net.dv8tion.jda.api.entities.ISnowflake;
 import net.dv8tion.jda.api.entities.Member;
-import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import ru.zont.dsbot.ConfigRG;
@@ -38,7 +35,21 @@ public class RgPermissions extends PermissionsUtil {
     }
 
     public boolean permSetCanManagePlayers() {
-        return checkGuildAdmin() || checkAnyRoleFrom(getContext().getConfig().rolesCanManagePlayers.toList());
+        if (checkGuildAdmin()) return true;
+        final Member member = getMember();
+        if (member == null) return false;
+        final PermissionCache cache = PermissionCache.getInstance(getBot());
+        return cache.get(member).hasAnyRole(cache.roleIds(getContext().getConfig().rolesCanManagePlayers));
+    }
+
+    /**
+     * Same as {@link #permSetCanManagePlayers()}, for interactions without a command event (e.g. autocomplete)
+     */
+    public static boolean canManagePlayers(GuildContext context, Member member) {
+        if (context == null || member == null) return false;
+        final PermissionCache cache = PermissionCache.getInstance(context.getBot());
+        final PermissionCache.MemberPermissions perms = cache.get(member);
+        return perms.isAdmin() || perms.hasAnyRole(cache.roleIds(context.getConfig().rolesCanManagePlayers));
     }
 
     public boolean permSetOnlyTrueAdmin() {
@@ -49,27 +60,22 @@ public class RgPermissions extends PermissionsUtil {
     public boolean permSetAdmin() {
         if (super.permSetAdmin()) return true;
 
-        final String roleId = getConfig().botAdminRole.getString();
-        if (roleId == null) return false;
+        final PermissionCache cache = PermissionCache.getInstance(getBot());
+        final long[] roleIds = cache.roleIds(getConfig().botAdminRole);
+        if (roleIds.length == 0) return false;
 
         checkMember();
-        return getMember().getRoles().stream()
-                .map(Role::getId)
-                .anyMatch(roleId::equals);
+        return cache.get(getMember()).hasAnyRole(roleIds);
     }
 
     @Override
     public boolean permSetAdminFromMain() {
         GuildContext c = Objects.requireNonNull(getBot().getMainGuildContext());
-        Member m = c.getGuild().getMember(getAuthor());
-        if (m == null) return false;
-        if (m.isOwner() || m.hasPermission(Permission.ADMINISTRATOR)) return true;
-
-        final String roleId = getConfig().botAdminRole.getString();
-        if (roleId == null) return false;
+        final PermissionCache cache = PermissionCache.getInstance(getBot());
+        final PermissionCache.MemberPermissions m = cache.get(c.getGuild(), getAuthor().getIdLong());
+        if (!m.isMember()) return false;
+        if (m.isAdmin()) return true;
 
-        return m.getRoles().stream()
-                .map(Role::getId)
-                .anyMatch(roleId::equals);
+        return m.hasAnyRole(cache.roleIds(getConfig().botAdminRole));
     }
 }
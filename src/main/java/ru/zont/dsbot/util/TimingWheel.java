@@ -0,0 +1,144 @@
+package ru.zont.dsbot.util;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel: {@value #LEVELS} levels of {@value #SLOTS} slots, level {@code l} slot spans
+ * {@code tick * 64^l}. Adding is O(1), an entry is moved down at most once per level, and
+ * {@link #nextEventTime()} lets the owner sleep until something actually happens instead of ticking.
+ * Deadlines beyond the top level wait in an overflow list until the top level wraps.
+ * <p>
+ * Entries fire at the first tick at or after their deadline. Not thread safe.
+ */
+public class TimingWheel<T> {
+    public static final int SLOTS = 64;
+    public static final int LEVELS = 4;
+    private static final int BITS = 6;
+    private static final int MASK = SLOTS - 1;
+
+    private final long tick;
+    private final ArrayList<ArrayList<Entry<T>>> slots = new ArrayList<>(LEVELS * SLOTS);
+    private final ArrayList<Entry<T>> overflow = new ArrayList<>();
+    private final ArrayList<Entry<T>> due = new ArrayList<>();
+    private long current;
+    private int size = 0;
+
+    /**
+     * @param tick resolution in milliseconds
+     * @param now current time in milliseconds
+     */
+    public TimingWheel(long tick, long now) {
+        if (tick < 1)
+            throw new IllegalArgumentException("Tick should be positive");
+        this.tick = tick;
+        current = now / tick;
+        for (int i = 0; i < LEVELS * SLOTS; i++)
+            slots.add(null);
+    }
+
+    public void add(long deadline, T value) {
+        place(new Entry<>(Math.floorDiv(deadline + tick - 1, tick), value));
+        size++;
+    }
+
+    private void place(Entry<T> e) {
+        if (e.tick <= current) {
+            due.add(e);
+            return;
+        }
+        for (int l = 0; l < LEVELS; l++) {
+            if (e.tick >> (BITS * (l + 1)) == current >> (BITS * (l + 1))) {
+                final int idx = l * SLOTS + (int) ((e.tick >> (BITS * l)) & MASK);
+                ArrayList<Entry<T>> slot = slots.get(idx);
+                if (slot == null) slots.set(idx, slot = new ArrayList<>());
+                slot.add(e);
+                return;
+            }
+        }
+        overflow.add(e);
+    }
+
+    /**
+     * Move time forward and pass every entry whose deadline is not after {@code now} to {@code expired}.
+     * Only the slots that hold entries are visited.
+     */
+    public void advance(long now, Consumer<T> expired) {
+        final long target = now / tick;
+        flushDue(expired);
+        while (true) {
+            final long next = nextEventTick();
+            if (next > target) break;
+            current = next;
+            if ((current & ((1L << (BITS * LEVELS)) - 1)) == 0)
+                cascade(overflow);
+            for (int l = LEVELS - 1; l >= 0; l--) {
+                if ((current & ((1L << (BITS * l)) - 1)) != 0) continue;
+                final int idx = l * SLOTS + (int) ((current >> (BITS * l)) & MASK);
+                final ArrayList<Entry<T>> slot = slots.get(idx);
+                if (slot != null) {
+                    slots.set(idx, null);
+                    cascade(slot);
+                }
+            }
+            flushDue(expired);
+        }
+        current = Math.max(current, target);
+    }
+
+    private void cascade(ArrayList<Entry<T>> entries) {
+        final ArrayList<Entry<T>> copy = new ArrayList<>(entries);
+        entries.clear();
+        copy.forEach(this::place);
+    }
+
+    private void flushDue(Consumer<T> expired) {
+        if (due.isEmpty()) return;
+        final ArrayList<Entry<T>> copy = new ArrayList<>(due);
+        due.clear();
+        size -= copy.size();
+        for (Entry<T> e : copy)
+            expired.accept(e.value);
+    }
+
+    private long nextEventTick() {
+        if (!due.isEmpty())
+            return current;
+        long res = Long.MAX_VALUE;
+        for (int l = 0; l < LEVELS; l++) {
+            final long pos = current >> (BITS * l);
+            for (int s = (int) (pos & MASK) + 1; s < SLOTS; s++) {
+                if (slots.get(l * SLOTS + s) != null) {
+                    res = Math.min(res, ((pos & ~(long) MASK) | s) << (BITS * l));
+                    break;
+                }
+            }
+        }
+        if (res == Long.MAX_VALUE && !overflow.isEmpty())
+            res = ((current >> (BITS * LEVELS)) + 1) << (BITS * LEVELS);
+        return res;
+    }
+
+    /**
+     * @return time in milliseconds when {@link #advance} will have something to do,
+     * or {@link Long#MAX_VALUE} if the wheel is empty
+     */
+    public long nextEventTime() {
+        final long next = nextEventTick();
+        return next == Long.MAX_VALUE ? next : next * tick;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static final class Entry<T> {
+        final long tick;
+        final T value;
+
+        Entry(long tick, T value) {
+            this.tick = tick;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package ru.zont.dsbot.util;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Fuzzy text index for autocomplete. Every word is lower-cased and padded with two leading spaces
+ * and one trailing space, so one- and two-letter queries still match word prefixes and whole words
+ * rank above longer words sharing the prefix. Items are ranked by the number of
+ * shared trigrams; at least half of the query trigrams have to match.
+ */
+public class TrigramIndex<T> {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<String, Integer> slots = new HashMap<>();
+    private final HashMap<Long, IntList> postings = new HashMap<>();
+    private final ArrayList<String> keys = new ArrayList<>();
+    private final ArrayList<T> values = new ArrayList<>();
+    private final ArrayList<long[]> grams = new ArrayList<>();
+    private final IntList lengths = new IntList();
+    private final IntList free = new IntList();
+
+    /**
+     * Add or replace an item
+     * @param texts strings to search the item by
+     */
+    public void put(String key, T value, String... texts) {
+        final long[] itemGrams = trigrams(texts);
+        int length = 0;
+        for (String text : texts)
+            if (text != null) length += text.length();
+
+        lock.writeLock().lock();
+        try {
+            removeSlot(key);
+            final int slot;
+            if (free.size > 0) {
+                slot = free.removeLast();
+                keys.set(slot, key);
+                values.set(slot, value);
+                grams.set(slot, itemGrams);
+                lengths.values[slot] = length;
+            } else {
+                slot = keys.size();
+                keys.add(key);
+                values.add(value);
+                grams.add(itemGrams);
+                lengths.add(length);
+            }
+            slots.put(key, slot);
+            for (long g : itemGrams)
+                postings.computeIfAbsent(g, k -> new IntList()).add(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(String key) {
+        lock.writeLock().lock();
+        try {
+            return removeSlot(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean removeSlot(String key) {
+        final Integer slot = slots.remove(key);
+        if (slot == null) return false;
+        for (long g : grams.get(slot)) {
+            final IntList list = postings.get(g);
+            list.removeValue(slot);
+            if (list.size == 0) postings.remove(g);
+        }
+        keys.set(slot, null);
+        values.set(slot, null);
+        grams.set(slot, null);
+        free.add(slot);
+        return true;
+    }
+
+    public T get(String key) {
+        lock.readLock().lock();
+        try {
+            final Integer slot = slots.get(key);
+            return slot != null ? values.get(slot) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            slots.clear();
+            postings.clear();
+            keys.clear();
+            values.clear();
+            grams.clear();
+            lengths.size = 0;
+            free.size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return best matches first, shorter texts win ties
+     */
+    public List<T> search(String query, int limit) {
+        final long[] queryGrams = trigrams(query);
+        if (queryGrams.length == 0 || limit <= 0)
+            return Collections.emptyList();
+        final int minScore = (queryGrams.length + 1) / 2;
+
+        lock.readLock().lock();
+        try {
+            // Every posting of every query trigram, sorted: the run length of a slot is its score.
+            // Memory depends on the matched candidates only, not on the index size
+            int total = 0;
+            for (long g : queryGrams) {
+                final IntList list = postings.get(g);
+                if (list != null) total += list.size;
+            }
+            final int[] hits = new int[total];
+            int n = 0;
+            for (long g : queryGrams) {
+                final IntList list = postings.get(g);
+                if (list == null) continue;
+                System.arraycopy(list.values, 0, hits, n, list.size);
+                n += list.size;
+            }
+            Arrays.sort(hits);
+
+            // Best candidates first
+            final int[] top = new int[Math.min(limit, total)];
+            final int[] topScores = new int[top.length];
+            int found = 0;
+            for (int i = 0; i < total; ) {
+                final int slot = hits[i];
+                final int from = i;
+                while (i < total && hits[i] == slot) i++;
+                final int score = i - from;
+                if (score < minScore) continue;
+                if (found == top.length && !isBetter(slot, score, top[found - 1], topScores[found - 1]))
+                    continue;
+
+                int pos = found < top.length ? found++ : found - 1;
+                for (; pos > 0 && isBetter(slot, score, top[pos - 1], topScores[pos - 1]); pos--) {
+                    top[pos] = top[pos - 1];
+                    topScores[pos] = topScores[pos - 1];
+                }
+                top[pos] = slot;
+                topScores[pos] = score;
+            }
+
+            final ArrayList<T> res = new ArrayList<>(found);
+            for (int i = 0; i < found; i++)
+                res.add(values.get(top[i]));
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean isBetter(int slot, int score, int otherSlot, int otherScore) {
+        if (score != otherScore) return score > otherScore;
+        if (lengths.values[slot] != lengths.values[otherSlot]) return lengths.values[slot] < lengths.values[otherSlot];
+        return keys.get(slot).compareTo(keys.get(otherSlot)) < 0;
+    }
+
+    static long[] trigrams(String... texts) {
+        int capacity = 0;
+        for (String text : texts)
+            if (text != null) capacity += text.length() + 1;
+        final long[] res = new long[capacity];
+        int n = 0;
+        for (String text : texts) {
+            if (text == null) continue;
+            char c1 = ' ', c2 = ' ';
+            for (int i = 0; i < text.length(); i++) {
+                final char c = Character.toLowerCase(text.charAt(i));
+                if (!Character.isLetterOrDigit(c)) {
+                    if (c2 != ' ') res[n++] = ((long) c1 << 32) | ((long) c2 << 16) | ' ';
+                    c1 = c2 = ' ';
+                    continue;
+                }
+                res[n++] = ((long) c1 << 32) | ((long) c2 << 16) | c;
+                c1 = c2;
+                c2 = c;
+            }
+            if (c2 != ' ') res[n++] = ((long) c1 << 32) | ((long) c2 << 16) | ' ';
+        }
+
+        // Distinct trigrams: a repeated one would be counted twice when scoring
+        Arrays.sort(res, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++)
+            if (distinct == 0 || res[i] != res[distinct - 1])
+                res[distinct++] = res[i];
+        return Arrays.copyOf(res, distinct);
+    }
+
+    private static class IntList {
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int v) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        int removeLast() {
+            return values[--size];
+        }
+
+        void removeValue(int v) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == v) {
+                    values[i] = values[--size];
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+-- Indexes used by PlayersDB lookups.
+-- p_uid is the key of the profiles upsert. DBMigrations skips this statement if profiles already has
+-- a unique index on (p_uid) under any name, such as the one a column-level UNIQUE creates.
+CREATE UNIQUE INDEX IF NOT EXISTS p_uid ON profiles (p_uid);
+CREATE INDEX IF NOT EXISTS idx_profiles_dis ON profiles (p_id_dis);
+
+-- Characters of a player, most recent first
+CREATE INDEX IF NOT EXISTS idx_characters_uid_lastupd ON characters (c_uid, c_lastupd);
@@ -0,0 +1,2 @@
+-- Character feed reads characters by the c_lastupd watermark
+CREATE INDEX IF NOT EXISTS idx_characters_lastupd ON characters (c_lastupd, c_id);
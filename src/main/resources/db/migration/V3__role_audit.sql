@@ -0,0 +1,20 @@
+-- Role change journal, loaded in batches from the bot's local append-only log.
+-- a_seq comes from the log, so replaying it after a crash is idempotent.
+CREATE TABLE IF NOT EXISTS role_audit (
+    a_seq    BIGINT        NOT NULL PRIMARY KEY,
+    a_time   TIMESTAMP(3)  NOT NULL,
+    a_actor  VARCHAR(32)   NOT NULL,
+    a_uid    VARCHAR(32)   NOT NULL,
+    a_char   BIGINT        NOT NULL DEFAULT 0,
+    a_before VARCHAR(1024),
+    a_after  VARCHAR(1024) NOT NULL,
+    INDEX idx_role_audit_uid (a_uid, a_seq)
+);
+
+-- One row per role added or removed, for the role history lookup
+CREATE TABLE IF NOT EXISTS role_audit_roles (
+    r_role  INT     NOT NULL,
+    r_seq   BIGINT  NOT NULL,
+    r_added BOOLEAN NOT NULL,
+    PRIMARY KEY (r_role, r_seq)
+);
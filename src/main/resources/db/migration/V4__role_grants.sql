@@ -0,0 +1,8 @@
+-- Time-limited role grants. Rows are loaded into the expiry wheel at startup
+-- and deleted once the roles have been removed.
+CREATE TABLE IF NOT EXISTS role_grants (
+    g_uid     VARCHAR(32)  NOT NULL,
+    g_role    INT          NOT NULL,
+    g_expires TIMESTAMP(3) NOT NULL,
+    PRIMARY KEY (g_uid, g_role)
+);
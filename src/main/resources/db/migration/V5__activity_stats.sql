@@ -0,0 +1,42 @@
+-- Active characters per side and day ('D') or week starting on Monday ('W').
+-- Maintained incrementally by the bot from new c_lastupd values.
+CREATE TABLE IF NOT EXISTS activity_stats (
+    s_period CHAR(1)     NOT NULL,
+    s_start  DATE        NOT NULL,
+    s_side   VARCHAR(16) NOT NULL,
+    s_active INT         NOT NULL,
+    PRIMARY KEY (s_period, s_start, s_side)
+);
+
+-- Last day each character has been counted for, so a character is counted once per day and week
+CREATE TABLE IF NOT EXISTS activity_seen (
+    a_char BIGINT NOT NULL PRIMARY KEY,
+    a_day  DATE   NOT NULL
+);
+
+-- How far characters.c_lastupd has been counted
+CREATE TABLE IF NOT EXISTS activity_state (
+    id        TINYINT      NOT NULL PRIMARY KEY,
+    watermark TIMESTAMP(3) NOT NULL
+);
+
+-- Backfill from what the table holds now: the last activity day of every character.
+-- Rows without c_lastupd have no activity to count; DATE(NULL) would become a zero date.
+INSERT IGNORE INTO activity_seen (a_char, a_day)
+SELECT c_id, DATE(c_lastupd) FROM characters
+WHERE c_lastupd IS NOT NULL;
+
+INSERT IGNORE INTO activity_stats (s_period, s_start, s_side, s_active)
+SELECT 'D', DATE(c_lastupd), COALESCE(c_side, ''), COUNT(*)
+FROM characters
+WHERE c_lastupd IS NOT NULL
+GROUP BY DATE(c_lastupd), COALESCE(c_side, '');
+
+INSERT IGNORE INTO activity_stats (s_period, s_start, s_side, s_active)
+SELECT 'W', DATE(c_lastupd) - INTERVAL WEEKDAY(c_lastupd) DAY, COALESCE(c_side, ''), COUNT(*)
+FROM characters
+WHERE c_lastupd IS NOT NULL
+GROUP BY DATE(c_lastupd) - INTERVAL WEEKDAY(c_lastupd) DAY, COALESCE(c_side, '');
+
+INSERT IGNORE INTO activity_state (id, watermark)
+SELECT 1, COALESCE(MAX(c_lastupd), TIMESTAMP('1970-01-02')) FROM characters;
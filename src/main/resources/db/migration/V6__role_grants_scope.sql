@@ -0,0 +1,6 @@
+-- What a grant has actually added, so that only that is removed on expiry:
+-- whether the role was added to the profile, and the ids of the characters it was added to.
+-- Grants written before have added the role to the profile and all characters (NULL).
+ALTER TABLE role_grants
+    ADD COLUMN IF NOT EXISTS g_profile BOOLEAN NOT NULL DEFAULT TRUE,
+    ADD COLUMN IF NOT EXISTS g_chars   TEXT    NULL;
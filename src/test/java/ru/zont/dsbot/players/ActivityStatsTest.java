@@ -0,0 +1,70 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ActivityStatsTest extends EmbeddedDBTest {
+
+    @Test
+    void activityStats() throws SQLException {
+        final ActivityStats stats = new ActivityStats(db);
+        stats.update();
+
+        // Backfilled from the seeded c_lastupd, all within a few hours
+        final LocalDate seeded = new Timestamp(TIME_BASE).toLocalDateTime().toLocalDate();
+        final ActivityStats.Bucket old = stats.get(ActivityStats.Period.DAY, 1, seeded).get(0);
+        assertEquals(seeded, old.getStart());
+        assertTrue(old.getBySide().get("WEST") > old.getBySide().get("EAST"));
+        assertTrue(old.getTotal() > PLAYERS);
+
+        final int i = freshPlayer();
+        final long charId = db.getPlayerCharacters(steamId(i)).get(0).id;
+        sql("UPDATE characters SET c_side = 'STATS', c_lastupd = NOW() WHERE c_id = ?", charId);
+        assertTrue(stats.update() >= 1);
+        final LocalDate today = stats.today();
+        for (ActivityStats.Period p : ActivityStats.Period.values()) {
+            final ActivityStats.Bucket b = stats.get(p, 1, today).get(0);
+            assertEquals(p.start(today), b.getStart());
+            assertEquals(1, b.getBySide().get("STATS"));
+        }
+
+        // Same day again: re-read, not counted twice
+        sql("UPDATE characters SET c_lastupd = NOW() + INTERVAL 1 SECOND WHERE c_id = ?", charId);
+        stats.update();
+        stats.update();
+        assertEquals(1, stats.get(ActivityStats.Period.DAY, 1, today).get(0).getBySide().get("STATS"));
+    }
+
+    @Test
+    void updatesOffTheFeedThread() throws SQLException, InterruptedException {
+        final ActivityStats stats = new ActivityStats(db);
+        try {
+            stats.update();
+            final int i = freshPlayer();
+            final PlayerCharacter c = db.getPlayerCharacters(steamId(i)).get(0);
+            sql("UPDATE characters SET c_side = 'QUEUED', c_lastupd = NOW() WHERE c_id = ?", c.id);
+
+            // Published by the feed in a row: coalesced into the queued update, counted once
+            for (int n = 0; n < 10; n++)
+                stats.onCharactersChanged(List.of(new CharacterFeed.Change(null, c)));
+            final LocalDate today = stats.today();
+            final long deadline = System.currentTimeMillis() + 5000;
+            Integer counted = null;
+            while (counted == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                final List<ActivityStats.Bucket> buckets = stats.get(ActivityStats.Period.DAY, 1, today);
+                if (!buckets.isEmpty())
+                    counted = buckets.get(0).getBySide().get("QUEUED");
+            }
+            assertEquals(1, counted);
+        } finally {
+            stats.shutdown();
+        }
+    }
+}
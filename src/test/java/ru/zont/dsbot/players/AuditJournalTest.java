@@ -0,0 +1,111 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuditJournalTest extends EmbeddedDBTest {
+
+    @Test
+    void auditJournal() throws IOException {
+        final File dir = Files.createTempDirectory("audit").toFile();
+        final AuditJournal journal = new AuditJournal(db, dir);
+        final int i = freshPlayer();
+        db.setJournal(journal);
+        try {
+            journal.start();
+            AuditJournal.runAs("1234", () ->
+                    db.addRoles(steamId(i), disId(i), List.of(1080), PlayersDB.Characters.LAST_ACTIVE));
+            db.addRoles(steamId(i), disId(i), List.of(1080), PlayersDB.Characters.NONE); // no change
+            db.rmRoles(disId(i), List.of(1080), PlayersDB.Characters.NONE);
+        } finally {
+            db.setJournal(null);
+            journal.shutdown();
+        }
+
+        final List<AuditJournal.Entry> history = journal.getPlayerHistory(steamId(i), 10);
+        assertEquals(3, history.size());
+        assertEquals(AuditJournal.SYSTEM, history.get(0).getActor());
+        assertFalse(history.get(0).getAfter().contains(1080));
+        assertEquals("1234", history.get(2).getActor());
+        assertEquals(0, history.get(2).getCharId());
+        assertEquals(seededRoles(i), history.get(2).getBefore());
+        assertNotEquals(0, history.get(1).getCharId());
+
+        final List<AuditJournal.Entry> byRole = journal.getRoleHistory(1080, 10);
+        assertEquals(3, byRole.size());
+        assertEquals(history.get(0).getSeq(), byRole.get(0).getSeq());
+
+        // Reopening does not load the same entries again, a torn last line is skipped
+        Files.writeString(new File(dir, "roles.ndjson").toPath(), "{\"seq\": 1", StandardOpenOption.APPEND);
+        final AuditJournal reopened = new AuditJournal(db, dir);
+        reopened.start();
+        reopened.shutdown();
+        assertEquals(3, journal.getPlayerHistory(steamId(i), 10).size());
+    }
+
+    @Test
+    void auditJournalRejectsBadEntries() throws IOException {
+        final File dir = Files.createTempDirectory("audit").toFile();
+        final AuditJournal journal = new AuditJournal(db, dir);
+        final int i = freshPlayer();
+        db.setJournal(journal);
+        try {
+            // Longer than a_actor, which would hold back every entry after it
+            AuditJournal.runAs("x".repeat(40), () ->
+                    db.addRoles(steamId(i), disId(i), List.of(1095), PlayersDB.Characters.NONE));
+            db.rmRoles(disId(i), List.of(1095), PlayersDB.Characters.NONE);
+            journal.start();
+        } finally {
+            db.setJournal(null);
+            journal.shutdown();
+        }
+
+        final List<AuditJournal.Entry> history = journal.getPlayerHistory(steamId(i), 10);
+        assertEquals(1, history.size());
+        assertFalse(history.get(0).getAfter().contains(1095));
+        final List<String> rejected = Files.readAllLines(new File(dir, "roles.rejected.ndjson").toPath());
+        assertEquals(1, rejected.size());
+        assertTrue(rejected.get(0).contains("xxxx"));
+        assertEquals(Long.toString(new File(dir, "roles.ndjson").length()),
+                Files.readString(new File(dir, "roles.offset").toPath()));
+    }
+
+    @Test
+    void writeBehindJournalsEveryActor() throws IOException {
+        final AuditJournal journal = new AuditJournal(db, Files.createTempDirectory("audit").toFile());
+        final RoleWriteQueue queue = new RoleWriteQueue(db, 100);
+        final int i = freshPlayer();
+        db.setJournal(journal);
+        try {
+            journal.start();
+            final ArrayList<CompletableFuture<PlayerInfo>> futures = new ArrayList<>();
+            AuditJournal.runAs("111", () -> futures.add(
+                    queue.addRoles(steamId(i), disId(i), List.of(1081), PlayersDB.Characters.LAST_ACTIVE)));
+            AuditJournal.runAs("222", () -> futures.add(
+                    queue.addRoles(steamId(i), disId(i), List.of(1082), PlayersDB.Characters.LAST_ACTIVE)));
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+            assertEquals(1, queue.getFlushes());
+        } finally {
+            queue.shutdown();
+            db.setJournal(null);
+            journal.shutdown();
+        }
+
+        final List<AuditJournal.Entry> history = journal.getPlayerHistory(steamId(i), 10);
+        assertEquals(4, history.size());
+        for (AuditJournal.Entry e : history) {
+            final String actor = e.getAfter().contains(1082) ? "222" : "111";
+            assertEquals(actor, e.getActor());
+            assertEquals(actor.equals("111"), !e.getBefore().contains(1081));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CharacterFeedTest extends EmbeddedDBTest {
+
+    @Test
+    void characterFeed() throws SQLException {
+        final int i = freshPlayer(); // 3 characters
+        final CharacterFeed feed = new CharacterFeed(db);
+        final ArrayList<CharacterFeed.Change> changes = new ArrayList<>();
+        feed.addListener(changes::addAll);
+
+        final int undated = newPlayer(), late = newPlayer(); // no characters
+        sql("INSERT INTO characters (c_name, c_uid, c_roles, c_lastupd, c_side) VALUES (?, ?, '[ ]', NULL, 'GUER')",
+                "char-%d-undated".formatted(undated), steamId(undated));
+
+        assertNull(feed.getCharacters(steamId(i)));
+        assertEquals(0, feed.poll());
+        assertTrue(feed.size() >= PLAYERS / 4 * 6);
+        assertEquals(List.of("char-4003-2", "char-4003-1", "char-4003-0"),
+                feed.getCharacters(steamId(4003)).stream().map(c -> c.name).toList());
+        assertNull(feed.getCharacters("76561190000000000"));
+        assertEquals(1, feed.getCharacters(steamId(undated)).size());
+        assertEquals(0, feed.poll());
+
+        final long charId = feed.getCharacters(steamId(i)).get(0).id;
+        db.getPlayerCharacters(steamId(i));
+        sql("INSERT INTO characters (c_name, c_uid, c_roles, c_lastupd, c_side) VALUES (?, ?, '[ ]', NOW(), 'GUER')",
+                "char-%d-new".formatted(i), steamId(i));
+        sql("UPDATE characters SET c_roles = '[ 1060 ]', c_lastupd = NOW() WHERE c_id = ?", charId);
+
+        assertEquals(2, feed.poll());
+        assertEquals(2, changes.size());
+        final CharacterFeed.Change created = changes.stream().filter(CharacterFeed.Change::isNew).findAny().orElseThrow();
+        assertEquals("char-%d-new".formatted(i), created.getAfter().name);
+        final CharacterFeed.Change updated = changes.stream().filter(c -> !c.isNew()).findAny().orElseThrow();
+        assertEquals(charId, updated.getAfter().id);
+        assertTrue(updated.rolesChanged());
+        assertEquals(new RoleSet(1060), updated.getAfter().roles);
+
+        assertEquals(4, feed.getCharacters(steamId(i)).size());
+        assertNull(db.getCache().getCharacters(steamId(i)));
+        assertEquals(4, db.getPlayerCharacters(steamId(i)).size());
+
+        // Overlapping rows are re-read but not republished
+        assertEquals(0, feed.poll());
+        assertEquals(2, changes.size());
+
+        sql("DELETE FROM characters WHERE c_id = ?", created.getAfter().id);
+        assertEquals(0, feed.poll());
+        feed.requestReconcile();
+        assertEquals(1, feed.poll());
+        assertTrue(changes.get(2).isDeleted());
+        assertEquals(steamId(i), changes.get(2).getSteamId());
+        final List<Long> ids = feed.getCharacters(steamId(i)).stream().map(c -> c.id).toList();
+        assertEquals(3, ids.size());
+        assertFalse(ids.contains(created.getAfter().id));
+        assertNull(db.getCache().getCharacters(steamId(i)));
+
+        // Committed with a timestamp far behind the watermark: found by the next reconcile
+        sql("INSERT INTO characters (c_name, c_uid, c_roles, c_lastupd, c_side) VALUES (?, ?, '[ ]', ?, 'GUER')",
+                "char-%d-late".formatted(late), steamId(late), new Timestamp(TIME_BASE));
+        assertEquals(0, feed.poll());
+        assertNull(feed.getCharacters(steamId(late)));
+        assertEquals(1, db.getPlayerCharacters(steamId(late)).size());
+        feed.requestReconcile();
+        assertEquals(1, feed.poll());
+        assertTrue(changes.get(3).isNew());
+        assertEquals(1, feed.getCharacters(steamId(late)).size());
+
+        sql("DELETE FROM characters WHERE c_uid IN (?, ?)", steamId(undated), steamId(late));
+    }
+}
@@ -0,0 +1,243 @@
+package ru.zont.dsbot.players;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.zont.dsbot.util.DBMigrations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs tests against an embedded MariaDB seeded with a synthetic roster, started once for all the test classes.
+ * Player {@code i} has SteamID {@code STEAM_BASE + i}, Discord id {@code DIS_BASE + i},
+ * role {@code i % 10} (plus 100 for every hundredth) and {@code i % 4} characters.
+ * <p>
+ * Seeded players below {@link #FRESH_FROM} are only read, except the block {@link PlayersImportTest} updates.
+ * A test that changes a player takes its own from {@link #freshPlayer()} or {@link #newPlayer()},
+ * so tests do not depend on each other or on their order.
+ * Every test class gets its own {@link PlayersDB} and pool.
+ */
+@ExtendWith(EmbeddedDBTest.Server.class)
+abstract class EmbeddedDBTest {
+    private static final Logger log = LoggerFactory.getLogger(EmbeddedDBTest.class);
+    static final int PLAYERS = 20_000;
+    static final long STEAM_BASE = 76561198000000000L;
+    static final long DIS_BASE = 100000000000000000L;
+    static final long TIME_BASE = 1_600_000_000_000L;
+
+    /**
+     * Seeded players from here up are handed out by {@link #freshPlayer()}
+     */
+    static final int FRESH_FROM = PLAYERS - 1000;
+    /**
+     * Players from here up are not seeded, and are handed out by {@link #newPlayer()}
+     */
+    static final int NEW_FROM = 1_000_000;
+
+    private static final AtomicInteger fresh = new AtomicInteger(PLAYERS);
+    private static final AtomicInteger created = new AtomicInteger(NEW_FROM);
+
+    static String url;
+    static PlayersDataSource dataSource;
+    static PlayersDB db;
+
+    @BeforeAll
+    static void connect() {
+        dataSource = new PlayersDataSource(url, 4);
+        db = new PlayersDB(null, dataSource);
+    }
+
+    @AfterAll
+    static void disconnect() {
+        if (dataSource != null) {
+            log.info("Pool: {}", dataSource);
+            dataSource.close();
+        }
+        dataSource = null;
+        db = null;
+    }
+
+    static String steamId(int i) {
+        return String.valueOf(STEAM_BASE + i);
+    }
+
+    static String disId(int i) {
+        return String.valueOf(DIS_BASE + i);
+    }
+
+    static RoleSet seededRoles(int i) {
+        final RoleSet roles = new RoleSet(i % 10);
+        if (i % 100 == 0) roles.add(100);
+        return roles;
+    }
+
+    /**
+     * @return a seeded player with 3 characters, that no other test has been given
+     */
+    static int freshPlayer() {
+        final int i = fresh.addAndGet(-4) + 3;
+        if (i < FRESH_FROM)
+            throw new IllegalStateException("Out of fresh players, raise FRESH_FROM");
+        return i;
+    }
+
+    /**
+     * @return a player that has no profile and no characters
+     */
+    static int newPlayer() {
+        return newPlayers(1);
+    }
+
+    /**
+     * @return the first of {@code n} consecutive players that have no profiles and no characters
+     */
+    static int newPlayers(int n) {
+        return created.getAndAdd(n);
+    }
+
+    static void sql(String sql, Object... params) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url);
+             PreparedStatement st = conn.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++)
+                st.setObject(i + 1, params[i]);
+            st.executeUpdate();
+        }
+    }
+
+    static Set<String> steamIdsWithRole(int role) throws SQLException {
+        final HashSet<String> res = new HashSet<>();
+        try (Connection conn = DriverManager.getConnection(url);
+             ResultSet r = conn.createStatement().executeQuery("SELECT p_uid, p_roles FROM profiles")) {
+            while (r.next())
+                if (RoleSet.parse(r.getString(2)).contains(role))
+                    res.add(r.getString(1));
+        }
+        return res;
+    }
+
+    /**
+     * @return SELECTs run by the server so far, not counting this one
+     */
+    static long selects() throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url);
+             ResultSet r = conn.createStatement().executeQuery("SHOW GLOBAL STATUS LIKE 'Com_select'")) {
+            assertTrue(r.next());
+            return r.getLong(2);
+        }
+    }
+
+    static void runScript(Connection conn, String resource) throws IOException, SQLException {
+        final String script;
+        try (InputStream in = EmbeddedDBTest.class.getResourceAsStream(resource)) {
+            script = new String(Objects.requireNonNull(in, resource).readAllBytes(), StandardCharsets.UTF_8);
+        }
+        try (Statement st = conn.createStatement()) {
+            for (String sql : script.split(";"))
+                if (!sql.isBlank())
+                    st.execute(sql);
+        }
+    }
+
+    /**
+     * Starts and seeds the server for the first test class, and stops it after the last one
+     */
+    static class Server implements BeforeAllCallback, ExtensionContext.Store.CloseableResource {
+        private DB embedded;
+
+        @Override
+        public void beforeAll(ExtensionContext context) {
+            context.getRoot().getStore(ExtensionContext.Namespace.GLOBAL)
+                    .getOrComputeIfAbsent(Server.class, k -> start(), Server.class);
+        }
+
+        private static Server start() {
+            final Server server = new Server();
+            try {
+                final DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+                config.setPort(0);
+                if ("root".equals(System.getProperty("user.name")))
+                    config.addArg("--user=root");
+                server.embedded = DB.newEmbeddedDB(config.build());
+                server.embedded.start();
+
+                final String serverUrl = "jdbc:mariadb://localhost:%d/".formatted(config.getPort());
+                try (Connection conn = DriverManager.getConnection(serverUrl, "root", "")) {
+                    conn.createStatement().execute("CREATE DATABASE players_test");
+                }
+                url = serverUrl + "players_test?user=root";
+
+                try (Connection conn = DriverManager.getConnection(url)) {
+                    runScript(conn, "/players_schema.sql");
+                    seed(conn);
+                    assertEquals(DBMigrations.MIGRATIONS.size(), DBMigrations.migrate(conn));
+                    assertEquals(0, DBMigrations.migrate(conn));
+                    conn.createStatement().execute("ANALYZE TABLE profiles, characters");
+                }
+            } catch (Exception e) {
+                server.close();
+                throw new IllegalStateException("Cannot start the embedded database", e);
+            }
+            return server;
+        }
+
+        private static void seed(Connection conn) throws SQLException {
+            conn.setAutoCommit(false);
+            try (PreparedStatement profiles = conn.prepareStatement(
+                    "INSERT INTO profiles (p_name, p_id_dis, p_uid, p_roles) VALUES (?, ?, ?, ?)");
+                 PreparedStatement characters = conn.prepareStatement(
+                         "INSERT INTO characters (c_name, c_uid, c_roles, c_lastupd, c_side) VALUES (?, ?, ?, ?, ?)")) {
+                for (int i = 0; i < PLAYERS; i++) {
+                    profiles.setString(1, "player-" + i);
+                    profiles.setString(2, disId(i));
+                    profiles.setString(3, steamId(i));
+                    profiles.setString(4, seededRoles(i).toString());
+                    profiles.addBatch();
+
+                    for (int k = 0; k < i % 4; k++) {
+                        characters.setString(1, "char-%d-%d".formatted(i, k));
+                        characters.setString(2, steamId(i));
+                        characters.setString(3, k == 0 ? new RoleSet(i % 10).toString() : "[ ]");
+                        characters.setTimestamp(4, new Timestamp(TIME_BASE + i * 1000L + k * 3_600_000L));
+                        characters.setString(5, k % 2 == 0 ? "WEST" : "EAST");
+                        characters.addBatch();
+                    }
+
+                    if (i % 1000 == 999) {
+                        profiles.executeBatch();
+                        characters.executeBatch();
+                    }
+                }
+                profiles.executeBatch();
+                characters.executeBatch();
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (embedded != null)
+                    embedded.stop();
+            } catch (Exception e) {
+                log.warn("Cannot stop the embedded database", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlayerSearchTest extends EmbeddedDBTest {
+
+    @Test
+    void playerSearch() {
+        final PlayerSearch search = new PlayerSearch(db);
+        assertTrue(search.search("player", 5).isEmpty());
+        search.load().join();
+
+        assertEquals(steamId(1234), search.search("player-1234", 5).get(0).getSteamId());
+        assertEquals(steamId(4003), search.search("char-4003-1", 5).get(0).getSteamId());
+        assertEquals(steamId(777), search.search(steamId(777), 5).get(0).getSteamId());
+        final String prefix = steamId(1230).substring(0, 16);
+        assertEquals(List.of(steamId(1230), steamId(1231), steamId(1232)),
+                search.search(" " + prefix, 3).stream().map(PlayerSearch.Entry::getSteamId).toList());
+        assertEquals(5, search.search("pla", 5).size());
+
+        final int bound = newPlayer();
+        db.bindPlayer(steamId(bound), disId(bound));
+        assertEquals(steamId(bound), search.search(steamId(bound), 1).get(0).getSteamId());
+        db.removeProfileListener(search);
+    }
+}
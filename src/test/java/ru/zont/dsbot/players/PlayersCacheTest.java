@@ -0,0 +1,38 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlayersCacheTest {
+    private static final String STEAM_ID = "76561190000000001";
+    private static final String DIS_ID = "200000000000000001";
+
+    @Test
+    void putAfterInvalidate() {
+        final PlayersCache cache = new PlayersCache();
+        final PlayerProfile old = new PlayerProfile(1, "name", DIS_ID, STEAM_ID, new RoleSet(1));
+
+        // A reader has read the old value, a writer commits and invalidates before the reader puts it
+        long stamp = cache.stamp();
+        cache.invalidateProfile(STEAM_ID, DIS_ID);
+        cache.putProfile(old, stamp);
+        assertNull(cache.getProfile(STEAM_ID));
+        assertNull(cache.getProfileByDisId(DIS_ID));
+
+        stamp = cache.stamp();
+        cache.invalidateCharacters(STEAM_ID);
+        cache.putCharacters(STEAM_ID, List.of(), stamp);
+        assertNull(cache.getCharacters(STEAM_ID));
+
+        // Read after the invalidation
+        stamp = cache.stamp();
+        cache.putProfile(old, stamp);
+        cache.putCharacters(STEAM_ID, List.of(), stamp);
+        assertSame(old, cache.getProfile(STEAM_ID));
+        assertSame(old, cache.getProfileByDisId(DIS_ID));
+        assertEquals(List.of(), cache.getCharacters(STEAM_ID));
+    }
+}
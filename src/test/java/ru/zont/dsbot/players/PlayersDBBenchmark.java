@@ -0,0 +1,89 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
+
+/**
+ * Timings of {@link PlayersDB} on the seeded roster. Not run by {@code test}, run them with {@code gradle bench}
+ */
+@Tag("bench")
+class PlayersDBBenchmark extends EmbeddedDBTest {
+    private static final Logger log = LoggerFactory.getLogger(PlayersDBBenchmark.class);
+
+    @Test
+    void throughput() {
+        final Random random = new Random(42);
+        // The role added to these players is removed again, so the seeded roles are left as they were
+        final int[] ids = random.ints(0, FRESH_FROM).distinct().limit(5000).toArray();
+
+        db.getCache().clear();
+        bench("getPlayer (miss)", ids.length, n -> db.getPlayer(steamId(ids[n])));
+        bench("getPlayer (hit)", 2000, n -> db.getPlayer(steamId(ids[ids.length - 1 - n])));
+        db.getCache().clear();
+        bench("getPlayerByDisId (miss)", 1000, n -> db.getPlayerByDisId(disId(ids[n])));
+        db.getCache().clear();
+        bench("getPlayerWithCharactersByDisId", 500, n -> db.getPlayerWithCharactersByDisId(disId(ids[n])));
+        bench("getPlayersWithRole", 20, n -> db.getPlayersWithRole(n % 10));
+        bench("getPlayersWithRoleAndCharacters", 5, n -> db.getPlayersWithRoleAndCharacters(n % 10));
+        bench("addRoles (LAST_ACTIVE)", 200,
+                n -> db.addRoles(null, disId(ids[n]), List.of(1050), PlayersDB.Characters.LAST_ACTIVE));
+        bench("rmRoles", 200, n -> db.rmRoles(disId(ids[n]), List.of(1050)));
+
+        final PlayersDBAsync async = new PlayersDBAsync(db);
+        db.getCache().clear();
+        final int total = 1000;
+        final long start = System.nanoTime();
+        for (int from = 0; from < total; from += PlayersDBAsync.QUEUE_LIMIT) {
+            final ArrayList<CompletableFuture<PlayerProfile>> batch = new ArrayList<>();
+            for (int n = from; n < Math.min(total, from + PlayersDBAsync.QUEUE_LIMIT); n++)
+                batch.add(async.getPlayerByDisId(disId(ids[n])));
+            batch.forEach(CompletableFuture::join);
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        log.info("%-34s %6d ops %9.0f ops/s (%d threads)".formatted(
+                "getPlayerByDisId (async)", total, total / seconds, PlayersDBAsync.THREADS));
+        async.shutdown();
+    }
+
+    /**
+     * The query counts are checked by {@link PlayersDBEmbeddedTest#getPlayersWithRoleAndCharactersQueries}
+     */
+    @Test
+    void roleRoster() {
+        final int role = 3;
+        // With a cold cache on every run
+        bench("role roster (N+1)", 10, n -> {
+            db.getCache().clear();
+            for (PlayerProfile p : db.getPlayersWithRole(role))
+                db.getPlayerCharacters(p.steamId);
+        });
+        bench("role roster (JOIN)", 10, n -> {
+            db.getCache().clear();
+            db.getPlayersWithRoleAndCharacters(role);
+        });
+    }
+
+    private static void bench(String name, int ops, IntConsumer op) {
+        final long[] latencies = new long[ops];
+        final long start = System.nanoTime();
+        for (int n = 0; n < ops; n++) {
+            final long t = System.nanoTime();
+            op.accept(n);
+            latencies[n] = System.nanoTime() - t;
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(latencies);
+        log.info("%-34s %6d ops %9.0f ops/s  p50 %7.3f ms  p99 %7.3f ms".formatted(
+                name, ops, ops / seconds,
+                latencies[ops / 2] / 1e6, latencies[Math.min(ops - 1, ops * 99 / 100)] / 1e6));
+    }
+}
@@ -0,0 +1,195 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.zont.dsbot.core.util.DescribedException;
+
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reads of {@link PlayersDB} and the plans of its queries, see {@link EmbeddedDBTest} for the seeded roster
+ */
+class PlayersDBEmbeddedTest extends EmbeddedDBTest {
+    private static final Logger log = LoggerFactory.getLogger(PlayersDBEmbeddedTest.class);
+
+    @Test
+    void getPlayer() {
+        final PlayerProfile player = db.getPlayer(steamId(1234));
+        assertEquals(disId(1234), player.dsId);
+        assertEquals("player-1234", player.name);
+        assertEquals(new RoleSet(4), player.roles);
+        assertSame(player, db.getPlayer(steamId(1234)));
+
+        assertThrows(DescribedException.class, () -> db.getPlayer("76561190000000000"));
+    }
+
+    @Test
+    void getPlayerByDisId() {
+        final PlayerProfile player = db.getPlayerByDisId(disId(1300));
+        assertEquals(steamId(1300), player.steamId);
+        assertEquals(new RoleSet(0, 100), player.roles);
+
+        assertThrows(PlayersDB.PlayerNotBoundException.class, () -> db.getPlayerByDisId("1"));
+    }
+
+    @Test
+    void bindPlayer() {
+        final int i = newPlayer(), rebound = newPlayer();
+        db.bindPlayer(steamId(i), disId(i));
+        assertEquals(steamId(i), db.getPlayerByDisId(disId(i)).steamId);
+        assertTrue(db.getPlayer(steamId(i)).roles.isEmpty());
+
+        db.bindPlayer(steamId(i), disId(rebound));
+        assertEquals(disId(rebound), db.getPlayer(steamId(i)).dsId);
+        assertEquals(steamId(i), db.getPlayerByDisId(disId(rebound)).steamId);
+    }
+
+    @Test
+    void getBoundProfiles() {
+        final HashMap<String, PlayerProfile> profiles = db.getBoundProfiles();
+        assertTrue(profiles.size() >= PLAYERS);
+        assertEquals(steamId(4321), profiles.get(disId(4321)).steamId);
+    }
+
+    @Test
+    void getPlayersWithRole() throws SQLException {
+        for (int role : new int[]{3, 100, 999}) {
+            final Set<String> expected = steamIdsWithRole(role);
+            final HashSet<String> actual = new HashSet<>();
+            for (PlayerProfile p : db.getPlayersWithRole(role))
+                actual.add(p.steamId);
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    void getPlayersWithRoleAndCharacters() throws SQLException {
+        final LinkedList<PlayerInfo> infos = db.getPlayersWithRoleAndCharacters(7);
+        assertEquals(steamIdsWithRole(7).size(), infos.size());
+
+        for (PlayerInfo info : infos) {
+            final int i = (int) (Long.parseLong(info.profile.steamId) - STEAM_BASE);
+            assertEquals(disId(i), info.profile.dsId);
+            assertEquals(i % 4, info.characters.size());
+            for (int k = 1; k < info.characters.size(); k++)
+                assertTrue(info.characters.get(k - 1).lastupd.after(info.characters.get(k).lastupd));
+        }
+        assertTrue(db.getPlayersWithRoleAndCharacters(999).isEmpty());
+    }
+
+    @Test
+    void getPlayersWithRoleAndCharactersQueries() throws SQLException {
+        final int role = 3;
+        db.getPlayersWithRole(role); // loads the role index
+        db.getCache().clear();
+
+        // N+1: the profiles, then the characters of every player
+        long start = selects();
+        final LinkedList<PlayerProfile> players = db.getPlayersWithRole(role);
+        final HashMap<String, Integer> expected = new HashMap<>();
+        for (PlayerProfile p : players)
+            expected.put(p.steamId, db.getPlayerCharacters(p.steamId).size());
+        final long nPlusOne = selects() - start;
+
+        db.getCache().clear();
+        start = selects();
+        final LinkedList<PlayerInfo> infos = db.getPlayersWithRoleAndCharacters(role);
+        final long joined = selects() - start;
+
+        assertEquals(expected.size(), infos.size());
+        for (PlayerInfo info : infos)
+            assertEquals(expected.get(info.profile.steamId), info.characters.size());
+        // The role lists are read in chunks of MAX_IN_PARAMS players
+        final int chunks = (players.size() + PlayersDB.MAX_IN_PARAMS - 1) / PlayersDB.MAX_IN_PARAMS;
+        assertTrue(chunks > 1);
+        assertEquals(players.size() + chunks, nPlusOne);
+        assertEquals(chunks, joined);
+        log.info("Role {}: {} players; N+1: {} queries; JOIN: {} queries", role, players.size(), nPlusOne, joined);
+    }
+
+    @Test
+    void getPlayerWithCharactersByDisId() {
+        final PlayerInfo info = db.getPlayerWithCharactersByDisId(disId(4003));
+        assertEquals(steamId(4003), info.profile.steamId);
+        assertEquals(List.of("char-4003-2", "char-4003-1", "char-4003-0"),
+                info.characters.stream().map(c -> c.name).toList());
+        assertEquals(new RoleSet(3), info.characters.get(2).roles);
+        assertEquals("WEST", info.characters.get(0).side);
+
+        assertTrue(db.getPlayerWithCharactersByDisId(disId(4000)).characters.isEmpty());
+        assertThrows(PlayersDB.PlayerNotBoundException.class, () -> db.getPlayerWithCharactersByDisId("3"));
+    }
+
+    @Test
+    void getPlayerCharacters() {
+        final LinkedList<PlayerCharacter> chars = db.getPlayerCharacters(steamId(5002));
+        assertEquals(List.of("char-5002-1", "char-5002-0"), chars.stream().map(c -> c.name).toList());
+        assertTrue(db.getPlayerCharacters("76561190000000000").isEmpty());
+
+        // Callers get their own copy of the cached list
+        chars.clear();
+        db.getPlayerCharacters(steamId(5002)).removeFirst();
+        assertEquals(2, db.getPlayerCharacters(steamId(5002)).size());
+
+        db.getCache().clear();
+        assertEquals(2, db.getPlayerCharactersByDisId(disId(5002)).size());
+        db.getPlayerByDisId(disId(5002));
+        assertEquals(2, db.getPlayerCharactersByDisId(disId(5002)).size());
+        assertTrue(db.getPlayerCharactersByDisId("4").isEmpty());
+    }
+
+    @Test
+    void queryPlans() throws SQLException {
+        final Timestamp feedFrom = new Timestamp(TIME_BASE + (PLAYERS - 10) * 1000L);
+        final LocalDate today = new Timestamp(TIME_BASE).toLocalDateTime().toLocalDate();
+        try (Connection conn = DriverManager.getConnection(url)) {
+            assertIndexed(conn, PlayersDB.SELECT_PROFILE_BY_STEAM_ID, steamId(1));
+            assertIndexed(conn, PlayersDB.SELECT_PROFILE_BY_DIS_ID, disId(1));
+            assertIndexed(conn, PlayersDB.SELECT_PROFILES_BY_STEAM_IDS.formatted(PlayersDB.placeholders(3)),
+                    steamId(1), steamId(2), steamId(3));
+            assertIndexed(conn, PlayersDB.SELECT_INFOS_BY_STEAM_IDS.formatted(PlayersDB.placeholders(3)),
+                    steamId(1), steamId(2), steamId(3));
+            assertIndexed(conn, PlayersDB.SELECT_INFO_BY_DIS_ID, disId(1));
+            assertIndexed(conn, PlayersDB.SELECT_CHARACTERS_BY_STEAM_ID, steamId(1));
+            assertIndexed(conn, PlayersDB.SELECT_CHARACTERS_BY_DIS_ID, disId(1));
+            assertIndexed(conn, PlayersDB.LOCK_PLAYERS.formatted(PlayersDB.placeholders(2), PlayersDB.placeholders(2)),
+                    steamId(1), steamId(2), disId(3), disId(4));
+            assertIndexed(conn, CharacterFeed.SELECT_PAGE, feedFrom, feedFrom, 0, CharacterFeed.PAGE_SIZE);
+            assertIndexed(conn, CharacterFeed.SELECT_UNDATED, 0, CharacterFeed.PAGE_SIZE);
+            assertIndexed(conn, CharacterFeed.SELECT_BY_IDS.formatted(PlayersDB.placeholders(2)), 1, 2);
+            assertIndexed(conn, CharacterFeed.SELECT_RANGE, 0, CharacterFeed.RECONCILE_RANGE);
+            assertIndexed(conn, ActivityStats.SELECT_PAGE, feedFrom, feedFrom, 0, ActivityStats.PAGE_SIZE);
+            assertIndexed(conn, ActivityStats.SELECT_STATS, "D",
+                    java.sql.Date.valueOf(today.minusDays(14)), java.sql.Date.valueOf(today));
+            // An export reads every profile anyway, only the join has to use the index
+            assertIndexed(conn, Set.of("profiles"), RosterExport.SELECT_ROSTER.formatted(""));
+            assertIndexed(conn, RosterExport.SELECT_ROSTER.formatted(
+                    RosterExport.ROLE_FILTER.formatted(PlayersDB.placeholders(2))), steamId(1), steamId(2));
+        }
+    }
+
+    private static void assertIndexed(Connection conn, String sql, Object... params) throws SQLException {
+        assertIndexed(conn, Collections.emptySet(), sql, params);
+    }
+
+    /**
+     * @param scanned tables that are allowed to be read in full
+     */
+    private static void assertIndexed(Connection conn, Set<String> scanned, String sql, Object... params)
+            throws SQLException {
+        try (PreparedStatement st = conn.prepareStatement("EXPLAIN " + sql)) {
+            for (int i = 0; i < params.length; i++)
+                st.setObject(i + 1, params[i]);
+            final ResultSet r = st.executeQuery();
+            while (r.next())
+                if (!scanned.contains(r.getString("table")))
+                    assertNotEquals("ALL", r.getString("type"),
+                            "Full scan of %s in:%n%s".formatted(r.getString("table"), sql));
+        }
+    }
+}
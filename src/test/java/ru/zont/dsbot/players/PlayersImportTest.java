@@ -0,0 +1,92 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlayersImportTest extends EmbeddedDBTest {
+    private static final Logger log = LoggerFactory.getLogger(PlayersImportTest.class);
+    /**
+     * Seeded players that only this test changes: the import updates 1000 of them
+     */
+    private static final int UPDATED = 14_000;
+
+    @Test
+    void bulkImport() throws IOException, SQLException {
+        final RgRoles.Snapshot known = new RgRoles.Snapshot(1, List.of(Map.entry(1070, "Import role")));
+        final PlayersImport importer = new PlayersImport(db, known);
+
+        // 10k rows: 1k update existing players, the rest are new, plus broken rows
+        final int created = newPlayers(9000);
+        final StringBuilder csv = new StringBuilder("steamid;discord;roles\n");
+        for (int i = 0; i < 10_000; i++) {
+            final int ply = i < 1000 ? UPDATED + i : created + i - 1000;
+            csv.append(steamId(ply)).append(';').append(disId(ply)).append(';').append("1071|Import role\n");
+        }
+        csv.append("123;456;1\n");
+        csv.append(steamId(created + 1)).append(";;Unknown\n");
+
+        final ArrayList<Integer> progress = new ArrayList<>();
+        final ArrayList<PlayerProfile> notified = new ArrayList<>();
+        final PlayersDB.ProfileListener listener = notified::add;
+        db.addProfileListener(listener);
+        final long selectsBefore = selects();
+        final PlayersImport.Report report;
+        try {
+            report = importer.run(new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.UTF_8)),
+                    PlayersImport.Format.CSV, progress::add);
+        } finally {
+            db.removeProfileListener(listener);
+        }
+        final long importSelects = selects() - selectsBefore;
+        log.info("bulkImport: {}, {} SELECTs", report, importSelects);
+
+        // Row locks and ids of the new profiles, one query each per chunk; listeners do not read profiles back
+        final int chunks = (10_002 + PlayersImport.CHUNK_SIZE - 1) / PlayersImport.CHUNK_SIZE;
+        assertTrue(importSelects <= 2L * chunks, "%d SELECTs".formatted(importSelects));
+        assertEquals(10_000, notified.size());
+        assertTrue(notified.stream().allMatch(p -> p.id != 0 && p.roles.contains(1071)));
+
+        assertEquals(10_002, report.getRows());
+        assertEquals(10_000, report.getImported());
+        assertEquals(2, report.getErrors());
+        assertTrue(report.getErrorReport().startsWith("10002: "));
+        assertEquals(PlayersImport.CHUNK_SIZE, (int) progress.get(0));
+        assertTrue(report.getMillis() < 30_000);
+
+        final PlayerProfile updated = db.getPlayer(steamId(UPDATED + 2));
+        assertEquals(new RoleSet(2, 1070, 1071), updated.roles);
+        assertNotNull(updated.name);
+        final PlayerProfile imported = db.getPlayerByDisId(disId(created + 3));
+        assertEquals(new RoleSet(1070, 1071), imported.roles);
+        assertTrue(db.getPlayersWithRole(1071).stream().anyMatch(p -> p.steamId.equals(steamId(created + 3))));
+
+        final String json = """
+                [{"steamid": "%s", "roles": [1072, "import ROLE"]},
+                 {"steamid": "%s", "discord": "12"},
+                 {"steamid": "%s", "roles": [{"id": 1073}, 1074]},
+                 {"steamid": "%s", "roles": "-5"},
+                 42]
+                """.formatted(steamId(UPDATED + 4), steamId(UPDATED + 6), steamId(UPDATED + 8), steamId(UPDATED + 10));
+        final PlayersImport.Report jsonReport = importer.run(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), PlayersImport.Format.JSON, n -> {});
+        assertEquals(5, jsonReport.getRows());
+        assertEquals(1, jsonReport.getImported());
+        assertEquals(4, jsonReport.getErrors());
+        assertTrue(jsonReport.getErrorReport().startsWith("#2: "));
+        assertFalse(db.getPlayer(steamId(UPDATED + 8)).roles.contains(1074));
+        final PlayerProfile kept = db.getPlayer(steamId(UPDATED + 4));
+        assertEquals(disId(UPDATED + 4), kept.dsId);
+        assertEquals(new RoleSet(4, 1070, 1071, 1072), kept.roles);
+    }
+}
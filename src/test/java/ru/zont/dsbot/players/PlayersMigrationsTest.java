@@ -0,0 +1,49 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+import ru.zont.dsbot.util.DBMigrations;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlayersMigrationsTest extends EmbeddedDBTest {
+
+    @Test
+    void existingUniqueIndexIsKept() throws SQLException, IOException {
+        try (Connection conn = DriverManager.getConnection(url)) {
+            conn.createStatement().execute("CREATE DATABASE players_renamed");
+        }
+
+        // The constraint on p_uid was made under another name than the column-level UNIQUE gives
+        try (Connection conn = DriverManager.getConnection(url.replace("players_test", "players_renamed"))) {
+            runScript(conn, "/players_schema.sql");
+            conn.createStatement().execute("""
+                    ALTER TABLE profiles DROP INDEX p_uid, ADD UNIQUE INDEX uq_profiles_uid (p_uid),
+                        ADD UNIQUE INDEX uq_profiles_uid_name (p_uid, p_name)
+                    """);
+            assertEquals(DBMigrations.MIGRATIONS.size(), DBMigrations.migrate(conn));
+
+            final ArrayList<String> unique = new ArrayList<>();
+            final ResultSet r = conn.createStatement().executeQuery("""
+                    SELECT INDEX_NAME FROM information_schema.STATISTICS
+                    WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'profiles'
+                        AND NON_UNIQUE = 0 AND COLUMN_NAME = 'p_uid' AND SEQ_IN_INDEX = 1
+                    ORDER BY INDEX_NAME
+                    """);
+            while (r.next())
+                unique.add(r.getString(1));
+            assertEquals(List.of("uq_profiles_uid", "uq_profiles_uid_name"), unique);
+        } finally {
+            try (Connection conn = DriverManager.getConnection(url)) {
+                conn.createStatement().execute("DROP DATABASE players_renamed");
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RgRolesTest {
+    private final RgRoles.Snapshot snapshot = new RgRoles.Snapshot(1, List.of(
+            Map.entry(10, "Pilot"),
+            Map.entry(2, "pilot instructor"),
+            Map.entry(7, "Medic"),
+            Map.entry(3, "PILOT"),
+            Map.entry(15, "Mechanic")
+    ));
+
+    @Test
+    void byId() {
+        assertEquals(5, snapshot.size());
+        assertArrayEquals(new int[]{2, 3, 7, 10, 15},
+                new int[]{snapshot.getId(0), snapshot.getId(1), snapshot.getId(2), snapshot.getId(3), snapshot.getId(4)});
+        assertEquals("Medic", snapshot.getNameById(7));
+        assertNull(snapshot.getNameById(8));
+    }
+
+    @Test
+    void findId() {
+        assertEquals(3, snapshot.findId("pilot"));
+        assertEquals(7, snapshot.findId("MEDIC"));
+        assertEquals(2, snapshot.findId("Pilot Instructor"));
+        assertEquals(RgRoles.Snapshot.NOT_FOUND, snapshot.findId("Pil"));
+        assertEquals(RgRoles.Snapshot.NOT_FOUND, snapshot.findId("Zulu"));
+    }
+
+    @Test
+    void prefix() {
+        final ArrayList<Integer> ids = new ArrayList<>();
+        snapshot.forEachWithPrefix("pi", 10, (name, id) -> ids.add(id));
+        assertEquals(List.of(3, 10, 2), ids);
+
+        ids.clear();
+        snapshot.forEachWithPrefix("ME", 1, (name, id) -> ids.add(id));
+        assertEquals(List.of(15), ids);
+
+        ids.clear();
+        snapshot.forEachWithPrefix("x", 10, (name, id) -> ids.add(id));
+        assertTrue(ids.isEmpty());
+
+        ids.clear();
+        snapshot.forEachWithPrefix("", 10, (name, id) -> ids.add(id));
+        assertEquals(5, ids.size());
+    }
+}
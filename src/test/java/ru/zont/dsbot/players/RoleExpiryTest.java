@@ -0,0 +1,78 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoleExpiryTest extends EmbeddedDBTest {
+
+    @Test
+    void roleExpiry() throws InterruptedException {
+        final int a = freshPlayer(), b = freshPlayer(), c = freshPlayer();
+        final long now = System.currentTimeMillis();
+        final RoleExpiry expiry = new RoleExpiry(db, 50);
+        // Expired while the bot was down
+        db.addRoles(steamId(a), disId(a), List.of(1090), PlayersDB.Characters.ALL,
+                expiry.grant(List.of(1090), now - 1000));
+        db.addRoles(steamId(b), disId(b), List.of(1090), PlayersDB.Characters.NONE);
+        // Held permanently by the profile and the last active character, granted to the others
+        db.addRoles(steamId(c), disId(c), List.of(1092), PlayersDB.Characters.LAST_ACTIVE);
+
+        final RoleExpiry restarted = new RoleExpiry(db, 50);
+        restarted.start();
+        try {
+            db.addRoles(steamId(a), disId(a), List.of(1091), PlayersDB.Characters.ALL,
+                    restarted.grant(List.of(1091), now + 400));
+            db.addRoles(steamId(b), disId(b), List.of(1090), PlayersDB.Characters.NONE,
+                    restarted.grant(List.of(1090), now + 400));
+            db.addRoles(steamId(b), disId(b), List.of(1090), PlayersDB.Characters.NONE,
+                    restarted.grant(List.of(1090), now + 60_000)); // extended
+            db.addRoles(steamId(c), disId(c), List.of(1092), PlayersDB.Characters.ALL,
+                    restarted.grant(List.of(1092), now + 400));
+            assertTrue(restarted.getPending() >= 4);
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (restarted.getPending() > 1 && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+        } finally {
+            restarted.shutdown();
+        }
+
+        final PlayerProfile pa = db.getPlayer(steamId(a));
+        assertFalse(pa.roles.contains(1090));
+        assertFalse(pa.roles.contains(1091));
+        for (PlayerCharacter ch : db.getPlayerCharacters(steamId(a)))
+            assertFalse(ch.roles.contains(1091));
+        assertTrue(restarted.getGrants(steamId(a)).isEmpty());
+
+        // Only what the grant has added is removed
+        assertTrue(db.getPlayer(steamId(c)).roles.contains(1092));
+        final List<PlayerCharacter> cChars = db.getPlayerCharacters(steamId(c));
+        assertTrue(cChars.get(0).roles.contains(1092));
+        assertFalse(cChars.get(1).roles.contains(1092));
+        assertFalse(cChars.get(2).roles.contains(1092));
+        assertTrue(restarted.getGrants(steamId(c)).isEmpty());
+
+        assertTrue(db.getPlayer(steamId(b)).roles.contains(1090));
+        assertEquals(1, restarted.getGrants(steamId(b)).size());
+        db.addRoles(steamId(b), disId(b), List.of(1090), PlayersDB.Characters.NONE, restarted.cancel(List.of(1090)));
+        assertTrue(restarted.getGrants(steamId(b)).isEmpty());
+
+        // A failed grant rolls the role change back
+        assertThrows(RuntimeException.class, () -> db.addRoles(steamId(b), disId(b), List.of(1093),
+                PlayersDB.Characters.NONE, (conn, before, after) -> {
+                    throw new SQLException("Grant failed");
+                }));
+        assertFalse(db.getPlayer(steamId(b)).roles.contains(1093));
+    }
+
+    @Test
+    void parseDuration() {
+        assertThrows(IllegalArgumentException.class, () -> RoleExpiry.parseDuration("7x"));
+        assertThrows(IllegalArgumentException.class, () -> RoleExpiry.parseDuration("99999999999999w"));
+        assertEquals(36 * 3600_000L, RoleExpiry.parseDuration("1d 12h"));
+    }
+}
@@ -0,0 +1,36 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoleIndexTest {
+
+    @Test
+    void updatesDuringReloadSurvive() {
+        final RoleIndex index = new RoleIndex();
+        index.load(Map.of("a", new RoleSet(1), "b", new RoleSet(1, 2)));
+        assertEquals(List.of("b"), index.getSteamIds(2));
+
+        index.beginReload();
+        index.update("a", new RoleSet(2));
+        index.update("c", new RoleSet(1));
+        // Rows read before the updates
+        index.load(Map.of("a", new RoleSet(1), "b", new RoleSet(1, 2)));
+
+        assertEquals(Set.of("b", "c"), new HashSet<>(index.getSteamIds(1)));
+        assertEquals(Set.of("a", "b"), new HashSet<>(index.getSteamIds(2)));
+        assertFalse(index.isExpired());
+
+        // Updates after the reload are not replayed by the next one
+        index.update("a", new RoleSet(3));
+        index.load(Map.of("a", new RoleSet(4)));
+        assertEquals(List.of("a"), index.getSteamIds(4));
+        assertTrue(index.getSteamIds(3).isEmpty());
+    }
+}
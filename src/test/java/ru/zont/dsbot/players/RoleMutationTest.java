@@ -0,0 +1,113 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoleMutationTest extends EmbeddedDBTest {
+
+    @Test
+    void updateRoles() {
+        final int i = freshPlayer();
+        db.updateRoles(steamId(i), disId(i), new RoleSet(i % 10, 1001));
+        assertEquals(new RoleSet(i % 10, 1001), db.getPlayer(steamId(i)).roles);
+        assertTrue(db.getPlayersWithRole(1001).stream().anyMatch(p -> p.steamId.equals(steamId(i))));
+
+        final int created = newPlayer();
+        db.updateRoles(steamId(created), disId(created), new RoleSet(1002));
+        assertEquals(new RoleSet(1002), db.getPlayerByDisId(disId(created)).roles);
+    }
+
+    @Test
+    void addRoles() throws SQLException {
+        final int none = freshPlayer(), last = freshPlayer(), all = freshPlayer();
+
+        PlayerInfo info = db.addRoles(null, disId(none), List.of(1010), PlayersDB.Characters.NONE);
+        assertTrue(info.profile.roles.contains(1010));
+        assertTrue(db.getPlayerCharacters(steamId(none)).stream().noneMatch(c -> c.roles.contains(1010)));
+
+        info = db.addRoles(steamId(last), disId(last), List.of(1010, 1011), PlayersDB.Characters.LAST_ACTIVE);
+        assertEquals(new RoleSet(last % 10, 1010, 1011), db.getPlayer(steamId(last)).roles);
+        final List<PlayerCharacter> lastChars = db.getPlayerCharacters(steamId(last));
+        assertEquals(3, lastChars.size());
+        assertEquals("char-%d-2".formatted(last), lastChars.get(0).name);
+        assertEquals(new RoleSet(1010, 1011), lastChars.get(0).roles);
+        assertFalse(lastChars.get(1).roles.contains(1010));
+        assertEquals(info.characters.get(0).roles, lastChars.get(0).roles);
+
+        // The profile and its characters are locked by one read
+        final long selects = selects();
+        db.addRoles(null, disId(all), List.of(1012), PlayersDB.Characters.ALL);
+        assertEquals(1, selects() - selects);
+        assertTrue(db.getPlayerCharacters(steamId(all)).stream().allMatch(c -> c.roles.contains(1012)));
+        assertTrue(db.getPlayersWithRole(1012).stream().anyMatch(p -> p.steamId.equals(steamId(all))));
+
+        assertThrows(PlayersDB.PlayerNotBoundException.class,
+                () -> db.addRoles(null, "2", List.of(1), PlayersDB.Characters.NONE));
+    }
+
+    @Test
+    void addRolesConcurrentUpdate() throws SQLException {
+        final int i = freshPlayer();
+        final PlayerProfile stale = db.getPlayer(steamId(i));
+        final List<PlayerCharacter> staleChars = db.getPlayerCharacters(steamId(i));
+
+        // Someone else changes the roles behind the cache
+        sql("UPDATE profiles SET p_roles = ? WHERE p_uid = ?",
+                new RoleSet(i % 10, 1020).toString(), steamId(i));
+        sql("UPDATE characters SET c_roles = '[ 1020 ]' WHERE c_id = ?", staleChars.get(1).id);
+
+        final PlayerInfo info = db.addRoles(stale.steamId, stale.dsId, List.of(1021), PlayersDB.Characters.ALL);
+        assertEquals(new RoleSet(i % 10, 1020, 1021), info.profile.roles);
+        assertEquals(new RoleSet(i % 10, 1020, 1021), db.getPlayer(steamId(i)).roles);
+
+        final List<PlayerCharacter> chars = db.getPlayerCharacters(steamId(i));
+        assertEquals(new RoleSet(1020, 1021), chars.get(1).roles);
+        assertTrue(chars.stream().allMatch(c -> c.roles.contains(1021)));
+    }
+
+    @Test
+    void rmRoles() {
+        final int i = freshPlayer();
+        db.addRoles(null, disId(i), List.of(1030, 1031), PlayersDB.Characters.ALL);
+
+        final PlayerInfo info = db.rmRoles(disId(i), List.of(1030, i % 10));
+        assertEquals(new RoleSet(1031), info.profile.roles);
+        assertEquals(new RoleSet(1031), db.getPlayer(steamId(i)).roles);
+        assertTrue(db.getPlayerCharacters(steamId(i)).stream()
+                .allMatch(c -> c.roles.equals(new RoleSet(1031))));
+        assertTrue(db.getPlayersWithRole(1030).stream().noneMatch(p -> p.steamId.equals(steamId(i))));
+    }
+
+    @Test
+    void rmRolesProfileOnly() {
+        final int i = freshPlayer();
+        db.addRoles(null, disId(i), List.of(1040), PlayersDB.Characters.ALL);
+
+        final PlayerInfo info = db.rmRoles(disId(i), List.of(1040), PlayersDB.Characters.NONE);
+        assertFalse(info.profile.roles.contains(1040));
+        assertTrue(db.getPlayerCharacters(steamId(i)).get(0).roles.contains(1040));
+    }
+
+    @Test
+    void updateRolesForCharacter() {
+        final int i = freshPlayer();
+        final PlayerCharacter c = db.getPlayerCharacters(steamId(i)).get(1);
+        db.updateRolesForCharacter(c, new RoleSet(1041));
+        final PlayerCharacter updated = db.getPlayerCharacters(steamId(i)).get(1);
+        assertEquals(c.id, updated.id);
+        assertEquals(new RoleSet(1041), updated.roles);
+    }
+
+    @Test
+    void transactionsRequirePool() {
+        // The bot's shared connection is never used for transactions, nor is it touched to find that out
+        final PlayersDB shared = new PlayersDB(null);
+        assertThrows(PlayersDB.PoolRequiredException.class, () -> shared.withTransaction(conn -> null));
+        assertThrows(PlayersDB.PoolRequiredException.class, () -> shared.addRoles(steamId(1), disId(1), List.of(1),
+                PlayersDB.Characters.ALL, (conn, before, after) -> { }));
+    }
+}
@@ -0,0 +1,53 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoleSetTest {
+
+    @Test
+    void parse() {
+        assertArrayEquals(new int[]{1, 2, 10}, RoleSet.parse("[ 10, 2, 1 ]").toArray());
+        assertArrayEquals(new int[]{1, 2}, RoleSet.parse("[1,2,2]").toArray());
+        assertArrayEquals(new int[0], RoleSet.parse("[ ]").toArray());
+        assertArrayEquals(new int[0], RoleSet.parse("").toArray());
+        assertArrayEquals(new int[]{3}, RoleSet.parse("[ -1, a2, 3 ]").toArray());
+        assertArrayEquals(new int[]{12}, RoleSet.parse("[ 1 2 ]").toArray());
+        assertThrows(NumberFormatException.class, () -> RoleSet.parse("[ 99999999999 ]"));
+    }
+
+    @Test
+    void roundTrip() {
+        RoleSet set = new RoleSet(22, -1, 102, 1, 10);
+        assertEquals("[ -1, 1, 10, 22, 102 ]", set.toString());
+        assertEquals("[  ]", new RoleSet().toString());
+        assertEquals(new RoleSet(1, 10, 22, 102), RoleSet.parse(set.toString()));
+    }
+
+    @Test
+    void mutations() {
+        RoleSet set = RoleSet.of(List.of(5, 3, 5));
+        assertEquals(2, set.size());
+        assertTrue(set.add(4));
+        assertFalse(set.add(4));
+        assertTrue(set.contains(3));
+        assertTrue(set.removeAll(List.of(3, 100)));
+        assertFalse(set.contains(3));
+        assertArrayEquals(new int[]{4, 5}, set.toArray());
+    }
+
+    @Test
+    void frozen() {
+        final RoleSet set = new RoleSet(1, 2);
+        final PlayerProfile profile = new PlayerProfile(1, "name", null, "76561190000000001", set);
+        set.add(3);
+        assertEquals(new RoleSet(1, 2), profile.getRoles());
+        assertThrows(UnsupportedOperationException.class, () -> profile.getRoles().add(4));
+        assertThrows(UnsupportedOperationException.class, () -> profile.getRoles().removeAll(List.of(1)));
+        assertSame(profile.getRoles(), RoleSet.unmodifiable(profile.getRoles()));
+        assertFalse(new RoleSet(profile.getRoles()).isFrozen());
+    }
+}
@@ -0,0 +1,97 @@
+package ru.zont.dsbot.players;
+
+import org.junit.jupiter.api.Test;
+import ru.zont.dsbot.core.util.DescribedException;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoleWriteQueueTest extends EmbeddedDBTest {
+
+    @Test
+    void writeBehind() {
+        final RoleWriteQueue queue = new RoleWriteQueue(db, 200);
+        final int a = freshPlayer(), b = freshPlayer();
+        final ArrayList<CompletableFuture<PlayerInfo>> futures = new ArrayList<>();
+        for (int role = 1050; role < 1060; role++) {
+            futures.add(queue.addRoles(steamId(a), disId(a), List.of(role), PlayersDB.Characters.LAST_ACTIVE));
+            futures.add(queue.addRoles(null, disId(b), List.of(role), PlayersDB.Characters.NONE));
+        }
+        futures.add(queue.rmRoles(disId(a), List.of(1050, 1051)));
+        final CompletableFuture<PlayerInfo> unbound = queue.rmRoles("1", List.of(1050));
+        assertEquals(22, queue.getQueueDepth());
+
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        assertThrows(CompletionException.class, unbound::join);
+        assertEquals(1, queue.getFlushes());
+        assertEquals(0, queue.getQueueDepth());
+        // The first operation waits for the whole window, later ones for what is left of it
+        assertTrue(queue.getMaxLatencyMillis() >= 200);
+
+        final PlayerProfile pa = db.getPlayer(steamId(a));
+        assertTrue(pa.roles.contains(1059));
+        assertFalse(pa.roles.contains(1050));
+        final List<PlayerCharacter> chars = db.getPlayerCharacters(steamId(a));
+        assertTrue(chars.get(0).roles.contains(1055));
+        assertFalse(chars.get(0).roles.contains(1051));
+        assertFalse(chars.get(1).roles.contains(1055));
+        assertEquals(futures.get(0).join().profile.roles, pa.roles);
+
+        final PlayerProfile pb = db.getPlayerByDisId(disId(b));
+        for (int role = 1050; role < 1060; role++)
+            assertTrue(pb.roles.contains(role));
+        assertFalse(db.getPlayerCharacters(steamId(b)).get(0).roles.contains(1050));
+        assertTrue(db.getPlayersWithRole(1059).stream().anyMatch(p -> p.steamId.equals(steamId(b))));
+        queue.shutdown();
+    }
+
+    @Test
+    void writeBehindFailsOnlyFailingOps() {
+        final RoleWriteQueue queue = new RoleWriteQueue(db, 100);
+        final int a = freshPlayer(), b = freshPlayer(), c = freshPlayer();
+        final CompletableFuture<PlayerInfo> fa = queue.addRoles(steamId(a), disId(a), List.of(1070),
+                PlayersDB.Characters.NONE);
+        final CompletableFuture<PlayerInfo> fb = queue.addRoles(steamId(b), disId(b), List.of(1070),
+                PlayersDB.Characters.NONE, (conn, before, after) -> {
+                    throw new SQLException("hook failed");
+                });
+        final CompletableFuture<PlayerInfo> fc = queue.addRoles(steamId(c), disId(c), List.of(1070),
+                PlayersDB.Characters.NONE);
+
+        assertTrue(fa.join().profile.roles.contains(1070));
+        assertTrue(fc.join().profile.roles.contains(1070));
+        assertThrows(CompletionException.class, fb::join);
+        assertFalse(db.getPlayer(steamId(b)).roles.contains(1070));
+        assertEquals(1, queue.getFlushes());
+        queue.shutdown();
+    }
+
+    @Test
+    void writeBehindDatabaseDown() {
+        // Nothing listens there, every connection times out in the pool
+        try (PlayersDataSource down = new PlayersDataSource("jdbc:mariadb://localhost:1/players_test", 1, 500)) {
+            final RoleWriteQueue queue = new RoleWriteQueue(new PlayersDB(null, down), 60_000);
+            final ArrayList<CompletableFuture<PlayerInfo>> futures = new ArrayList<>();
+            for (int i = 0; i < RoleWriteQueue.MAX_QUEUE; i++)
+                futures.add(queue.addRoles(steamId(i), disId(i), List.of(1075), PlayersDB.Characters.NONE));
+            final CompletableFuture<PlayerInfo> rejected = queue.addRoles(steamId(0), disId(0), List.of(1076),
+                    PlayersDB.Characters.NONE);
+            assertTrue(rejected.isCompletedExceptionally());
+            assertInstanceOf(DescribedException.class,
+                    assertThrows(CompletionException.class, rejected::join).getCause());
+
+            final long start = System.currentTimeMillis();
+            queue.shutdown();
+            for (CompletableFuture<PlayerInfo> f : futures)
+                assertInstanceOf(DescribedException.class, assertThrows(CompletionException.class, f::join).getCause());
+            // One attempt for the whole queue, not one for every half of every batch
+            assertEquals(1, down.getTimeouts());
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ru.zont.dsbot.players;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.junit.jupiter.api.Test;
+import ru.zont.dsbot.core.util.DescribedException;
+
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RosterExportTest extends EmbeddedDBTest {
+
+    @Test
+    void rosterExport() throws SQLException {
+        final RosterExport export = new RosterExport(db);
+        final Set<String> expected = steamIdsWithRole(7);
+
+        final StringWriter csv = new StringWriter();
+        assertEquals(expected.size(), export.write(7, RosterExport.Format.CSV, csv));
+        final String[] lines = csv.toString().split("\n");
+        final HashSet<String> csvIds = new HashSet<>();
+        for (int i = 1; i < lines.length; i++)
+            csvIds.add(lines[i].substring(0, lines[i].indexOf(',')));
+        assertEquals(expected, csvIds);
+        assertTrue(lines[0].startsWith("steamid,"));
+
+        final StringWriter ndjson = new StringWriter();
+        assertEquals(expected.size(), export.write(7, RosterExport.Format.NDJSON, ndjson));
+        final String[] objects = ndjson.toString().split("\n");
+        assertEquals(expected.size(), objects.length);
+        final JsonObject first = JsonParser.parseString(objects[0]).getAsJsonObject();
+        final long ply = Long.parseLong(first.get("steamid").getAsString()) - STEAM_BASE;
+        assertEquals(ply % 4, first.getAsJsonArray("characters").size());
+        assertTrue(first.getAsJsonArray("roles").contains(new JsonPrimitive(7)));
+
+        final StringWriter all = new StringWriter();
+        assertTrue(export.write(null, RosterExport.Format.NDJSON, all) >= PLAYERS);
+
+        final StringWriter none = new StringWriter();
+        assertEquals(0, export.write(99_999, RosterExport.Format.CSV, none));
+        assertTrue(none.toString().startsWith("steamid,"));
+    }
+
+    @Test
+    void rosterExportEscapesFormulas() throws SQLException {
+        // Player names are not trusted by spreadsheets
+        final int named = freshPlayer();
+        sql("UPDATE profiles SET p_name = ? WHERE p_uid = ?", "=HYPERLINK(\"x\")\r", steamId(named));
+        db.updateRoles(steamId(named), disId(named), new RoleSet(named % 10, 1097));
+        final StringWriter formula = new StringWriter();
+        assertEquals(1, new RosterExport(db).write(1097, RosterExport.Format.CSV, formula));
+        assertTrue(formula.toString().contains(",\"'=HYPERLINK(\"\"x\"\")\r\","), formula.toString());
+    }
+
+    @Test
+    void rosterExportRequiresPool() {
+        // The streaming cursor would hold the shared connection for the whole export
+        assertThrows(DescribedException.class, () ->
+                new RosterExport(new PlayersDB(null)).write(7, RosterExport.Format.CSV, new StringWriter()));
+    }
+}
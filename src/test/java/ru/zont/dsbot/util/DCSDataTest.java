@@ -0,0 +1,48 @@
+package ru.zont.dsbot.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DCSDataTest {
+
+    @Test
+    void parseServers() throws IOException {
+        final String json = """
+                {"SERVERS_MAX_COUNT": 3, "SERVERS": [
+                  {"ID": 1, "NAME": "Alpha", "IP_ADDRESS": "10.0.0.01", "PORT": "10309", "MISSION_NAME": "Caucasus PvP",
+                   "PLAYERS": "12", "PLAYERS_MAX": 64, "DESCRIPTION": "Public", "MISSION_TIME_FORMATTED": "1:02:03",
+                   "EXTRA": {"a": [1, 2]}},
+                  {"NAME": "Bravo", "IP_ADDRESS": "10.0.0.2", "MISSION_NAME": "Caucasus PvP",
+                   "PLAYERS": 1, "PLAYERS_MAX": 16, "DESCRIPTION": "Public", "MISSION_TIME_FORMATTED": "00:10"},
+                  {"NAME": "No players", "IP_ADDRESS": "10.0.0.3", "MISSION_NAME": "x",
+                   "PLAYERS": null, "PLAYERS_MAX": 16, "DESCRIPTION": "", "MISSION_TIME_FORMATTED": "00:10"},
+                  {"NAME": "Bad ip", "IP_ADDRESS": "localhost", "MISSION_NAME": "x",
+                   "PLAYERS": 1, "PLAYERS_MAX": 16, "DESCRIPTION": "", "MISSION_TIME_FORMATTED": "00:10"}
+                ], "TAIL": true}
+                """;
+        final List<DCSData.ServerData> servers = DCSData.parseServers(new StringReader(json), 0);
+
+        assertEquals(2, servers.size());
+        final DCSData.ServerData alpha = servers.get(0);
+        assertEquals("Alpha", alpha.name);
+        assertEquals("10.0.0.1:10309", alpha.ip);
+        assertEquals(12, alpha.players);
+        assertEquals(64, alpha.playersMax);
+        assertEquals("1:02:03", alpha.missionTime);
+
+        final DCSData.ServerData bravo = servers.get(1);
+        assertEquals("10.0.0.2:" + DCSData.DEFAULT_PORT, bravo.ip);
+        assertSame(alpha.mission, bravo.mission);
+        assertSame(alpha.description, bravo.description);
+    }
+
+    @Test
+    void noServerList() {
+        assertThrows(IOException.class, () -> DCSData.parseServers(new StringReader("{\"error\": \"auth\"}"), 0));
+    }
+}
@@ -0,0 +1,65 @@
+package ru.zont.dsbot.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+
+    @Test
+    void firesOnTime() {
+        final long tick = 1000, start = 1_600_000_123_456L;
+        final TimingWheel<Long> wheel = new TimingWheel<>(tick, start);
+        final Random random = new Random(7);
+        for (int i = 0; i < 10_000; i++) {
+            // Up to a year: covers every level and the overflow
+            final long deadline = start + (long) (random.nextDouble() * 365L * 24 * 3600 * 1000);
+            wheel.add(deadline, deadline);
+        }
+        wheel.add(start - 5000, start - 5000);
+        assertEquals(10_001, wheel.size());
+
+        final ArrayList<Long> fired = new ArrayList<>();
+        long now = start;
+        int steps = 0;
+        while (wheel.size() > 0) {
+            now = Math.max(now, wheel.nextEventTime());
+            final long time = now;
+            wheel.advance(time, d -> {
+                assertTrue(d <= time, "fired early");
+                assertTrue(d < start || time - d < tick, "fired late");
+                fired.add(d);
+            });
+            steps++;
+        }
+        assertEquals(10_001, fired.size());
+        // A year has 31.5M ticks; only slots holding entries are visited, at most once per level
+        assertTrue(steps <= 10_001 * TimingWheel.LEVELS, "visited empty slots: " + steps);
+        assertEquals(Long.MAX_VALUE, wheel.nextEventTime());
+    }
+
+    @Test
+    void advanceByLargeStep() {
+        final TimingWheel<String> wheel = new TimingWheel<>(10, 0);
+        wheel.add(25, "a");
+        wheel.add(700_000, "b");
+        wheel.add(5_000_000_000L, "c");
+
+        final ArrayList<String> fired = new ArrayList<>();
+        wheel.advance(20, fired::add);
+        assertTrue(fired.isEmpty());
+        assertEquals(30, wheel.nextEventTime());
+
+        wheel.advance(1_000_000, fired::add);
+        assertEquals(List.of("a", "b"), fired);
+        wheel.add(1_000_001, "d");
+        wheel.add(999_000, "e");
+        wheel.advance(6_000_000_000L, fired::add);
+        assertEquals(List.of("a", "b", "e", "d", "c"), fired);
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,46 @@
+package ru.zont.dsbot.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrigramIndexTest {
+
+    @Test
+    void search() {
+        final TrigramIndex<String> index = new TrigramIndex<>();
+        index.put("1", "alpha", "Alpha Squad", "76561198000000001");
+        index.put("2", "bravo", "Bravo", "76561198000000002");
+        index.put("3", "alpine", "Alpine");
+
+        assertEquals(Set.of("alpha", "alpine"), Set.copyOf(index.search("al", 10)));
+        assertEquals(List.of("alpha"), index.search("squad", 10));
+        assertEquals(List.of("alpha"), index.search("alpha sq", 10));
+        assertEquals(List.of("bravo"), index.search("BRAV", 10));
+        assertEquals(List.of("bravo"), index.search("76561198000000002", 1));
+        assertEquals(1, index.search("al", 1).size());
+        assertTrue(index.search("zulu", 10).isEmpty());
+        assertTrue(index.search("", 10).isEmpty());
+    }
+
+    @Test
+    void update() {
+        final TrigramIndex<String> index = new TrigramIndex<>();
+        index.put("1", "old", "Charlie");
+        index.put("1", "new", "Delta");
+        assertEquals(1, index.size());
+        assertTrue(index.search("charlie", 10).isEmpty());
+        assertEquals(List.of("new"), index.search("delta", 10));
+
+        assertTrue(index.remove("1"));
+        assertFalse(index.remove("1"));
+        assertTrue(index.search("delta", 10).isEmpty());
+
+        index.put("2", "echo", "Echo");
+        assertEquals("echo", index.get("2"));
+        assertEquals(List.of("echo"), index.search("ech", 10));
+    }
+}
@@ -0,0 +1,16 @@
+CREATE TABLE profiles (
+    p_id     BIGINT      NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    p_name   VARCHAR(64),
+    p_id_dis VARCHAR(32),
+    p_uid    VARCHAR(32) NOT NULL UNIQUE,
+    p_roles  VARCHAR(1024) NOT NULL DEFAULT '[ ]'
+);
+
+CREATE TABLE characters (
+    c_id      BIGINT      NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    c_name    VARCHAR(64),
+    c_uid     VARCHAR(32) NOT NULL,
+    c_roles   VARCHAR(1024) NOT NULL DEFAULT '[ ]',
+    c_lastupd TIMESTAMP   NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    c_side    VARCHAR(16)
+);